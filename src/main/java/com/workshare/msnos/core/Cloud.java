@@ -5,6 +5,7 @@ import static com.workshare.msnos.core.Message.Type.PRS;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -17,10 +18,10 @@ import net.jodah.expiringmap.ExpiringMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.workshare.msnos.core.MsnosException.Code;
 import com.workshare.msnos.core.cloud.AgentWatchdog;
 import com.workshare.msnos.core.cloud.IdentifiablesList;
 import com.workshare.msnos.core.cloud.IdentifiablesList.Callback;
+import com.workshare.msnos.core.cloud.IdentifiablesList.Indexer;
 import com.workshare.msnos.core.cloud.MessageValidators;
 import com.workshare.msnos.core.cloud.Multicaster;
 import com.workshare.msnos.core.payloads.FltPayload;
@@ -28,6 +29,7 @@ import com.workshare.msnos.core.payloads.Presence;
 import com.workshare.msnos.core.protocols.ip.Endpoint;
 import com.workshare.msnos.core.protocols.ip.HttpEndpoint;
 import com.workshare.msnos.core.protocols.ip.http.HttpGateway;
+import com.workshare.msnos.core.receipts.Receipts;
 import com.workshare.msnos.core.receipts.SingleReceipt;
 import com.workshare.msnos.core.routing.Router;
 import com.workshare.msnos.core.security.Signer;
@@ -54,10 +56,14 @@ public class Cloud implements Identifiable {
     private final IdentifiablesList<RemoteAgent> remoteAgents;
     private final IdentifiablesList<RemoteEntity> remoteClouds;
 
+    transient private final IdentifiablesList<RemoteAgent>.Index<Ring> remoteAgentsByRing;
+    transient private final IdentifiablesList<RemoteAgent>.Index<Ring> remoteRelaysByRing;
+
     transient private final Set<Gateway> gates;
     transient private final Ring ring;
     transient private final Signer signer;
     transient private final Internal internal;
+    transient private final Router router;
     transient private final Sender sender;
     transient private final Receiver receiver;
     transient private final Map<UUID, Iden> enquiries;
@@ -80,6 +86,10 @@ public class Cloud implements Identifiable {
             return Cloud.this.sign(message);
         }
 
+        public boolean verify(Message message) {
+            return Cloud.this.verify(message);
+        }
+
         public Cloud cloud() {
             return Cloud.this;
         }
@@ -105,6 +115,8 @@ public class Cloud implements Identifiable {
         this.localAgents = new IdentifiablesList<LocalAgent>();
         this.remoteAgents = new IdentifiablesList<RemoteAgent>(onRemoteAgentsChange());
         this.remoteClouds = new IdentifiablesList<RemoteEntity>();
+        this.remoteAgentsByRing = remoteAgents.addIndex(byRing(false));
+        this.remoteRelaysByRing = remoteAgents.addIndex(byRing(true));
 
         this.gates = Collections.unmodifiableSet(gates);
         this.internal = new Internal();
@@ -114,7 +126,7 @@ public class Cloud implements Identifiable {
         this.ring = calculateRing(gates);
         this.validators = new MessageValidators(this.internal);
         
-        final Router router = new Router(this, gates);
+        this.router = new Router(this, gates);
         this.sender = (sender != null) ? sender : new Sender(router);
         this.receiver = (receiver != null) ? receiver : new Receiver(this, gates, multicaster, router);
 
@@ -182,27 +194,27 @@ public class Cloud implements Identifiable {
         return receipt;
     }
 
-    void onJoin(LocalAgent agent) throws MsnosException {
+    void onJoin(final LocalAgent agent) throws MsnosException {
         checkCloudAlive();
 
         log.debug("Local agent joined: {}", agent);
         localAgents.add(agent);
 
+        // discovery is queued once the presence is delivered, or after a
+        // second, without holding the joining thread meanwhile
         Receipt receipt = sendSync(new MessageBuilder(Message.Type.PRS, agent, this).with(new Presence(true, agent)).make());
-        waitForDelivery(receipt, 1, TimeUnit.SECONDS);
-        
-        sendSync(new MessageBuilder(Message.Type.DSC, agent, this).make());
+        Receipts.onComplete(receipt, 1, TimeUnit.SECONDS, new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt presence) {
+                try {
+                    send(new MessageBuilder(Message.Type.DSC, agent, Cloud.this).make());
+                } catch (MsnosException ex) {
+                    log.warn("Unable to send discovery for joining agent " + agent, ex);
+                }
+            }
+        });
     }
 
-    private void waitForDelivery(Receipt receipt, final int amount, final TimeUnit unit) throws MsnosException {
-        try {
-            receipt.waitForDelivery(amount, unit);
-        } catch (InterruptedException e) {
-            Thread.interrupted();
-            throw new MsnosException(e.getMessage(), Code.SEND_FAILED);
-        }
-   }
-
     void onLeave(LocalAgent agent) throws MsnosException {
         checkCloudAlive();
 
@@ -220,6 +232,21 @@ public class Cloud implements Identifiable {
         return receiver.caster().addListener(listener);
     }
 
+    /**
+     * Adds a listener receiving only the messages of the given types
+     */
+    public Listener addListener(com.workshare.msnos.core.Cloud.Listener listener, EnumSet<Message.Type> types) {
+        return receiver.caster().addListener(listener, types);
+    }
+
+    /**
+     * Adds a listener receiving only the messages of the given types (all if
+     * null) addressed to the given recipient
+     */
+    public Listener addListener(com.workshare.msnos.core.Cloud.Listener listener, EnumSet<Message.Type> types, Iden to) {
+        return receiver.caster().addListener(listener, types, to);
+    }
+
     public void removeListener(com.workshare.msnos.core.Cloud.Listener listener) {
         receiver.caster().removeListener(listener);
     }
@@ -228,6 +255,14 @@ public class Cloud implements Identifiable {
         return receiver.caster().addSynchronousListener(listener);
     }
 
+    /**
+     * Adds a listener receiving the messages of each sender in order, while
+     * messages from different senders are processed in parallel
+     */
+    public Listener addOrderedListener(com.workshare.msnos.core.Cloud.Listener listener) {
+        return receiver.caster().addOrderedListener(listener);
+    }
+
     private void enquiryAgentIfNecessary(Message message) {
         final Iden from = message.getFrom();
         if (from.getType() == Iden.Type.AGT && message.getType() != PRS) {
@@ -315,6 +350,8 @@ public class Cloud implements Identifiable {
             return;
             
         agent.update(newEndpoints(endpoint, agent));
+        remoteAgents.reindex(agent);
+        router.cache().clear();
         log.debug("Agent {} updated, new endpoints are {}", agent, newEndpoints(endpoint, agent));
     }
 
@@ -336,15 +373,42 @@ public class Cloud implements Identifiable {
         }
     }
 
-    public RemoteAgent find(final Iden iden) {
-        RemoteAgent remoteAgent = null;
-        for (RemoteAgent agent : getRemoteAgents()) {
-            if (agent.getIden().equals(iden)) {
-                remoteAgent = agent;
-                break;
-            }
+    private boolean verify(Message message) {
+        if (signid == null)
+            return true;
+        try {
+            return signer.verify(message, signid);
+        } catch (IOException e) {
+            log.warn("Failed to verify message {} using key {}", message, signid);
+            return false;
         }
-        return remoteAgent;
+    }
+
+    public RemoteAgent find(final Iden iden) {
+        return remoteAgents.get(iden);
+    }
+
+    /**
+     * Returns the remote agents in the given ring
+     */
+    public Collection<RemoteAgent> getRemoteAgents(Ring ring) {
+        return remoteAgentsByRing.get(ring);
+    }
+
+    /**
+     * Returns the remote agents in the given ring which can be reached
+     * through HTTP, and so can relay messages to the ring
+     */
+    public Collection<RemoteAgent> getRemoteRelays(Ring ring) {
+        return remoteRelaysByRing.get(ring);
+    }
+
+    /**
+     * Returns the rings of all the remote agents which can be reached
+     * through HTTP
+     */
+    public Set<Ring> getRemoteRelayRings() {
+        return remoteRelaysByRing.keys();
     }
 
     public void process(Message message, String gateName) {
@@ -410,10 +474,23 @@ public class Cloud implements Identifiable {
         });
     }
 
+    private static Indexer<Ring, RemoteAgent> byRing(final boolean relaysOnly) {
+        return new Indexer<Ring, RemoteAgent>() {
+            @Override
+            public Ring keyOf(RemoteAgent agent) {
+                if (relaysOnly && agent.getEndpoints(Endpoint.Type.HTTP).isEmpty())
+                    return null;
+
+                return agent.getRing();
+            }
+        };
+    }
+
     private Callback<RemoteAgent> onRemoteAgentsChange() {
         return new Callback<RemoteAgent>() {
             @Override
             public void onAdd(RemoteAgent agent) {
+                router.cache().onAdd(agent);
                 for(Endpoint endpoint : agent.getEndpoints(Endpoint.Type.HTTP)) {
                     try {
                         registerRemoteMsnosEndpoint((HttpEndpoint) endpoint);
@@ -425,6 +502,7 @@ public class Cloud implements Identifiable {
 
             @Override
             public void onRemove(RemoteAgent agent) {
+                router.cache().onRemove(agent);
                 for(Endpoint endpoint : agent.getEndpoints(Endpoint.Type.HTTP)) {
                     try {
                         unregisterRemoteMsnosEndpoint((HttpEndpoint) endpoint);
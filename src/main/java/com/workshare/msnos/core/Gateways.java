@@ -176,6 +176,11 @@ public class Gateways {
 			protected void dispatch(Gateway.Listener listener, Message message) {
 				listener.onMessage(message);
 			}
+
+			@Override
+			protected Object typeOf(Message message) {
+				return message.getType();
+			}
 		};
         return caster;
     }
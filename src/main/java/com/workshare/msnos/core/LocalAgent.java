@@ -4,6 +4,7 @@ import static com.workshare.msnos.core.Message.Type.DSC;
 import static com.workshare.msnos.core.Message.Type.PIN;
 
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -83,7 +84,7 @@ public class LocalAgent implements Agent {
                 log.debug("Message received.");
                 process(message);
             }
-        });
+        }, EnumSet.of(DSC, PIN));
         
         return this;
     }
@@ -7,6 +7,8 @@ import java.util.UUID;
 import com.workshare.msnos.core.payloads.NullPayload;
 import com.workshare.msnos.core.payloads.PongPayload;
 import com.workshare.msnos.core.payloads.TracePayload;
+import com.workshare.msnos.core.serializers.RawPayload;
+import com.workshare.msnos.core.serializers.WireSerializer;
 import com.workshare.msnos.soup.json.Json;
 import com.workshare.msnos.soup.time.SystemTime;
 
@@ -34,15 +36,25 @@ public class Message {
     private final int hops;
     private final boolean reliable;
     private final long when;
-    private final Payload data;
     private final String gateName;
+    private volatile Payload data;
 
     private final String sig;
     private final String rnd;
 
+    private transient volatile String text;
+    private transient volatile String dataText;
+    private transient volatile Encoding encodings;
+    private transient volatile byte[] received;
+    private transient final RawPayload raw;
+
     private static final SecureRandom random = new SecureRandom();
 
     Message(Type type, Iden from, Iden to, int hops, boolean reliable, Payload data, UUID uuid, String sig, String rnd, long when, String gate) {
+        this(type, from, to, hops, reliable, data, uuid, sig, rnd, when, gate, null);
+    }
+
+    Message(Type type, Iden from, Iden to, int hops, boolean reliable, Payload data, UUID uuid, String sig, String rnd, long when, String gate, RawPayload raw) {
         if (reliable && to.getType() == Iden.Type.CLD) {
             throw new IllegalArgumentException("Cannot create a reliable message to the whole cloud!");
         }
@@ -57,20 +69,20 @@ public class Message {
         this.sig = sig;
         this.rnd = (sig == null ? null : (rnd == null ? new BigInteger(130, random).toString(32) : rnd));
         this.gateName = gate;
-        
-        // FIXME refactor this
-        // TODO this can be achieved in a much better way (i.e.
-        // type.getPayload(this) here or in the builder)
-        if (data == null) {
-            if (type == Type.TRC)
-                this.data = new TracePayload(from);
-            else if (type == Type.PON)
-                this.data = new PongPayload();
-            else
-                this.data = NullPayload.INSTANCE;
-        } else {
-            this.data = data;
-        }
+        this.raw = raw;
+        this.data = (data == null && raw == null ? defaultPayload(type, from) : data);
+    }
+
+    // FIXME refactor this
+    // TODO this can be achieved in a much better way (i.e.
+    // type.getPayload(this) here or in the builder)
+    private static Payload defaultPayload(Type type, Iden from) {
+        if (type == Type.TRC)
+            return new TracePayload(from);
+        else if (type == Type.PON)
+            return new PongPayload();
+        else
+            return NullPayload.INSTANCE;
     }
 
     public UUID getUuid() {
@@ -97,8 +109,27 @@ public class Message {
         return sig;
     }
 
+    /**
+     * Returns the payload, decoding it on first access when the message was
+     * received with its payload still encoded
+     */
     public Payload getData() {
-        return data;
+        Payload current = data;
+        if (current == null) {
+            current = raw.decode(type);
+            if (current == null)
+                current = defaultPayload(type, from);
+            data = current;
+        }
+        return current;
+    }
+
+    /**
+     * Returns the payload as it was received, or null if the message was not
+     * received with a lazily decoded payload or the payload was replaced
+     */
+    public RawPayload getRawData() {
+        return raw;
     }
 
     public int getHops() {
@@ -121,16 +152,89 @@ public class Message {
         return gateName;
     }
 
+    /**
+     * Returns this message as encoded by the given serializer. The encoding
+     * is computed once per message and serializer type, then shared by
+     * every caller: the returned array must not be modified. A message that
+     * differs from the one received only for hops and gate, as when it's
+     * relayed, is encoded patching the hops in the received bytes.
+     */
+    public byte[] encoded(WireSerializer sz) {
+        final Class<?> format = sz.getClass();
+        for (Encoding enc = encodings; enc != null; enc = enc.next)
+            if (enc.format == format)
+                return enc.bytes;
+
+        final byte[] relayed = (received == null ? null : sz.withHops(received, hops));
+        final byte[] bytes = (relayed != null ? relayed : sz.toBytes(this));
+        encodings = new Encoding(format, bytes, encodings);
+        return bytes;
+    }
+
+    /**
+     * Attaches the bytes this message was decoded from, so that its signature
+     * can be checked against what was actually received. Meant to be used
+     * only by the decoders, right after building the message.
+     */
+    public void setReceivedBytes(byte[] bytes) {
+        this.received = bytes;
+    }
+
+    /**
+     * Returns the bytes this message was decoded from, json or binary, or null
+     * if it was not received from the wire. They are carried over to the copies that differ only
+     * for hops and gate, and must not be modified.
+     */
+    public byte[] getReceivedBytes() {
+        return received;
+    }
+
+    /**
+     * Returns the json representation of the payload, as used in logs.
+     * It's computed once and carried over the copies of this message
+     * sharing the same payload.
+     */
+    public String getDataAsJson() {
+        String current = dataText;
+        if (current == null) {
+            current = Json.toJsonString(getData());
+            dataText = current;
+        }
+        return current;
+    }
+
+    /**
+     * Returns the json representation of this message: a payload not yet
+     * decoded is shown as received, so that logging a message never forces
+     * its decoding
+     */
     @Override
     public String toString() {
-        return Json.toJsonString(this);
+        if (data == null)
+            return withRawData(Json.toJsonString(this));
+
+        return asJson();
+    }
+
+    private String withRawData(String json) {
+        return json.substring(0, json.length() - 1) + ",\"data\":" + raw + "}";
+    }
+
+    private String asJson() {
+        String current = text;
+        if (current == null) {
+            getData();
+            current = Json.toJsonString(this);
+            text = current;
+        }
+        return current;
     }
 
     @Override
     public boolean equals(Object o) {
         try {
-            String jsonThis = Json.toJsonString(this);
-            String jsonThat = Json.toJsonString(o);
+            String jsonThis = asJson();
+            String jsonThat = (o instanceof Message ? ((Message) o).asJson() : Json.toJsonString(o));
             return jsonThis.equals(jsonThat);
         } catch (Exception any) {
             return false;
@@ -153,27 +257,49 @@ public class Message {
     }
 
     public Message hopped() {
-        return new Message(type, from, to, hops - 1, reliable, data, uuid, sig, rnd, when, gateName);
+        return sameContent(new Message(type, from, to, hops - 1, reliable, data, uuid, sig, rnd, when, gateName, raw));
     }
 
     public Message withHops(int hops) {
         if (hops == this.hops)
             return this;
         else
-            return new Message(type, from, to, hops, reliable, data, uuid, sig, rnd, when, gateName);
+            return sameContent(new Message(type, from, to, hops, reliable, data, uuid, sig, rnd, when, gateName, raw));
     }
 
     public Message signed(String keyId, String signature) {
         String sign = keyId + ":" + signature;
-        return new Message(type, from, to, hops, reliable, data, uuid, sign, rnd, when, gateName);
+        return sameData(new Message(type, from, to, hops, reliable, data, uuid, sign, rnd, when, gateName, raw));
     }
 
     public Message fromGate(String newGateName) {
         if (newGateName != null || gateName != null) {
-            return new Message(type, from, to, hops - 1, reliable, data, uuid, sig, rnd, when, newGateName);
+            return sameContent(new Message(type, from, to, hops - 1, reliable, data, uuid, sig, rnd, when, newGateName, raw));
         } else {
             return this;
         }
     }
 
+    private Message sameData(Message copy) {
+        copy.dataText = dataText;
+        return copy;
+    }
+
+    private Message sameContent(Message copy) {
+        copy.received = received;
+        return sameData(copy);
+    }
+
+    private static final class Encoding {
+        private final Class<?> format;
+        private final byte[] bytes;
+        private final Encoding next;
+
+        Encoding(Class<?> format, byte[] bytes, Encoding next) {
+            this.format = format;
+            this.bytes = bytes;
+            this.next = next;
+        }
+    }
+
 }
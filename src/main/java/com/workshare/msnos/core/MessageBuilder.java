@@ -2,6 +2,7 @@ package com.workshare.msnos.core;
 
 import com.workshare.msnos.core.Message.Payload;
 import com.workshare.msnos.core.Message.Type;
+import com.workshare.msnos.core.serializers.RawPayload;
 
 import java.util.UUID;
 
@@ -15,6 +16,7 @@ public class MessageBuilder {
     private int hops = 3;
     private boolean reliable = false;
     private Payload data = null;
+    private RawPayload raw = null;
 
     private String sig = null;
     private String rnd = null;
@@ -49,6 +51,11 @@ public class MessageBuilder {
         return this;
     }
 
+    public MessageBuilder with(RawPayload raw) {
+        this.raw = raw;
+        return this;
+    }
+
     public MessageBuilder withHops(int hops) {
         this.hops = hops;
         return this;
@@ -81,6 +88,6 @@ public class MessageBuilder {
         if (to == null)
             throw new RuntimeException("Cannot build a message with no destination");
 
-        return new Message(type, from, to, hops, reliable, data, uuid, sig, rnd, when, gateName);
+        return new Message(type, from, to, hops, reliable, data, uuid, sig, rnd, when, gateName, raw);
     }
 }
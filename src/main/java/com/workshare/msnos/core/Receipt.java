@@ -7,6 +7,14 @@ import com.workshare.msnos.core.Message.Status;
 
 public interface Receipt {
 
+    /**
+     * Called once when the receipt completes, that is when the message is
+     * either delivered or failed
+     */
+    public static interface Callback {
+        public void onComplete(Receipt receipt);
+    }
+
     public abstract UUID getMessageUuid();
 
     public abstract Status getStatus();
@@ -15,4 +23,18 @@ public interface Receipt {
 
     public abstract String getGate();
 
+    /**
+     * Returns the uuid of the newer message this one was coalesced into
+     * before being sent, or null if it was not: once coalesced, the status
+     * of this receipt is the status of the newer one
+     */
+    public abstract UUID getCoalescedInto();
+
+    /**
+     * Registers a callback to be invoked once the receipt completes, on the
+     * thread completing it, or straight away if it's already complete. See
+     * {@link com.workshare.msnos.core.receipts.Receipts} for timeouts
+     */
+    public abstract void onComplete(Callback callback);
+
 }
\ No newline at end of file
@@ -1,8 +1,8 @@
 package com.workshare.msnos.core;
 
-import static com.workshare.msnos.soup.Shorteners.shorten;
-
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -10,16 +10,36 @@ import org.slf4j.LoggerFactory;
 
 import com.workshare.msnos.core.Cloud.Internal;
 import com.workshare.msnos.core.Cloud.Listener;
+import com.workshare.msnos.core.cloud.AdmissionControl;
+import com.workshare.msnos.core.cloud.AdmissionControl.Decision;
 import com.workshare.msnos.core.cloud.MessageValidators;
 import com.workshare.msnos.core.cloud.MessageValidators.Result;
 import com.workshare.msnos.core.cloud.Multicaster;
+import com.workshare.msnos.core.journal.ProtocolJournal;
 import com.workshare.msnos.core.routing.Router;
-import com.workshare.msnos.soup.json.Json;
-
+import com.workshare.msnos.soup.threading.PipelineStage;
+import com.workshare.msnos.soup.threading.PipelineStage.Handler;
+import com.workshare.msnos.soup.threading.ThreadFactories;
+
+/**
+ * Handles the messages coming from the gateways through three stages: validate,
+ * apply (process the message and dispatch it to the listeners, only when
+ * addressed to us) and forward. Each stage can be given its own workers and
+ * queue size through system properties, named after the stage, i.e.
+ * "msnos.core.receiver.forward.workers": by default all of them have zero
+ * workers and the whole chain runs on the thread delivering the message.
+ *
+ * Before entering the chain each message goes through the admission control,
+ * which sheds the less important messages when we are flooded.
+ */
 public class Receiver {
 
+    public static final String SYSP_STAGE_PREFIX = "msnos.core.receiver.";
+    public static final String SYSP_STAGE_WORKERS = ".workers";
+    public static final String SYSP_STAGE_QUEUE = ".queue";
+
     private static final Logger log = LoggerFactory.getLogger(Receiver.class);
-    private static final Logger proto = LoggerFactory.getLogger("protocol");
+    private static final ProtocolJournal journal = ProtocolJournal.instance();
 
     private final Cloud cloud;
     private final Set<Gateway> gates;
@@ -27,12 +47,22 @@ public class Receiver {
     private final MessageValidators validators;
     private final Internal internal;
     private final Router router;
+    private final AdmissionControl admission;
+
+    private final PipelineStage<Inbound> validateStage;
+    private final PipelineStage<Inbound> applyStage;
+    private final PipelineStage<Inbound> forwardStage;
 
     Receiver(Cloud cloud, Set<Gateway> gates, Multicaster multicaster) {
         this(cloud, gates, multicaster, new Router(cloud, gates));
     }
 
     Receiver(Cloud cloud, Set<Gateway> gates, Multicaster multicaster, Router router) {
+        this(cloud, gates, multicaster, router, new AdmissionControl());
+    }
+
+    Receiver(Cloud cloud, Set<Gateway> gates, Multicaster multicaster, Router router, AdmissionControl admission) {
+        this.admission = admission;
         this.cloud = cloud;
         this.caster = multicaster;
         this.gates = Collections.unmodifiableSet(gates);
@@ -40,6 +70,39 @@ public class Receiver {
         this.validators = cloud.validators();
         this.router = router;
 
+        this.forwardStage = newStage("forward", new Handler<Inbound>() {
+            @Override
+            public void handle(Inbound inbound) {
+                try {
+                    Receiver.this.router.forward(inbound.message);
+                } finally {
+                    completed(inbound);
+                }
+            }
+        });
+        this.applyStage = newStage("apply", new Handler<Inbound>() {
+            @Override
+            public void handle(Inbound inbound) {
+                try {
+                    apply(inbound);
+                } catch (RuntimeException ex) {
+                    completed(inbound);
+                    throw ex;
+                }
+            }
+        });
+        this.validateStage = newStage("validate", new Handler<Inbound>() {
+            @Override
+            public void handle(Inbound inbound) {
+                try {
+                    validate(inbound);
+                } catch (RuntimeException ex) {
+                    completed(inbound);
+                    throw ex;
+                }
+            }
+        });
+
         for (final Gateway gate : gates) {
             gate.addListener(this.cloud, new Gateway.Listener() {
                 @Override
@@ -70,22 +133,60 @@ public class Receiver {
     }
 
     public void process(Message message, String gateName) {
+        final Decision decision = admission.admit(message);
+        if (decision != Decision.ADMIT) {
+            logNN(message, gateName, decision.name());
+            return;
+        }
+
+        submit(validateStage, new Inbound(message, gateName));
+    }
+
+    public AdmissionControl admission() {
+        return admission;
+    }
+
+    public List<PipelineStage<?>> stages() {
+        return Arrays.<PipelineStage<?>> asList(validateStage, applyStage, forwardStage);
+    }
+
+    private void validate(Inbound inbound) {
+        final Message message = inbound.message;
         Result result = validators.isReceivable(message);
         if (!result.success()) {
-            logNN(message, gateName, result.reason());
+            logNN(message, inbound.gateName, result.reason());
+            completed(inbound);
             return;
         }
 
-        if (isAddressedToLocal(message)) {
-            logRX(message, gateName);
+        if (isAddressedToLocal(message))
+            submit(applyStage, inbound);
+        else
+            submit(forwardStage, inbound);
+    }
 
-            message.getData().process(message, internal);
-            cloud.postProcess(message);
+    private void apply(Inbound inbound) {
+        final Message message = inbound.message;
+        logRX(message, inbound.gateName);
 
-            caster.dispatch(message);
-        }
+        message.getData().process(message, internal);
+        cloud.postProcess(message);
+
+        caster.dispatch(message);
+
+        submit(forwardStage, inbound);
+    }
 
-        router.forward(message);
+    private void submit(PipelineStage<Inbound> stage, Inbound inbound) {
+        if (!stage.submit(inbound))
+            completed(inbound);
+    }
+
+    private void completed(Inbound inbound) {
+        if (!inbound.completed) {
+            inbound.completed = true;
+            admission.completed(inbound.start);
+        }
     }
 
     private boolean isAddressedToLocal(Message message) {
@@ -94,25 +195,34 @@ public class Receiver {
     }
 
     private void logNN(Message msg, String gateName, String cause) {
-        if (!proto.isDebugEnabled())
-            return;
+        journal.rejected(msg, gateName, cause, internal.localAgents().containsKey(msg.getFrom()));
+    }
 
-        final String muid = shorten(msg.getUuid());
-        final String payload = Json.toJsonString(msg.getData());
+    private void logRX(Message msg, String gateName) {
+        journal.received(msg, gateName);
+    }
 
-        Iden from = msg.getFrom();
-        if (internal.localAgents().containsKey(from))
-            proto.trace("R#({}): ={}= {} {} {} {} {} {}", shorten(gateName, 3), cause, msg.getType(), muid, msg.getWhen(), msg.getFrom(), msg.getTo(), payload);
-        else
-            proto.debug("R#({}): ={}= {} {} {} {} {} {}", shorten(gateName, 3), cause, msg.getType(), muid, msg.getWhen(), msg.getFrom(), msg.getTo(), payload);
+    private static PipelineStage<Inbound> newStage(String name, Handler<Inbound> handler) {
+        final int workers = Integer.getInteger(SYSP_STAGE_PREFIX + name + SYSP_STAGE_WORKERS, 0);
+        final int queue = Integer.getInteger(SYSP_STAGE_PREFIX + name + SYSP_STAGE_QUEUE, 1024);
+        return new PipelineStage<Inbound>("Receiver-" + name, workers, queue, ThreadFactories.DEFAULT, handler);
     }
 
-    private void logRX(Message msg, String gateName) {
-        if (!proto.isInfoEnabled())
-            return;
+    private static final class Inbound {
+        private final Message message;
+        private final String gateName;
+        private final long start;
+        private boolean completed;
+
+        Inbound(Message message, String gateName) {
+            this.message = message;
+            this.gateName = gateName;
+            this.start = System.nanoTime();
+        }
 
-        final String muid = shorten(msg.getUuid());
-        final String payload = Json.toJsonString(msg.getData());
-        proto.info("RX({}): {} {} {} {} {} {}", shorten(gateName, 3), msg.getType(), muid, msg.getWhen(), msg.getFrom(), msg.getTo(), payload);
+        @Override
+        public String toString() {
+            return message.toString();
+        }
     }
 }
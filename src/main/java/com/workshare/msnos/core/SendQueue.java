@@ -0,0 +1,184 @@
+package com.workshare.msnos.core;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.workshare.msnos.core.Sender.Transmission;
+import com.workshare.msnos.core.cloud.AdmissionControl;
+import com.workshare.msnos.core.cloud.AdmissionControl.Priority;
+import com.workshare.msnos.core.receipts.SingleReceipt;
+
+/**
+ * The bounded queue of the transmissions waiting to be sent, polled by
+ * priority class (the same classes of the {@link AdmissionControl}) and in
+ * order within each class, so that a burst of application messages does not
+ * delay presences and pongs.
+ *
+ * A transmission superseded by a newer one still waiting is coalesced: the
+ * newer message takes the place of the older in the queue, and the older
+ * receipt follows the newer one. This happens for repeated presences from
+ * the same agent and repeated enquiries to the same target.
+ *
+ * When the queue is full the newest transmission of a lower class is evicted
+ * to make room, or the new one is refused if there's none: in both cases
+ * the receipt of the transmission left out is failed.
+ */
+class SendQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(SendQueue.class);
+
+    private final int capacity;
+    private final ArrayDeque<Slot>[] queues;
+    private final Map<Key, Slot> coalescables;
+
+    private int size;
+    private long coalesced;
+    private long evicted;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SendQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.coalescables = new HashMap<Key, Slot>();
+        this.queues = new ArrayDeque[Priority.values().length];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = new ArrayDeque<Slot>();
+    }
+
+    /**
+     * Queues the transmission, returning false if it was refused
+     */
+    synchronized boolean offer(Transmission tx) {
+        final Message message = tx.message();
+        final Key key = keyOf(message);
+        if (key != null) {
+            final Slot slot = coalescables.get(key);
+            if (slot != null) {
+                final Transmission older = slot.tx;
+                slot.tx = tx;
+                older.receipt().coalesce(tx.receipt());
+                coalesced++;
+                log.debug("Message {} coalesced into {}", older.message(), message);
+                return true;
+            }
+        }
+
+        final int priority = AdmissionControl.priorityOf(message.getType()).ordinal();
+        if (size >= capacity && !evictBelow(priority)) {
+            fail(tx);
+            return false;
+        }
+
+        final Slot slot = new Slot(tx, key);
+        queues[priority].add(slot);
+        if (key != null)
+            coalescables.put(key, slot);
+        size++;
+        return true;
+    }
+
+    /**
+     * Returns the next transmission to be sent, or null if none is waiting
+     */
+    synchronized Transmission poll() {
+        for (ArrayDeque<Slot> queue : queues) {
+            final Slot slot = queue.poll();
+            if (slot != null) {
+                forget(slot);
+                return slot.tx;
+            }
+        }
+        return null;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long coalesced() {
+        return coalesced;
+    }
+
+    synchronized long evicted() {
+        return evicted;
+    }
+
+    private boolean evictBelow(int priority) {
+        for (int i = queues.length - 1; i > priority; i--) {
+            final Slot slot = queues[i].pollLast();
+            if (slot != null) {
+                forget(slot);
+                fail(slot.tx);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void forget(Slot slot) {
+        size--;
+        if (slot.key != null && coalescables.get(slot.key) == slot)
+            coalescables.remove(slot.key);
+    }
+
+    private void fail(Transmission tx) {
+        evicted++;
+        log.warn("Send queue full, message {} dropped", tx.message());
+        tx.receipt().update(SingleReceipt.failure(tx.message()));
+    }
+
+    private static Key keyOf(Message message) {
+        switch (message.getType()) {
+        case PRS:
+            return new Key(Message.Type.PRS, message.getFrom(), null);
+        case ENQ:
+            return new Key(Message.Type.ENQ, message.getFrom(), message.getTo());
+        default:
+            return null;
+        }
+    }
+
+    private static final class Slot {
+        private final Key key;
+        private Transmission tx;
+
+        Slot(Transmission tx, Key key) {
+            this.tx = tx;
+            this.key = key;
+        }
+    }
+
+    private static final class Key {
+        private final Message.Type type;
+        private final Iden from;
+        private final Iden to;
+
+        Key(Message.Type type, Iden from, Iden to) {
+            this.type = type;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = type.hashCode();
+            result = 31 * result + (from == null ? 0 : from.hashCode());
+            result = 31 * result + (to == null ? 0 : to.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+
+            final Key other = (Key) obj;
+            return type == other.type && (from == null ? other.from == null : from.equals(other.from)) && (to == null ? other.to == null : to.equals(other.to));
+        }
+    }
+}
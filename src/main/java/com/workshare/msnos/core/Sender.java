@@ -1,26 +1,31 @@
 package com.workshare.msnos.core;
 
-import static com.workshare.msnos.soup.Shorteners.shorten;
-
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.workshare.msnos.core.journal.ProtocolJournal;
 import com.workshare.msnos.core.receipts.SingleReceipt;
 import com.workshare.msnos.core.routing.Router;
-import com.workshare.msnos.soup.json.Json;
 import com.workshare.msnos.soup.threading.ExecutorServices;
 
+/**
+ * Sends the messages asynchronously: transmissions are queued in a bounded
+ * {@link SendQueue}, which orders them by priority and coalesces superseded
+ * ones, and for each of them a task is handed to the executor, which sends
+ * whatever is the most urgent transmission waiting at that time.
+ */
 public class Sender {
 
     private static final ExecutorService DEFAULT_EXECUTOR_SERVICE = ExecutorServices.newFixedDaemonThreadPool(getThreadNum());
 
     public static final String SYSP_SENDER_THREADS_NUM = "com.ws.msnos.sender.threads.num";
+    public static final String SYSP_SENDER_QUEUE_SIZE = "com.ws.msnos.sender.queue.size";
     
     private static final Logger log = LoggerFactory.getLogger(Sender.class);
-    private static final Logger proto = LoggerFactory.getLogger("protocol");
+    private static final ProtocolJournal journal = ProtocolJournal.instance();
 
     public class Transmission implements Runnable {
         private Cloud cloud;
@@ -54,6 +59,8 @@ public class Sender {
 
     private final Executor executor;
     private final Router router;
+    private final SendQueue queue;
+    private final Runnable sendNext;
 
     Sender(Router router) {
         this(router, DEFAULT_EXECUTOR_SERVICE);
@@ -62,15 +69,29 @@ public class Sender {
     Sender(Router router, Executor executor) {
         this.router = router;
         this.executor = executor;
+        this.queue = new SendQueue(Integer.getInteger(SYSP_SENDER_QUEUE_SIZE, 8192));
+        this.sendNext = new Runnable() {
+            @Override
+            public void run() {
+                final Transmission tx = queue.poll();
+                if (tx != null)
+                    tx.run();
+            }
+        };
     }
 
     public Receipt send(final Cloud cloud, final Message amessage) throws MsnosException {  
         log.debug("Accepted message for delivery {} on cloud {}", amessage, cloud);
         Transmission tx = new Transmission(amessage.hopped(), cloud);
-        executor.execute(tx);
+        if (queue.offer(tx))
+            executor.execute(sendNext);
         return tx.receipt();
     }
 
+    int queued() {
+        return queue.size();
+    }
+
     void sendSync(final Cloud cloud, final Message message, final SingleReceipt receipt) {
         Receipt current = router.send(message);
         receipt.update(current);
@@ -84,11 +105,6 @@ public class Sender {
     }
 
     private void logTX(Message msg, String gateName) {
-        if (!proto.isInfoEnabled())
-            return;
-
-        final String muid = shorten(msg.getUuid());
-        final String payload = Json.toJsonString(msg.getData());
-        proto.info("TX({}): {} {} {} {} {} {}", gateName, msg.getType(), muid, msg.getWhen(), msg.getFrom(), msg.getTo(), payload);
+        journal.transmitted(msg, gateName);
     }
 }
@@ -5,6 +5,7 @@ import com.workshare.msnos.soup.json.Json;
 public class Version {
 
     public static final Version V1_0 = new Version(1,0);
+    public static final Version V2_0 = new Version(2,0);
     
     private final int major;
     private final int minor;
@@ -27,4 +28,26 @@ public class Version {
         return Json.toJsonString(this);
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * major + minor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        try {
+            Version other = (Version) o;
+            return this.major == other.major && this.minor == other.minor;
+        } catch (Exception ignore) {
+            return false;
+        }
+    }
+
+    public static Version parse(String text) {
+        final int dotIndex = text.indexOf(".");
+        final int major = Integer.parseInt(text.substring(0, dotIndex));
+        final int minor = Integer.parseInt(text.substring(dotIndex + 1));
+        return new Version(major, minor);
+    }
+
 }
@@ -0,0 +1,297 @@
+package com.workshare.msnos.core.cloud;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.soup.time.SystemTime;
+
+/**
+ * Decides which incoming messages are let into the receiver when the cloud
+ * floods us, i.e. on a mass restart. Message types are grouped in priority
+ * classes, membership and health first, and two mechanisms are applied:
+ *
+ * - each source is given a token bucket, refilled at a fixed rate, and its
+ * messages are shed when the bucket is empty (critical ones excepted);
+ *
+ * - when the messages in flight or their processing latency go over the
+ * threshold the bulk class is shed, and when they go over twice the
+ * threshold the control class is shed as well. Critical messages are never
+ * shed.
+ *
+ * Messages in flight and latency are tracked between {@link #admit} and
+ * {@link #completed}, the latency as a moving average. Shed counts are kept
+ * per message type and per source.
+ *
+ * Sources are not validated yet, so a flood may come from any number of
+ * them: once the sources table is full the idle ones are evicted, at most
+ * once per second, and until there is room again new sources share a single
+ * bucket, so that spoofed sources cannot push out the real ones.
+ */
+public class AdmissionControl {
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+    public static final String SYSP_SOURCE_RATE = "msnos.core.admission.source.rate";
+    public static final String SYSP_SOURCE_BURST = "msnos.core.admission.source.burst";
+    public static final String SYSP_MAX_INFLIGHT = "msnos.core.admission.inflight";
+    public static final String SYSP_MAX_LATENCY = "msnos.core.admission.latency";
+
+    private static final int MAX_SOURCES = 4096;
+    private static final long SWEEP_INTERVAL = 1000L;
+
+    public static enum Priority {CRITICAL, CONTROL, BULK}
+
+    public static enum Decision {ADMIT, SHED_RATE, SHED_LOAD}
+
+    private final int rate;
+    private final int burst;
+    private final int maxInflight;
+    private final long maxLatencyNanos;
+
+    private final ConcurrentMap<Iden, Bucket> buckets = new ConcurrentHashMap<Iden, Bucket>();
+    private final ConcurrentMap<Iden, AtomicLong> shedBySource = new ConcurrentHashMap<Iden, AtomicLong>();
+    private final AtomicLong bucketsSweep = new AtomicLong();
+    private final AtomicLong shedSweep = new AtomicLong();
+    private final Bucket newcomers;
+    private final Map<Message.Type, AtomicLong> shedByType;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong admitted = new AtomicLong();
+
+    public AdmissionControl() {
+        this(Integer.getInteger(SYSP_SOURCE_RATE, 0), Integer.getInteger(SYSP_SOURCE_BURST, 0), Integer.getInteger(SYSP_MAX_INFLIGHT, 4096), Long.getLong(SYSP_MAX_LATENCY, 1000L));
+    }
+
+    /**
+     * Creates a controller allowing each source rate messages per second, with
+     * bursts up to the given size (the rate itself if zero), no limits when
+     * the rate is zero, and shedding when the messages in flight or the
+     * processing latency in milliseconds go over the given thresholds
+     */
+    public AdmissionControl(int rate, int burst, int maxInflight, long maxLatencyMillis) {
+        this.rate = Math.max(0, rate);
+        this.burst = (burst > 0 ? burst : this.rate);
+        this.maxInflight = Math.max(1, maxInflight);
+        this.maxLatencyNanos = Math.max(1, maxLatencyMillis) * 1000000L;
+        this.newcomers = new Bucket(this.burst);
+
+        this.shedByType = new EnumMap<Message.Type, AtomicLong>(Message.Type.class);
+        for (Message.Type type : Message.Type.values())
+            shedByType.put(type, new AtomicLong());
+    }
+
+    public static Priority priorityOf(Message.Type type) {
+        switch (type) {
+        case PRS:
+        case FLT:
+        case HCK:
+        case PON:
+            return Priority.CRITICAL;
+        case APP:
+        case TRC:
+            return Priority.BULK;
+        default:
+            return Priority.CONTROL;
+        }
+    }
+
+    /**
+     * Decides if the message can be processed: when admitted, the caller
+     * must call {@link #completed} once done with it
+     */
+    public Decision admit(Message message) {
+        final Priority priority = priorityOf(message.getType());
+
+        Decision decision = Decision.ADMIT;
+        if (priority.ordinal() >= Priority.values().length - pressure())
+            decision = Decision.SHED_LOAD;
+        else if (rate > 0 && priority != Priority.CRITICAL && !bucketOf(message.getFrom()).take())
+            decision = Decision.SHED_RATE;
+
+        if (decision == Decision.ADMIT) {
+            inflight.incrementAndGet();
+            admitted.incrementAndGet();
+        } else {
+            shed(message, decision);
+        }
+
+        return decision;
+    }
+
+    /**
+     * Signals the end of the processing of a message admitted at the given
+     * time, as returned by System.nanoTime()
+     */
+    public void completed(long startNanos) {
+        inflight.decrementAndGet();
+
+        // moving average with a weight of 1/8 for the new sample
+        final long elapsed = System.nanoTime() - startNanos;
+        long current;
+        do {
+            current = latencyNanos.get();
+        } while (!latencyNanos.compareAndSet(current, current + (elapsed - current) / 8));
+    }
+
+    /**
+     * Returns how many priority classes are being shed, starting from the
+     * lowest one: 0 to 2
+     */
+    public int pressure() {
+        final int depth = inflight.get();
+        if (depth == 0)
+            return 0;
+
+        final long latency = latencyNanos.get();
+        if (depth > 2 * maxInflight || latency > 2 * maxLatencyNanos)
+            return 2;
+        if (depth > maxInflight || latency > maxLatencyNanos)
+            return 1;
+
+        return 0;
+    }
+
+    public int inflight() {
+        return inflight.get();
+    }
+
+    public long latencyMillis() {
+        return latencyNanos.get() / 1000000L;
+    }
+
+    public long admitted() {
+        return admitted.get();
+    }
+
+    public long shed(Message.Type type) {
+        return shedByType.get(type).get();
+    }
+
+    public long shed(Iden source) {
+        final AtomicLong count = shedBySource.get(source);
+        return count == null ? 0 : count.get();
+    }
+
+    public long shed() {
+        long total = 0;
+        for (AtomicLong count : shedByType.values())
+            total += count.get();
+        return total;
+    }
+
+    public Map<Iden, AtomicLong> shedBySource() {
+        return shedBySource;
+    }
+
+    @Override
+    public String toString() {
+        return "admitted=" + admitted + ", inflight=" + inflight + ", latency=" + latencyMillis() + "ms, shed=" + shedByType;
+    }
+
+    private void shed(Message message, Decision decision) {
+        log.debug("Message shed ({}): {}", decision, message);
+        shedByType.get(message.getType()).incrementAndGet();
+
+        final Iden source = message.getFrom();
+        if (source == null)
+            return;
+
+        AtomicLong count = shedBySource.get(source);
+        if (count == null) {
+            // when full, sources shed only once are the first to go, and new
+            // sources are not tracked until there is room
+            if (shedBySource.size() >= MAX_SOURCES && !sweepShedCounts())
+                return;
+            count = new AtomicLong();
+            final AtomicLong existing = shedBySource.putIfAbsent(source, count);
+            if (existing != null)
+                count = existing;
+        }
+        count.incrementAndGet();
+    }
+
+    private Bucket bucketOf(Iden source) {
+        final Iden key = (source == null ? Iden.NULL : source);
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            // sources are not validated yet, so we cannot trust their number
+            if (buckets.size() >= MAX_SOURCES && !sweepBuckets())
+                return newcomers;
+            bucket = new Bucket(burst);
+            final Bucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null)
+                bucket = existing;
+        }
+        return bucket;
+    }
+
+    // an idle bucket is full again, so dropping it loses nothing
+    private boolean sweepBuckets() {
+        final long now = SystemTime.asMillis();
+        if (!canSweep(bucketsSweep, now))
+            return false;
+
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+            if (it.next().isIdle(now))
+                it.remove();
+        }
+
+        return buckets.size() < MAX_SOURCES;
+    }
+
+    private boolean sweepShedCounts() {
+        if (!canSweep(shedSweep, SystemTime.asMillis()))
+            return false;
+
+        for (Iterator<AtomicLong> it = shedBySource.values().iterator(); it.hasNext();) {
+            if (it.next().get() <= 1)
+                it.remove();
+        }
+
+        return shedBySource.size() < MAX_SOURCES;
+    }
+
+    private static boolean canSweep(AtomicLong lastSweep, long now) {
+        final long last = lastSweep.get();
+        return now - last >= SWEEP_INTERVAL && lastSweep.compareAndSet(last, now);
+    }
+
+    private final class Bucket {
+        private double tokens;
+        private long last;
+
+        Bucket(int tokens) {
+            this.tokens = tokens;
+            this.last = SystemTime.asMillis();
+        }
+
+        synchronized boolean take() {
+            final long now = SystemTime.asMillis();
+            if (now > last) {
+                tokens = Math.min(burst, tokens + (now - last) * rate / 1000.0);
+                last = now;
+            }
+
+            if (tokens < 1)
+                return false;
+
+            tokens -= 1;
+            return true;
+        }
+
+        synchronized boolean isIdle(long now) {
+            return tokens + Math.max(0, now - last) * rate / 1000.0 >= burst;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.workshare.msnos.core.cloud;
+
+import java.util.UUID;
+
+import com.workshare.msnos.soup.time.SystemTime;
+
+/**
+ * Remembers the uuids of the messages seen in the last lifetime, so that
+ * duplicates can be detected without holding on to the messages.
+ *
+ * Uuids are stored as pairs of longs in open addressing tables, one per
+ * time bucket: each bucket covers a third of the lifetime and the oldest
+ * one is dropped when the clock moves into a new bucket, so an uuid is
+ * remembered for at least a lifetime. Each uuid carries a mask of the
+ * channels that have seen it, so that more validators can share the same
+ * entries. The total number of entries is capped: when the cap is reached
+ * the oldest bucket is dropped early, and its entries counted as evicted.
+ */
+public class DuplicatesFilter {
+
+    private static final int BUCKETS = 4;
+    private static final int INITIAL_SLOTS = 64;
+
+    private final long span;
+    private final int capacity;
+    private final Bucket[] buckets;
+
+    private int size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public DuplicatesFilter(long lifetimeInMillis, int capacity) {
+        if (capacity < BUCKETS)
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+
+        this.span = Math.max(1, lifetimeInMillis / (BUCKETS - 1));
+        this.capacity = capacity;
+        this.buckets = new Bucket[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new Bucket();
+    }
+
+    /**
+     * Marks the uuid as seen on the given channel (a single bit mask),
+     * returning true if it was not seen on that channel before
+     */
+    public synchronized boolean add(UUID uuid, int channel) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        final long epoch = SystemTime.asMillis() / span;
+        expire(epoch);
+
+        for (Bucket bucket : buckets) {
+            if (bucket.count == 0)
+                continue;
+
+            final int slot = bucket.find(msb, lsb);
+            if (slot >= 0) {
+                if ((bucket.masks[slot] & channel) != 0) {
+                    hits++;
+                    return false;
+                }
+
+                bucket.masks[slot] |= channel;
+                misses++;
+                return true;
+            }
+        }
+
+        final Bucket current = current(epoch);
+        if (size >= capacity)
+            evictOldest(epoch, current);
+
+        current.insert(msb, lsb, (byte) channel);
+        size++;
+        misses++;
+        return true;
+    }
+
+    /**
+     * Tells if the uuid was already seen on the given channel, without
+     * marking it as seen nor touching the counters
+     */
+    public synchronized boolean contains(UUID uuid, int channel) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        expire(SystemTime.asMillis() / span);
+
+        for (Bucket bucket : buckets) {
+            if (bucket.count == 0)
+                continue;
+
+            final int slot = bucket.find(msb, lsb);
+            if (slot >= 0)
+                return (bucket.masks[slot] & channel) != 0;
+        }
+
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + size + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+    }
+
+    private void expire(long epoch) {
+        for (Bucket bucket : buckets) {
+            if (bucket.count > 0 && epoch - bucket.epoch >= BUCKETS) {
+                size -= bucket.count;
+                bucket.reset(bucket.epoch);
+            }
+        }
+    }
+
+    private Bucket current(long epoch) {
+        final Bucket bucket = buckets[(int) (epoch % BUCKETS)];
+        if (bucket.epoch != epoch) {
+            if (bucket.count > 0)
+                drop(bucket);
+            bucket.reset(epoch);
+        }
+
+        return bucket;
+    }
+
+    private void evictOldest(long epoch, Bucket current) {
+        Bucket oldest = null;
+        for (Bucket bucket : buckets) {
+            if (bucket != current && bucket.count > 0 && (oldest == null || bucket.epoch < oldest.epoch))
+                oldest = bucket;
+        }
+
+        if (oldest == null)
+            oldest = current;
+
+        drop(oldest);
+        oldest.reset(oldest.epoch);
+    }
+
+    private void drop(Bucket bucket) {
+        size -= bucket.count;
+        evictions += bucket.count;
+    }
+
+    private static final class Bucket {
+        private long epoch = Long.MIN_VALUE;
+        private int count;
+        private long[] keys = new long[INITIAL_SLOTS * 2];
+        private byte[] masks = new byte[INITIAL_SLOTS];
+
+        void reset(long newEpoch) {
+            epoch = newEpoch;
+            count = 0;
+            keys = new long[INITIAL_SLOTS * 2];
+            masks = new byte[INITIAL_SLOTS];
+        }
+
+        int find(long msb, long lsb) {
+            final int mask = masks.length - 1;
+            for (int slot = hash(msb, lsb) & mask; masks[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot * 2] == msb && keys[slot * 2 + 1] == lsb)
+                    return slot;
+            }
+            return -1;
+        }
+
+        void insert(long msb, long lsb, byte channel) {
+            if ((count + 1) * 2 > masks.length)
+                grow();
+
+            put(msb, lsb, channel);
+            count++;
+        }
+
+        private void put(long msb, long lsb, byte channel) {
+            final int mask = masks.length - 1;
+            int slot = hash(msb, lsb) & mask;
+            while (masks[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            keys[slot * 2] = msb;
+            keys[slot * 2 + 1] = lsb;
+            masks[slot] = channel;
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final byte[] oldMasks = masks;
+            keys = new long[oldKeys.length * 2];
+            masks = new byte[oldMasks.length * 2];
+            for (int i = 0; i < oldMasks.length; i++) {
+                if (oldMasks[i] != 0)
+                    put(oldKeys[i * 2], oldKeys[i * 2 + 1], oldMasks[i]);
+            }
+        }
+
+        private static int hash(long msb, long lsb) {
+            final long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -2,7 +2,10 @@ package com.workshare.msnos.core.cloud;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.workshare.msnos.core.Iden;
 import com.workshare.msnos.core.Identifiable;
@@ -27,8 +30,72 @@ public class IdentifiablesList<T extends Identifiable> {
         }
     }
     
+    /**
+     * Computes the key of an identifiable in a secondary index, or null
+     * when the identifiable should not be indexed
+     */
+    public interface Indexer<K, T> {
+        public K keyOf(T identifiable);
+    }
+
+    /**
+     * A secondary index, kept up to date on add and remove: when the key of
+     * an identifiable changes while in the list, {@link #reindex} has to be
+     * called. Lookups do not lock and return live views.
+     */
+    public final class Index<K> {
+        private final Indexer<K, T> indexer;
+        private final ConcurrentHashMap<K, ConcurrentHashMap<Iden, T>> buckets;
+        private final ConcurrentHashMap<Iden, K> keys;
+
+        private Index(Indexer<K, T> indexer) {
+            this.indexer = indexer;
+            this.buckets = new ConcurrentHashMap<K, ConcurrentHashMap<Iden, T>>();
+            this.keys = new ConcurrentHashMap<Iden, K>();
+        }
+
+        public Collection<T> get(K key) {
+            final ConcurrentHashMap<Iden, T> bucket = (key == null ? null : buckets.get(key));
+            if (bucket == null)
+                return Collections.emptySet();
+            else
+                return Collections.unmodifiableCollection(bucket.values());
+        }
+
+        public Set<K> keys() {
+            return Collections.unmodifiableSet(buckets.keySet());
+        }
+
+        private void add(T entity) {
+            final K key = indexer.keyOf(entity);
+            if (key == null)
+                return;
+
+            ConcurrentHashMap<Iden, T> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ConcurrentHashMap<Iden, T>();
+                buckets.put(key, bucket);
+            }
+
+            bucket.put(entity.getIden(), entity);
+            keys.put(entity.getIden(), key);
+        }
+
+        private void remove(Iden iden) {
+            final K key = keys.remove(iden);
+            if (key == null)
+                return;
+
+            final ConcurrentHashMap<Iden, T> bucket = buckets.get(key);
+            bucket.remove(iden);
+            if (bucket.isEmpty())
+                buckets.remove(key);
+        }
+    }
+
     private final Callback<T> callback;
     private final ConcurrentHashMap<Iden, T> entities;
+    transient private final List<Index<?>> indices;
 
     public IdentifiablesList() {
         this(null);
@@ -37,6 +104,33 @@ public class IdentifiablesList<T extends Identifiable> {
     public IdentifiablesList(Callback<T> callback) {
         this.entities = new ConcurrentHashMap<Iden, T>();
         this.callback = (callback != null ? callback : new CallbackAdapter<T>());
+        this.indices = new CopyOnWriteArrayList<Index<?>>();
+    }
+
+    /**
+     * Adds a secondary index on the identifiables, including the ones
+     * already in the list
+     */
+    public synchronized <K> Index<K> addIndex(Indexer<K, T> indexer) {
+        final Index<K> index = new Index<K>(indexer);
+        for (T entity : entities.values())
+            index.add(entity);
+
+        indices.add(index);
+        return index;
+    }
+
+    /**
+     * Updates the secondary indices after the identifiable changed
+     */
+    public synchronized void reindex(T agent) {
+        if (entities.get(agent.getIden()) != agent)
+            return;
+
+        for (Index<?> index : indices) {
+            index.remove(agent.getIden());
+            index.add(agent);
+        }
     }
 
     public Collection<T> list() {
@@ -48,12 +142,26 @@ public class IdentifiablesList<T extends Identifiable> {
     }
 
     public void add(T agent) {
-        entities.put(agent.getIden(), agent);
+        synchronized (this) {
+            entities.put(agent.getIden(), agent);
+            for (Index<?> index : indices) {
+                index.remove(agent.getIden());
+                index.add(agent);
+            }
+        }
+
         callback.onAdd(agent);
     }
 
     public T remove(Iden iden) {
-        final T target = entities.remove(iden);
+        final T target;
+        synchronized (this) {
+            target = entities.remove(iden);
+            if (target != null)
+                for (Index<?> index : indices)
+                    index.remove(iden);
+        }
+
         if (target != null)
             callback.onRemove(target);
         return target;
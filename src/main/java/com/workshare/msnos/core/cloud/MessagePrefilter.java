@@ -0,0 +1,100 @@
+package com.workshare.msnos.core.cloud;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.workshare.msnos.core.Cloud;
+import com.workshare.msnos.core.cloud.MessageValidators.Reason;
+import com.workshare.msnos.core.cloud.MessageValidators.Result;
+import com.workshare.msnos.core.serializers.MessageHeader;
+
+/**
+ * Used by the gateways to throw away incoming messages before decoding them,
+ * looking only at their header: a message is dropped when none of the clouds
+ * listening on the gateway would receive it. Messages whose header cannot be
+ * read cheaply are always let through, as well as everything when no cloud
+ * is listening yet.
+ */
+public class MessagePrefilter {
+
+    private static final Logger log = LoggerFactory.getLogger(MessagePrefilter.class);
+
+    private final Set<Cloud> clouds;
+    private final Map<Reason, AtomicLong> shed;
+    private final AtomicLong passed;
+    private final AtomicLong unpeekable;
+
+    public MessagePrefilter() {
+        this.clouds = new CopyOnWriteArraySet<Cloud>();
+        this.passed = new AtomicLong();
+        this.unpeekable = new AtomicLong();
+        this.shed = new EnumMap<Reason, AtomicLong>(Reason.class);
+        for (Reason reason : Reason.values())
+            shed.put(reason, new AtomicLong());
+    }
+
+    public void add(Cloud cloud) {
+        clouds.add(cloud);
+    }
+
+    public boolean accepts(byte[] array, int offset, int length) {
+        return clouds.isEmpty() || accepts(MessageHeader.peek(array, offset, length));
+    }
+
+    /**
+     * Checks an already peeked header, where null means the header could not
+     * be read: rejected headers are never null.
+     */
+    public boolean accepts(MessageHeader header) {
+        if (clouds.isEmpty())
+            return true;
+
+        if (header == null) {
+            unpeekable.incrementAndGet();
+            return true;
+        }
+
+        Result result = null;
+        for (Cloud cloud : clouds) {
+            result = cloud.validators().isReceivable(header);
+            if (result.success()) {
+                passed.incrementAndGet();
+                return true;
+            }
+        }
+
+        log.debug("Message shed before decoding: {} - header: {}", result.reason(), header);
+        shed.get(result.cause()).incrementAndGet();
+        return false;
+    }
+
+    public long passed() {
+        return passed.get();
+    }
+
+    public long unpeekable() {
+        return unpeekable.get();
+    }
+
+    public long shed(Reason reason) {
+        return shed.get(reason).get();
+    }
+
+    public long shed() {
+        long total = 0;
+        for (AtomicLong count : shed.values())
+            total += count.get();
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "passed=" + passed + ", unpeekable=" + unpeekable + ", shed=" + shed;
+    }
+}
@@ -2,10 +2,6 @@ package com.workshare.msnos.core.cloud;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.UUID;
-import java.util.concurrent.TimeUnit;
-
-import net.jodah.expiringmap.ExpiringMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,11 +10,16 @@ import com.workshare.msnos.core.Cloud;
 import com.workshare.msnos.core.Iden;
 import com.workshare.msnos.core.Iden.Type;
 import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.serializers.MessageHeader;
 import com.workshare.msnos.soup.time.SystemTime;
 
 public class MessageValidators {
 
     private static final String SYSP_MESSAGE_LIFETIME = "msnos.core.message.lifetime";
+    private static final String SYSP_DUPLICATES_CAPACITY = "msnos.core.message.duplicates.capacity";
+
+    private static final int RECEIVING = 1;
+    private static final int FORWARDING = 2;
 
     public enum Reason {
         TO_LOCAL,       // directed to local agent
@@ -49,6 +50,10 @@ public class MessageValidators {
         public String reason() {
             return reason.toString();
         }
+
+        Reason cause() {
+            return reason;
+        }
     }
     
     public static interface Validator {
@@ -56,17 +61,24 @@ public class MessageValidators {
     }
 
     public static final Result SUCCESS = new Result(true, null);
+
+    private static final Result PEEKED_TO_OTHER = new Result(false, Reason.TO_OTHER);
+    private static final Result PEEKED_TOO_OLD = new Result(false, Reason.TOO_OLD);
+    private static final Result PEEKED_DUPLICATE = new Result(false, Reason.DUPLICATE);
     
     private final Cloud.Internal cloud;
     private final List<Validator> receivingValidators;
     private final List<Validator> forwardingValidators;
+    private final DuplicatesFilter duplicates;
+    private final long lifetime;
 
     public MessageValidators(Cloud.Internal aCloud) {
         this.cloud = aCloud;
+        this.lifetime = getMessageLifetime();
+        this.duplicates = new DuplicatesFilter(lifetime, getDuplicatesCapacity());
 
         final Validator notToLocal = shouldNotDirectedToLocalAgent();
         final Validator notFromLocal = shouldNotComeFromLocalAgent();
-//        final Validator neverSeen = shouldNeverSeenMessage();
         final Validator withValidSignature = shouldHaveValidSignature();
         final Validator notTooOld = shouldNotBeTooOld();
         final Validator notAddressedOutside = shouldNotBeAddressedToAnotherCloud();
@@ -75,13 +87,13 @@ public class MessageValidators {
                 notFromLocal, 
                 notAddressedOutside,
                 notTooOld,
-                shouldNeverSeenMessage(), 
+                shouldNeverSeenMessage(RECEIVING), 
                 withValidSignature);
 
         this.forwardingValidators = Arrays.asList(
                 notToLocal, 
                 notTooOld,
-                shouldNeverSeenMessage(), 
+                shouldNeverSeenMessage(FORWARDING), 
                 withValidSignature);
     }
 
@@ -89,10 +101,30 @@ public class MessageValidators {
         return isValid(message, receivingValidators);
     }
 
+    /**
+     * Checks a message not yet decoded, looking only at its header: a failure
+     * means the whole message would be rejected by {@link #isReceivable(Message)}
+     * (and not forwarded), so there's no need to decode it at all
+     */
+    public Result isReceivable(MessageHeader header) {
+        if (!isInThisCloud(header.getTo()))
+            return PEEKED_TO_OTHER;
+        if (!isFresh(header.getWhen()))
+            return PEEKED_TOO_OLD;
+        if (duplicates.contains(header.getUuid(), RECEIVING))
+            return PEEKED_DUPLICATE;
+
+        return SUCCESS;
+    }
+
     public Result isForwardable(Message message) {
         return isValid(message, forwardingValidators);
     }
 
+    public DuplicatesFilter duplicates() {
+        return duplicates;
+    }
+
     private Result isValid(Message message, final List<Validator> validators) {
         for (Validator validator : validators) {
             final Result result = validator.isValid(message);
@@ -109,62 +141,54 @@ public class MessageValidators {
         return Long.getLong(SYSP_MESSAGE_LIFETIME, 60000);
     }
 
+    private int getDuplicatesCapacity() {
+        return Integer.getInteger(SYSP_DUPLICATES_CAPACITY, 65536);
+    }
+
     private Validator shouldHaveValidSignature() {
         return new AbstractMessageValidator(Reason.BAD_SIGNED) {
             @Override
             public Result isValid(Message message) {
-                Message signed = cloud.sign(message);
-                return asResult(parseNull(message.getSig()).equals(parseNull(signed.getSig())));
-            }
-            
-            private String parseNull(String signature) {
-                return (signature == null ? "" : signature);
+                return asResult(cloud.verify(message));
             }};
     }
 
-    private Validator shouldNeverSeenMessage() {
+    private Validator shouldNeverSeenMessage(final int channel) {
         return new AbstractMessageValidator(Reason.DUPLICATE) {
-            
-            private final ExpiringMap<UUID, Message> messages = ExpiringMap.builder()
-                        .expiration(getMessageLifetime(), TimeUnit.SECONDS)
-                        .build();            
-
             @Override
             public Result isValid(Message message) {
-                if (messages.containsKey(message.getUuid()))
-                    return failure;
-                
-                messages.put(message.getUuid(), message);
-                return SUCCESS;
+                return asResult(duplicates.add(message.getUuid(), channel));
             }
         };
     }
 
     private Validator shouldNotBeTooOld() {
         return new AbstractMessageValidator(Reason.TOO_OLD) {
-            
-            private final long lifetime = getMessageLifetime();
-
             @Override
             public Result isValid(Message message) {
-                final long now = SystemTime.asMillis();
-                final long elapsed = now - message.getWhen();
-                final Result result = asResult(elapsed < lifetime);
-                return result;
+                return asResult(isFresh(message.getWhen()));
             }
         };
     }
 
+    private boolean isFresh(long when) {
+        final long now = SystemTime.asMillis();
+        final long elapsed = now - when;
+        return elapsed < lifetime;
+    }
+
     private Validator shouldNotBeAddressedToAnotherCloud() {
         return new AbstractMessageValidator(Reason.TO_OTHER) {
             @Override
             public Result isValid(Message message) {
-                final Iden to = message.getTo();
-                boolean success = to.getType() != Type.CLD || to.equals(cloud.cloud().getIden());
-                return asResult(success);
+                return asResult(isInThisCloud(message.getTo()));
             }};
     }
 
+    private boolean isInThisCloud(final Iden to) {
+        return to.getType() != Type.CLD || to.equals(cloud.cloud().getIden());
+    }
+
     private Validator shouldNotComeFromLocalAgent() {
         return new AbstractMessageValidator(Reason.FROM_LOCAL) {
             @Override
@@ -15,8 +15,27 @@ public class Multicaster extends com.workshare.msnos.soup.threading.Multicaster<
         super(executor);
     }
 
+    public Multicaster(Executor executor, Overflow overflow, int capacity) {
+        super(executor, overflow, capacity);
+    }
+
     @Override
     protected void dispatch(Listener listener, Message message) {
         listener.onMessage(message);
     }
+
+    @Override
+    protected Object typeOf(Message message) {
+        return message.getType();
+    }
+
+    @Override
+    protected Object recipientOf(Message message) {
+        return message.getTo();
+    }
+
+    @Override
+    protected Object keyOf(Message message) {
+        return message.getFrom();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package com.workshare.msnos.core.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+
+/**
+ * Prints the content of protocol journal files in the same format used by
+ * the protocol and routing loggers, one line per record. Accepts as many
+ * files or directories as needed: directories are scanned for journal files,
+ * printed oldest first.
+ *
+ * Usage: java com.workshare.msnos.core.journal.JournalDecoder [file|dir]...
+ */
+public class JournalDecoder {
+
+    private final PrintStream out;
+    private final SimpleDateFormat dates;
+
+    public JournalDecoder(PrintStream out) {
+        this.out = out;
+        this.dates = new SimpleDateFormat("dd MMM yyyy HH:mm:ss.SSS");
+    }
+
+    public int decode(File fileOrDir) throws IOException {
+        if (!fileOrDir.isDirectory())
+            return decodeFile(fileOrDir);
+
+        int total = 0;
+        for (File file : JournalFiles.list(fileOrDir))
+            total += decodeFile(file);
+        return total;
+    }
+
+    private int decodeFile(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            final int size = JournalFiles.readHeader(in);
+            if (size != JournalRecord.SIZE)
+                throw new IOException("Unsupported record size " + size + " in " + file);
+
+            int count = 0;
+            while (in.remaining() >= size) {
+                final String line = JournalRecord.format(in, dates);
+                if (line != null) {
+                    out.println(line);
+                    count++;
+                }
+                in.position(in.position() + size);
+            }
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: " + JournalDecoder.class.getName() + " [file|dir]...");
+            System.exit(1);
+        }
+
+        final JournalDecoder decoder = new JournalDecoder(System.out);
+        for (String arg : args)
+            decoder.decode(new File(arg));
+    }
+}
@@ -0,0 +1,158 @@
+package com.workshare.msnos.core.journal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.workshare.msnos.soup.threading.RecordsRing;
+
+/**
+ * The rolling set of memory mapped files the journal is written to: when a
+ * file is full a new one is started, and only the most recent ones are kept.
+ * Files are numbered, so a restart never overwrites the previous run, and
+ * start with a small header: magic(4) version(4) record size(4) pad(4)
+ */
+final class JournalFiles implements RecordsRing.Consumer {
+
+    private static final Logger log = LoggerFactory.getLogger(JournalFiles.class);
+
+    static final int MAGIC = 0x4d534e4a;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    private static final String PREFIX = "msnos-journal.";
+    private static final String SUFFIX = ".bin";
+
+    private final File dir;
+    private final int recordSize;
+    private final long fileSize;
+    private final int maxFiles;
+
+    private int index;
+    private RandomAccessFile file;
+    private MappedByteBuffer map;
+
+    JournalFiles(File dir, int recordSize, long fileSize, int maxFiles) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create journal directory " + dir);
+
+        this.dir = dir;
+        this.recordSize = recordSize;
+        this.fileSize = HEADER_SIZE + Math.max(1, (fileSize - HEADER_SIZE) / recordSize) * recordSize;
+        this.maxFiles = Math.max(1, maxFiles);
+
+        File[] existing = list(dir);
+        this.index = (existing.length == 0 ? 0 : indexOf(existing[existing.length - 1]));
+        roll();
+    }
+
+    @Override
+    public void consume(byte[] buffer, int offset, int length) {
+        if (map == null)
+            return;
+
+        try {
+            if (map.remaining() < length)
+                roll();
+            map.put(buffer, offset, length);
+        } catch (IOException ex) {
+            log.warn("Unable to roll the journal, journaling stopped", ex);
+            close();
+        }
+    }
+
+    void flush() {
+        if (map != null)
+            map.force();
+    }
+
+    void close() {
+        try {
+            if (map != null)
+                map.force();
+            if (file != null)
+                file.close();
+        } catch (IOException ex) {
+            log.warn("Unable to close journal file", ex);
+        } finally {
+            map = null;
+            file = null;
+        }
+    }
+
+    File current() {
+        return name(dir, index);
+    }
+
+    private void roll() throws IOException {
+        close();
+
+        index++;
+        file = new RandomAccessFile(name(dir, index), "rw");
+        file.setLength(fileSize);
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        map.putInt(MAGIC).putInt(VERSION).putInt(recordSize).putInt(0);
+        log.debug("Journal now writing to {}", current());
+
+        for (File old : list(dir)) {
+            if (indexOf(old) <= index - maxFiles && !old.delete())
+                log.warn("Unable to delete old journal file {}", old);
+        }
+    }
+
+    /**
+     * Checks the header of a journal file, returning the record size
+     */
+    static int readHeader(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+            throw new IOException("Not a journal file");
+        if (in.getInt() != VERSION)
+            throw new IOException("Unsupported journal version");
+
+        final int size = in.getInt();
+        in.getInt();
+        return size;
+    }
+
+    /**
+     * Lists the journal files in the directory, oldest first
+     */
+    static File[] list(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && indexOf(name) > 0;
+            }
+        });
+
+        if (files == null)
+            return new File[0];
+
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static File name(File dir, int index) {
+        return new File(dir, PREFIX + String.format("%08d", index) + SUFFIX);
+    }
+
+    private static int indexOf(File file) {
+        return indexOf(file.getName());
+    }
+
+    private static int indexOf(String name) {
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (RuntimeException ex) {
+            return -1;
+        }
+    }
+}
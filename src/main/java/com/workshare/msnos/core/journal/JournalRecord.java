@@ -0,0 +1,172 @@
+package com.workshare.msnos.core.journal;
+
+import static com.workshare.msnos.soup.Shorteners.shorten;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.UUID;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+
+/**
+ * The layout of a journal record, fixed size and big endian:
+ *
+ * kind(1) type(1) hops(1) pad(1) logged(8) when(8) uuid(16) from(17) to(17)
+ * gate(8) mode(4) how(24) status(16) pad(6)
+ *
+ * where idens are the type ordinal followed by the uuid, and all the texts
+ * are ascii, truncated and zero padded. A zero type or kind means unset.
+ */
+final class JournalRecord {
+
+    static final int SIZE = 128;
+
+    static final byte KIND_RX = 1;
+    static final byte KIND_NN = 2;
+    static final byte KIND_TX = 3;
+    static final byte KIND_RT = 4;
+
+    private static final int KIND = 0;
+    private static final int TYPE = 1;
+    private static final int HOPS = 2;
+    private static final int LOGGED = 4;
+    private static final int WHEN = 12;
+    private static final int UUID_AT = 20;
+    private static final int FROM = 36;
+    private static final int TO = 53;
+    private static final int GATE = 70;
+    private static final int MODE = 78;
+    private static final int HOW = 82;
+    private static final int STATUS = 106;
+
+    private static final int GATE_LEN = 8;
+    private static final int MODE_LEN = 4;
+    private static final int HOW_LEN = 24;
+    private static final int STATUS_LEN = 16;
+
+    private static final byte NO_IDEN = -1;
+
+    private static final Message.Type[] MESSAGE_TYPES = Message.Type.values();
+    private static final Iden.Type[] IDEN_TYPES = Iden.Type.values();
+
+    private JournalRecord() {
+    }
+
+    static void write(byte[] buf, int off, byte kind, long logged, Message msg, String gate, String mode, String how, String status, int hops) {
+        buf[off + KIND] = kind;
+        buf[off + TYPE] = (byte) (msg.getType().ordinal() + 1);
+        buf[off + HOPS] = (byte) Math.max(-1, Math.min(127, hops));
+        buf[off + 3] = 0;
+        putLong(buf, off + LOGGED, logged);
+        putLong(buf, off + WHEN, msg.getWhen());
+        putUUID(buf, off + UUID_AT, msg.getUuid());
+        putIden(buf, off + FROM, msg.getFrom());
+        putIden(buf, off + TO, msg.getTo());
+        putAscii(buf, off + GATE, GATE_LEN, gate);
+        putAscii(buf, off + MODE, MODE_LEN, mode);
+        putAscii(buf, off + HOW, HOW_LEN, how);
+        putAscii(buf, off + STATUS, STATUS_LEN, status);
+        for (int i = STATUS + STATUS_LEN; i < SIZE; i++)
+            buf[off + i] = 0;
+    }
+
+    /**
+     * Formats the record at the current position of the buffer the same way
+     * the protocol and routing loggers do, or returns null for an empty slot.
+     * The payload is never journaled, so it's always printed as a dash
+     */
+    static String format(ByteBuffer in, SimpleDateFormat dates) {
+        final int off = in.position();
+        final byte kind = in.get(off + KIND);
+        final int type = in.get(off + TYPE);
+        if (kind == 0 || type < 1 || type > MESSAGE_TYPES.length)
+            return null;
+
+        final String message = MESSAGE_TYPES[type - 1] + " " + shorten(getUUID(in, off + UUID_AT)) + " " + in.getLong(off + WHEN) + " " + getIden(in, off + FROM) + " " + getIden(in, off + TO) + " -";
+
+        final String gate = getAscii(in, off + GATE, GATE_LEN);
+        final StringBuilder sb = new StringBuilder();
+        sb.append(dates.format(new Date(in.getLong(off + LOGGED)))).append(" | ");
+        switch (kind) {
+        case KIND_RX:
+            sb.append("RX(").append(shorten(gate, 3)).append("): ").append(message);
+            break;
+        case KIND_NN:
+            sb.append("R#(").append(shorten(gate, 3)).append("): =").append(getAscii(in, off + STATUS, STATUS_LEN)).append("= ").append(message);
+            break;
+        case KIND_TX:
+            sb.append("TX(").append(gate).append("): ").append(message);
+            break;
+        default:
+            sb.append(getAscii(in, off + MODE, MODE_LEN)).append(' ');
+            sb.append(getAscii(in, off + HOW, HOW_LEN)).append(' ');
+            sb.append(gate).append(' ');
+            final String status = getAscii(in, off + STATUS, STATUS_LEN);
+            if (status.length() > 0)
+                sb.append(status).append(' ');
+            final int hops = in.get(off + HOPS);
+            if (hops >= 0)
+                sb.append(hops).append(' ');
+            sb.append(message);
+        }
+
+        return sb.toString();
+    }
+
+    private static void putLong(byte[] buf, int off, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buf[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void putUUID(byte[] buf, int off, UUID uuid) {
+        putLong(buf, off, uuid.getMostSignificantBits());
+        putLong(buf, off + 8, uuid.getLeastSignificantBits());
+    }
+
+    private static void putIden(byte[] buf, int off, Iden iden) {
+        if (iden == null) {
+            buf[off] = NO_IDEN;
+            putLong(buf, off + 1, 0);
+            putLong(buf, off + 9, 0);
+        } else {
+            buf[off] = (byte) iden.getType().ordinal();
+            putUUID(buf, off + 1, iden.getUUID());
+        }
+    }
+
+    private static void putAscii(byte[] buf, int off, int len, String text) {
+        final int count = (text == null ? 0 : Math.min(len, text.length()));
+        for (int i = 0; i < count; i++) {
+            final char c = text.charAt(i);
+            buf[off + i] = (byte) (c < 128 ? c : '?');
+        }
+        for (int i = count; i < len; i++)
+            buf[off + i] = 0;
+    }
+
+    private static UUID getUUID(ByteBuffer in, int off) {
+        return new UUID(in.getLong(off), in.getLong(off + 8));
+    }
+
+    private static Object getIden(ByteBuffer in, int off) {
+        final int type = in.get(off);
+        if (type < 0 || type >= IDEN_TYPES.length)
+            return "null";
+        return new Iden(IDEN_TYPES[type], getUUID(in, off + 1));
+    }
+
+    private static String getAscii(ByteBuffer in, int off, int len) {
+        final StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            final byte c = in.get(off + i);
+            if (c == 0)
+                break;
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+}
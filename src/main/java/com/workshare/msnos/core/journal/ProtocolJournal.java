@@ -0,0 +1,207 @@
+package com.workshare.msnos.core.journal;
+
+import static com.workshare.msnos.soup.Shorteners.shorten;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.soup.ShutdownHooks;
+import com.workshare.msnos.soup.threading.RecordsRing;
+
+/**
+ * A binary journal of the protocol traffic, used in place of the protocol
+ * and routing loggers when enabled: each event is copied as a fixed size
+ * record in a lock free ring, and a background thread drains the ring into
+ * rolling memory mapped files. No string is ever built on the messaging
+ * threads, and the payload is not journaled at all: the files can be turned
+ * back into the usual log lines with the {@link JournalDecoder}.
+ * When the ring is full records are dropped and counted, never waited for.
+ * When disabled, the events are written as text to the protocol and routing
+ * loggers instead.
+ */
+public class ProtocolJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(ProtocolJournal.class);
+    private static final Logger proto = LoggerFactory.getLogger("protocol");
+    private static final Logger routing = LoggerFactory.getLogger("routing");
+
+    public static final String SYSP_ENABLED = "msnos.core.journal.enabled";
+    public static final String SYSP_DIR = "msnos.core.journal.dir";
+    public static final String SYSP_RECORDS = "msnos.core.journal.records";
+    public static final String SYSP_FILE_SIZE = "msnos.core.journal.file.size";
+    public static final String SYSP_FILES = "msnos.core.journal.files";
+
+    private static final int DRAIN_BATCH = 1024;
+    private static final long IDLE_NANOS = 1000000L;
+
+    private static final ProtocolJournal INSTANCE = create();
+
+    private final RecordsRing ring;
+    private final JournalFiles files;
+    private volatile boolean running;
+
+    ProtocolJournal(RecordsRing ring, JournalFiles files) {
+        this.ring = ring;
+        this.files = files;
+    }
+
+    public static ProtocolJournal instance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    public void received(Message msg, String gate) {
+        if (ring != null)
+            record(JournalRecord.KIND_RX, msg, gate, null, null, null, -1);
+        else if (proto.isInfoEnabled())
+            proto.info("RX({}): {} {} {} {} {} {}", shorten(gate, 3), msg.getType(), shorten(msg.getUuid()), msg.getWhen(), msg.getFrom(), msg.getTo(), msg.getDataAsJson());
+    }
+
+    /**
+     * Records a message rejected on receipt: as text, the messages coming
+     * from local agents are logged at trace level only
+     */
+    public void rejected(Message msg, String gate, String cause, boolean local) {
+        if (ring != null)
+            record(JournalRecord.KIND_NN, msg, gate, null, null, cause, -1);
+        else if (local && proto.isTraceEnabled())
+            proto.trace("R#({}): ={}= {} {} {} {} {} {}", shorten(gate, 3), cause, msg.getType(), shorten(msg.getUuid()), msg.getWhen(), msg.getFrom(), msg.getTo(), msg.getDataAsJson());
+        else if (!local && proto.isDebugEnabled())
+            proto.debug("R#({}): ={}= {} {} {} {} {} {}", shorten(gate, 3), cause, msg.getType(), shorten(msg.getUuid()), msg.getWhen(), msg.getFrom(), msg.getTo(), msg.getDataAsJson());
+    }
+
+    public void transmitted(Message msg, String gate) {
+        if (ring != null)
+            record(JournalRecord.KIND_TX, msg, gate, null, null, null, -1);
+        else if (proto.isInfoEnabled())
+            proto.info("TX({}): {} {} {} {} {} {}", gate, msg.getType(), shorten(msg.getUuid()), msg.getWhen(), msg.getFrom(), msg.getTo(), msg.getDataAsJson());
+    }
+
+    /**
+     * Records a routing decision: status and hops are left out of the text
+     * when null and negative respectively
+     */
+    public void routed(Message msg, Object mode, String how, String gate, Object status, int hops) {
+        if (ring != null)
+            record(JournalRecord.KIND_RT, msg, gate, String.valueOf(mode), how, (status == null ? null : status.toString()), hops);
+        else if (routing.isInfoEnabled()) {
+            if (hops >= 0)
+                routing.info("{} {} {} {} {} {}", mode, how, gate, status, hops, msg);
+            else if (status != null)
+                routing.info("{} {} {} {} {}", mode, how, gate, status, msg);
+            else
+                routing.info("{} {} {} {}", mode, how, gate, msg);
+        }
+    }
+
+    public long dropped() {
+        return ring == null ? 0 : ring.dropped();
+    }
+
+    private void record(byte kind, Message msg, String gate, String mode, String how, String status, int hops) {
+        final long seq = ring.claim();
+        if (seq < 0)
+            return;
+
+        try {
+            JournalRecord.write(ring.buffer(), ring.offset(seq), kind, System.currentTimeMillis(), msg, gate, mode, how, status, hops);
+        } finally {
+            ring.publish(seq);
+        }
+    }
+
+    int drain() {
+        return ring.drain(files, DRAIN_BATCH);
+    }
+
+    void start() {
+        running = true;
+
+        final Thread writer = new Thread("msnos-journal") {
+            @Override
+            public void run() {
+                try {
+                    while (running) {
+                        if (drain() == 0)
+                            LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                } finally {
+                    close();
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        ShutdownHooks.addHook(new ShutdownHooks.Hook() {
+            @Override
+            public void run() {
+                stop(writer);
+            }
+
+            @Override
+            public int priority() {
+                return -2000;
+            }
+
+            @Override
+            public String name() {
+                return "Protocol journal flusher";
+            }
+        });
+    }
+
+    // the ring is drained by one thread only, so the writer itself flushes
+    // what is left and closes the files, here we just give it some time
+    private void stop(Thread writer) {
+        running = false;
+        try {
+            writer.join(1000L);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (writer.isAlive())
+            log.warn("Journal writer still flushing, the last records may be lost");
+    }
+
+    private void close() {
+        while (drain() > 0)
+            ;
+        files.close();
+
+        if (ring.dropped() > 0)
+            log.warn("Journal closed, {} records were dropped", ring.dropped());
+    }
+
+    private static ProtocolJournal create() {
+        if (!Boolean.getBoolean(SYSP_ENABLED))
+            return new ProtocolJournal(null, null);
+
+        final File dir = new File(System.getProperty(SYSP_DIR, System.getProperty("java.io.tmpdir")));
+        try {
+            final RecordsRing ring = new RecordsRing(Integer.getInteger(SYSP_RECORDS, 65536), JournalRecord.SIZE);
+            final JournalFiles files = new JournalFiles(dir, JournalRecord.SIZE, Long.getLong(SYSP_FILE_SIZE, 64L * 1024 * 1024), Integer.getInteger(SYSP_FILES, 4));
+            final ProtocolJournal journal = new ProtocolJournal(ring, files);
+            journal.start();
+            log.info("Protocol journal enabled, writing to {}", files.current());
+            return journal;
+        } catch (IOException ex) {
+            log.warn("Unable to start the protocol journal, falling back to logging", ex);
+            return new ProtocolJournal(null, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isEnabled() ? "enabled, " + ring : "disabled";
+    }
+}
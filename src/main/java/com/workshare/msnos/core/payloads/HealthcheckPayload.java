@@ -15,6 +15,14 @@ public class HealthcheckPayload extends PayloadAdapter {
         this.agent = agent.getIden();
         this.working = working;
     }
+
+    public HealthcheckPayload(Iden agent, boolean working) {
+        if (agent == null)
+            throw new IllegalArgumentException("Agent cannot be null!");
+            
+        this.agent = agent;
+        this.working = working;
+    }
     
     public Iden getIden() {
         return agent;
@@ -9,7 +9,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +34,8 @@ public class HttpGateway implements Gateway {
 
     private static Logger log = LoggerFactory.getLogger(HttpGateway.class);
 
+    private static final ContentType TEXT_UTF8 = ContentType.create("text/plain", "UTF-8");
+
     private final Map<Iden, HttpEndpoint> endpoints;
     private final HttpClient client;
     private final WireJsonSerializer serializer;
@@ -65,7 +68,7 @@ public class HttpGateway implements Gateway {
     private Receipt sendTo(Message message, HttpEndpoint endpoint) {
         try {
             HttpPost request = new HttpPost(endpoint.getUrl());
-            request.setEntity(new StringEntity(serializer.toText(message)));
+            request.setEntity(new ByteArrayEntity(message.encoded(serializer), TEXT_UTF8));
             HttpResponse res = client.execute(request);
             consume(res);
             return new SingleReceipt(this, Status.DELIVERED, message);
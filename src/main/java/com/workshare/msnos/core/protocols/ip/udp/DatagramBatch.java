@@ -0,0 +1,95 @@
+package com.workshare.msnos.core.protocols.ip.udp;
+
+import java.util.Arrays;
+
+/**
+ * Packs several encoded messages in one datagram. The datagram starts with a
+ * marker byte, which can never start a message on the wire (a json message
+ * starts with a brace, a binary one with the major version), followed by
+ * each message as its length on two bytes, big endian, and its bytes.
+ */
+class DatagramBatch {
+
+    static final byte MARKER = (byte) 0xB7;
+
+    private static final int HEADER = 1;
+    private static final int ENTRY_HEADER = 2;
+
+    static interface Visitor {
+        public void onEntry(byte[] data, int offset, int length);
+    }
+
+    private final byte[] buffer;
+    private int length;
+    private int count;
+
+    DatagramBatch(int capacity) {
+        this.buffer = new byte[capacity];
+        clear();
+    }
+
+    static boolean isBatch(byte[] data, int offset, int length) {
+        return length > 0 && data[offset] == MARKER;
+    }
+
+    /**
+     * Calls the visitor for each message in the batch, returning how many
+     * were found
+     */
+    static int unpack(byte[] data, int offset, int length, Visitor visitor) {
+        final int end = offset + length;
+        int count = 0;
+        int pos = offset + HEADER;
+        while (pos + ENTRY_HEADER <= end) {
+            final int size = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+            pos += ENTRY_HEADER;
+            if (size == 0 || pos + size > end)
+                throw new IllegalArgumentException("Malformed batch, entry of " + size + " bytes at " + (pos - offset));
+
+            visitor.onEntry(data, pos, size);
+            pos += size;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Tells if a message of the given size can be added
+     */
+    boolean fits(int size) {
+        return size <= 0xffff && length + ENTRY_HEADER + size <= buffer.length;
+    }
+
+    void add(byte[] message) {
+        buffer[length] = (byte) (message.length >>> 8);
+        buffer[length + 1] = (byte) message.length;
+        System.arraycopy(message, 0, buffer, length + ENTRY_HEADER, message.length);
+        length += ENTRY_HEADER + message.length;
+        count++;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Returns the datagram to be sent: the only message as it is, with no
+     * framing, if the batch holds just one
+     */
+    byte[] toBytes() {
+        if (count == 1)
+            return Arrays.copyOfRange(buffer, HEADER + ENTRY_HEADER, length);
+        else
+            return Arrays.copyOf(buffer, length);
+    }
+
+    void clear() {
+        buffer[0] = MARKER;
+        length = HEADER;
+        count = 0;
+    }
+}
@@ -12,6 +12,9 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,9 +33,21 @@ import com.workshare.msnos.core.protocols.ip.MulticastSocketFactory;
 import com.workshare.msnos.core.protocols.ip.Network;
 import com.workshare.msnos.core.receipts.SingleReceipt;
 import com.workshare.msnos.core.serializers.WireSerializer;
+import com.workshare.msnos.soup.threading.ExecutorServices;
 import com.workshare.msnos.soup.threading.Multicaster;
 import com.workshare.msnos.soup.time.SystemTime;
 
+/**
+ * Sends and receives messages over UDP multicast, each message in its own
+ * datagram, split when too big. Optionally small messages can be batched:
+ * when "com.ws.nsnos.udp.batch.window" is set to a number of milliseconds,
+ * messages sent within that window are packed in one datagram, flushed
+ * when the window expires or when it holds "com.ws.nsnos.udp.batch.bytes"
+ * bytes (the packet size by default). Batches can only be read by nodes
+ * supporting them, so all nodes have to be upgraded before enabling it.
+ * When batching, errors sending the datagram are only logged if it's
+ * flushed by the window expiring.
+ */
 public class UDPGateway implements Gateway {
 
     private static Logger logger = LoggerFactory.getLogger(UDPGateway.class);
@@ -42,6 +57,9 @@ public class UDPGateway implements Gateway {
     public static final String SYSP_UDP_GROUP = "com.ws.nsnos.udp.group";
     public static final String SYSP_UDP_PACKET_SIZE = "com.ws.nsnos.udp.packet.size";
     public static final String SYSP_RETRY_TIMES = "com.ws.nsnos.udp.group.retry.times";
+    public static final String SYSP_UDP_RECEIVE_BUFFER = "com.ws.nsnos.udp.receive.buffer";
+    public static final String SYSP_UDP_BATCH_WINDOW = "com.ws.nsnos.udp.batch.window";
+    public static final String SYSP_UDP_BATCH_BYTES = "com.ws.nsnos.udp.batch.bytes";
 
     public static final String SYSP_NET_IPV6ALSO = "com.ws.msnos.network.ipv6also";
     public static final String SYSP_NET_VIRTUAL = "com.ws.msnos.network.includevirtual";
@@ -57,6 +75,13 @@ public class UDPGateway implements Gateway {
     private final Endpoints endpoints;
     private final UDPServer server;
 
+    private final long batchWindow;
+    private final int batchBytes;
+    private final DatagramBatch batch;
+    private final ScheduledExecutorService flusher;
+    private final Runnable flush;
+    private final AtomicLong datagrams = new AtomicLong();
+    private boolean flushScheduled;
 
     public UDPGateway(MulticastSocketFactory sockets, UDPServer aServer, Multicaster<Listener, Message> caster) throws IOException {
         this.caster = caster;
@@ -65,6 +90,21 @@ public class UDPGateway implements Gateway {
         this.packetSize = Integer.getInteger(SYSP_UDP_PACKET_SIZE, 512);
         this.endpoints = createEndpoints();
         this.server = aServer;
+
+        this.batchWindow = Long.getLong(SYSP_UDP_BATCH_WINDOW, 0L);
+        this.batchBytes = Integer.getInteger(SYSP_UDP_BATCH_BYTES, packetSize);
+        this.batch = (batchWindow > 0 ? new DatagramBatch(packetSize) : null);
+        this.flusher = (batchWindow > 0 ? ExecutorServices.newSingleThreadScheduledExecutor() : null);
+        this.flush = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushBatch(true);
+                } catch (IOException ex) {
+                    logger.warn("Unable to send batch of messages trough UDP", ex);
+                }
+            }
+        };
         
         loadPorts();
         openSocket(sockets);
@@ -78,6 +118,11 @@ public class UDPGateway implements Gateway {
 
     @Override
     public void close() throws IOException {
+        if (batch != null) {
+            flushBatch(false);
+            flusher.shutdown();
+        }
+
         server.stop();
         socket.close();
     }
@@ -97,6 +142,7 @@ public class UDPGateway implements Gateway {
             try {
                 MulticastSocket msock = sockets.create();
                 msock.setReuseAddress(true);
+                setReceiveBuffer(msock);
                 msock.bind(new InetSocketAddress(port));
                 socket = msock;
                 logger.info("Socket opened on port: {} ", port);
@@ -115,8 +161,17 @@ public class UDPGateway implements Gateway {
         logger.info("Joined group " + group);
     }
 
+    private void setReceiveBuffer(MulticastSocket msock) throws IOException {
+        final Integer size = Integer.getInteger(SYSP_UDP_RECEIVE_BUFFER);
+        if (size != null) {
+            msock.setReceiveBufferSize(size);
+            logger.debug("Receive buffer requested {}, got {}", size, msock.getReceiveBufferSize());
+        }
+    }
+
     @Override
     public void addListener(Cloud cloud, Listener listener) {
+        server.addCloud(cloud);
         caster.addListener(listener);
     }
 
@@ -130,33 +185,79 @@ public class UDPGateway implements Gateway {
 
         logger.debug("send message {} ", message);
 
-        List<Payload> payloads;
-        int fullMsgLength = sz.toBytes(message).length;
-        int lengthWithoutPayload = fullMsgLength - sz.toBytes(message.getData()).length;
-
-        if (fullMsgLength > packetSize) {
-            payloads = getSplitPayloads(new ArrayList<Payload>(), message.getData(), lengthWithoutPayload);
+        final byte[] whole = message.encoded(sz);
+        if (batch != null && whole.length <= packetSize) {
+            sendBatched(whole);
+        } else if (whole.length <= packetSize) {
+            sendToAllPorts(whole);
         } else {
-            payloads = Arrays.asList(message.getData());
-        }
+            if (batch != null)
+                flushBatch(false);
 
-        for (Payload load : payloads) {
-            Message msg = message.data(load);
-            byte[] payload = sz.toBytes(msg);
-
-            for (int port : ports) {
-                DatagramPacket packet = new DatagramPacket(
-                        payload,
-                        payload.length,
-                        group,
-                        port);
-                doSend(packet);
+            int lengthWithoutPayload = whole.length - sz.toBytes(message.getData()).length;
+            List<Payload> payloads = getSplitPayloads(new ArrayList<Payload>(), message.getData(), lengthWithoutPayload);
+            for (Payload load : payloads) {
+                sendToAllPorts(message.data(load).encoded(sz));
             }
         }
 
         return new SingleReceipt(this, Status.PENDING, message);
     }
 
+    private void sendBatched(byte[] whole) throws IOException {
+        synchronized (batch) {
+            if (!batch.fits(whole.length))
+                flushBatch(false);
+
+            if (!batch.fits(whole.length)) {
+                // no room for the framing, goes alone
+                sendToAllPorts(whole);
+                return;
+            }
+
+            batch.add(whole);
+            if (batch.length() >= batchBytes) {
+                flushBatch(false);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(flush, batchWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void flushBatch(boolean expired) throws IOException {
+        synchronized (batch) {
+            if (expired)
+                flushScheduled = false;
+
+            if (batch.count() == 0)
+                return;
+
+            final byte[] payload = batch.toBytes();
+            batch.clear();
+            sendToAllPorts(payload);
+        }
+    }
+
+    /**
+     * Returns the number of datagrams sent, counting one per port
+     */
+    public long datagrams() {
+        return datagrams.get();
+    }
+
+    private void sendToAllPorts(byte[] payload) throws IOException {
+        for (int port : ports) {
+            DatagramPacket packet = new DatagramPacket(
+                    payload,
+                    payload.length,
+                    group,
+                    port);
+            doSend(packet);
+            datagrams.incrementAndGet();
+        }
+    }
+
     private void doSend(DatagramPacket packet) throws IOException {
         int count = retries;
         long wait = 0;
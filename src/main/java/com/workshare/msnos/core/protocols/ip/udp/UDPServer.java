@@ -3,29 +3,75 @@ package com.workshare.msnos.core.protocols.ip.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.workshare.msnos.core.Cloud;
 import com.workshare.msnos.core.Gateway.Listener;
 import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Version;
+import com.workshare.msnos.core.cloud.MessagePrefilter;
+import com.workshare.msnos.core.serializers.WireBinarySerializer;
 import com.workshare.msnos.core.serializers.WireJsonSerializer;
 import com.workshare.msnos.core.serializers.WireSerializer;
 import com.workshare.msnos.soup.threading.Multicaster;
 import com.workshare.msnos.soup.threading.ThreadFactories;
 
+/**
+ * Receives the UDP packets and turns them into messages for the listeners.
+ * The reader thread does nothing but move packets from the socket into a
+ * pool of preallocated buffers, so that the kernel buffer is emptied as fast
+ * as possible, while a configurable number of decoder threads drain the
+ * filled buffers in batches, decode them and dispatch the messages. When no
+ * buffer is free the packet is still read, to keep the socket flowing, but
+ * dropped. With zero decoders packets are decoded on the reader thread.
+ *
+ * A packet may also carry a batch of messages (see {@link DatagramBatch}),
+ * in which case each of them is decoded and dispatched in turn.
+ */
 public class UDPServer {
 
     private static Logger logger = Logger.getLogger(UDPServer.class.getName());
     private static final String THREAD_NAME = "UDP-Server";
-    
+    private static final String DECODER_NAME = "UDP-Decoder-";
+
+    public static final String SYSP_WIRE_VERSION = "com.ws.nsnos.udp.wire.version";
+    public static final String SYSP_DECODERS = "com.ws.nsnos.udp.decoders";
+    public static final String SYSP_BUFFERS = "com.ws.nsnos.udp.buffers";
+
+    private static final int DECODE_BATCH = 32;
+
     private final ThreadFactory threads;
     private final Multicaster<Listener, Message> multicaster;
     private final WireSerializer sz;
+    private final MessagePrefilter prefilter;
+    private final int decodersNum;
+    private final int buffersNum;
+
+    private final AtomicLong read = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong truncated = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
 
     private Thread thread;
+    private List<Thread> decoders;
     private int maxPacketSize;
     private MulticastSocket socket;
+    private BlockingQueue<DatagramPacket> free;
+    private BlockingQueue<DatagramPacket> ready;
+
+    private final DatagramBatch.Visitor unbatcher = new DatagramBatch.Visitor() {
+        @Override
+        public void onEntry(byte[] data, int offset, int length) {
+            processMessage(data, offset, length);
+        }
+    };
 
     public UDPServer() {
         this(ThreadFactories.DEFAULT, new Multicaster<Listener, Message>() {
@@ -37,9 +83,16 @@ public class UDPServer {
     }
 
     public UDPServer(ThreadFactory threads, Multicaster<Listener, Message> caster) {
-        this.sz = new WireJsonSerializer();        // hard dependency to remove in future?
+        this(threads, caster, Integer.getInteger(SYSP_DECODERS, 1));
+    }
+
+    public UDPServer(ThreadFactory threads, Multicaster<Listener, Message> caster, int decoders) {
+        this.sz = newSerializer();
+        this.prefilter = new MessagePrefilter();
         this.threads = threads;
         this.multicaster = caster;
+        this.decodersNum = Math.max(0, decoders);
+        this.buffersNum = Math.max(1, Integer.getInteger(SYSP_BUFFERS, 256));
     }
 
     public synchronized void start(MulticastSocket socket, int maxPacketSize) {
@@ -50,6 +103,9 @@ public class UDPServer {
         this.socket = socket;
         this.maxPacketSize = maxPacketSize;
 
+        if (decodersNum > 0)
+            startDecoders();
+
         thread = threads.newThread(new Runnable() {
             @Override
             public void run() {
@@ -69,28 +125,64 @@ public class UDPServer {
 
         thread.setName("-ghost-");
         thread.interrupt();
+
+        if (decoders != null)
+            for (Thread decoder : decoders)
+                decoder.interrupt();
+    }
+
+    private void startDecoders() {
+        free = new ArrayBlockingQueue<DatagramPacket>(buffersNum);
+        ready = new ArrayBlockingQueue<DatagramPacket>(buffersNum);
+        for (int i = 0; i < buffersNum; i++)
+            free.add(newPacket());
+
+        decoders = new ArrayList<Thread>();
+        for (int i = 0; i < decodersNum; i++) {
+            final Thread decoder = threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    decode(Thread.currentThread());
+                }
+            });
+
+            decoder.setDaemon(true);
+            decoder.setName(DECODER_NAME + i);
+            decoder.start();
+            decoders.add(decoder);
+        }
     }
 
     private void loop() {
 
-        byte[] buf = new byte[maxPacketSize];
+        final DatagramPacket scratch = newPacket();
 
         logger.info("Listening loop started on port " + socket.getLocalPort());
         while (!thread.isInterrupted()) {
-            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            DatagramPacket packet = (free == null ? scratch : free.poll());
+            final boolean dropping = (packet == null);
+            if (dropping)
+                packet = scratch;
+
+            packet.setData(packet.getData());
             try {
                 socket.receive(packet);
             } catch (IOException e) {
                 logger.log(Level.FINEST, "IOException receiving UDP packet", e);
+                recycle(packet, scratch);
+                continue;
             }
 
             if (thread.isInterrupted())
                 break;
 
-            try {
+            read.incrementAndGet();
+            if (dropping) {
+                dropped.incrementAndGet();
+            } else if (packet == scratch) {
                 process(packet);
-            } catch (Exception ex) {
-                logger.log(Level.WARNING, "Unable to process packet", ex);
+            } else {
+                ready.add(packet);
             }
         }
 
@@ -98,11 +190,67 @@ public class UDPServer {
         logger.info("Listening loop ended!");
     }
 
+    private void decode(Thread current) {
+        final List<DatagramPacket> batch = new ArrayList<DatagramPacket>(DECODE_BATCH);
+        while (!current.isInterrupted()) {
+            try {
+                batch.add(ready.take());
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            ready.drainTo(batch, DECODE_BATCH - 1);
+            for (DatagramPacket packet : batch) {
+                process(packet);
+                free.add(packet);
+            }
+            batch.clear();
+        }
+    }
+
+    private void recycle(DatagramPacket packet, DatagramPacket scratch) {
+        if (packet != scratch)
+            free.add(packet);
+    }
+
+    private DatagramPacket newPacket() {
+        // one byte more than the maximum, so that we can spot truncated packets
+        final byte[] buf = new byte[maxPacketSize + 1];
+        return new DatagramPacket(buf, buf.length);
+    }
+
     private void process(DatagramPacket packet) {
-        Message message = (Message) sz.fromBytes(packet.getData(), 0, packet.getLength(), Message.class);
-        logger.log(Level.FINEST, "Received message {} ", message.toString());
+        try {
+            if (packet.getLength() > maxPacketSize) {
+                truncated.incrementAndGet();
+                logger.log(Level.FINE, "Dropped packet bigger than " + maxPacketSize + " bytes");
+                return;
+            }
 
-        sendToListeners(message);
+            if (DatagramBatch.isBatch(packet.getData(), packet.getOffset(), packet.getLength())) {
+                batches.incrementAndGet();
+                DatagramBatch.unpack(packet.getData(), packet.getOffset(), packet.getLength(), unbatcher);
+            } else {
+                processMessage(packet.getData(), packet.getOffset(), packet.getLength());
+            }
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Unable to process packet", ex);
+        }
+    }
+
+    private void processMessage(byte[] data, int offset, int length) {
+        try {
+            if (!prefilter.accepts(data, offset, length))
+                return;
+
+            Message message = (Message) sz.fromBytes(data, offset, length, Message.class);
+            if (logger.isLoggable(Level.FINEST))
+                logger.log(Level.FINEST, "Received message {0}", message);
+
+            sendToListeners(message);
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Unable to process message", ex);
+        }
     }
 
     private void sendToListeners(Message message) {
@@ -113,7 +261,41 @@ public class UDPServer {
         multicaster.addListener(listener);
     }
 
+    public void addCloud(Cloud cloud) {
+        prefilter.add(cloud);
+    }
+
+    public long read() {
+        return read.get();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public long truncated() {
+        return truncated.get();
+    }
+
+    public long batches() {
+        return batches.get();
+    }
+
+    public MessagePrefilter prefilter() {
+        return prefilter;
+    }
+
     public WireSerializer serializer() {
         return sz;
     }
+
+    // both serializers are able to decode each other messages, the version only drives what we send
+    private static WireSerializer newSerializer() {
+        final Version version = Version.parse(System.getProperty(SYSP_WIRE_VERSION, Version.V1_0.getMajor()+"."+Version.V1_0.getMinor()));
+        if (WireBinarySerializer.WIRE_VERSION.equals(version)) {
+            logger.info("Using binary wire format on UDP");
+            return new WireBinarySerializer();
+        } else
+            return new WireJsonSerializer();
+    }
 }
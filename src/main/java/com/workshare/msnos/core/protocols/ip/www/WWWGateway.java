@@ -35,10 +35,12 @@ import com.workshare.msnos.core.Identifiable;
 import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.Message.Status;
 import com.workshare.msnos.core.Receipt;
+import com.workshare.msnos.core.cloud.MessagePrefilter;
 import com.workshare.msnos.core.protocols.ip.BaseEndpoint;
 import com.workshare.msnos.core.protocols.ip.Endpoints;
 import com.workshare.msnos.core.protocols.ip.www.WWWSynchronizer.Processor;
 import com.workshare.msnos.core.receipts.SingleReceipt;
+import com.workshare.msnos.core.serializers.MessageHeader;
 import com.workshare.msnos.core.serializers.WireSerializer;
 import com.workshare.msnos.soup.threading.ConcurrentBuildingMap;
 import com.workshare.msnos.soup.threading.ConcurrentBuildingMap.Factory;
@@ -67,6 +69,7 @@ public class WWWGateway implements Gateway {
     private final Map<Cloud, Queue<Message>> cloudMessages;
     private final Multicaster<Listener, Message> caster;
     private final WWWSynchronizer synchro;
+    private final MessagePrefilter prefilter;
 
     private final String urlRoot;
     private final String urlMsgs;
@@ -86,6 +89,7 @@ public class WWWGateway implements Gateway {
         this.caster = caster;
         this.scheduler = scheduler;
         this.serializer = serializer;
+        this.prefilter = new MessagePrefilter();
         this.cloudListeners = new ConcurrentHashMap<Cloud, UUID>();
         this.cloudMessages = new ConcurrentBuildingMap<Cloud, Queue<Message>>(new Factory<Queue<Message>>() {
             @Override
@@ -139,6 +143,7 @@ public class WWWGateway implements Gateway {
     @Override
     public void addListener(Cloud cloud, Listener listener) {
         cloudListeners.put(cloud, NULL);
+        prefilter.add(cloud);
         caster.addListener(listener);
     }
 
@@ -147,6 +152,10 @@ public class WWWGateway implements Gateway {
         return BaseEndpoint.create();
     }
 
+    public MessagePrefilter prefilter() {
+        return prefilter;
+    }
+
     @Override
     public Receipt send(Cloud cloud, Message message, Identifiable to) throws IOException {
         cloudMessages.get(cloud).add(message);
@@ -232,8 +241,17 @@ public class WWWGateway implements Gateway {
                 BufferedReader in = new BufferedReader(new InputStreamReader(res.getEntity().getContent(), "UTF-8"));
                 try {
                     String line;
-                    Message last = null;
+                    UUID last = null;
                     while ((line = in.readLine()) != null) {
+                        // the synchronizer needs the whole history, otherwise skip what would be rejected anyway
+                        if (processor == null) {
+                            final MessageHeader header = MessageHeader.peek(line);
+                            if (!prefilter.accepts(header)) {
+                                last = header.getUuid();
+                                continue;
+                            }
+                        }
+
                         Message msg = serializer.fromText(line, Message.class);
                         if (msg != null) {
                             ++total;
@@ -241,13 +259,13 @@ public class WWWGateway implements Gateway {
                                 processor.accept(msg);
                             else
                                 caster.dispatch(msg);
-                            last = msg;
+                            last = msg.getUuid();
                         }
                     }
 
                     log.debug("last message read: {}", last);
                     if (last != null)
-                        cloudListeners.put(cloud, last.getUuid());
+                        cloudListeners.put(cloud, last);
                     else if (uuid == NULL)
                         cloudListeners.put(cloud, VOID);
 
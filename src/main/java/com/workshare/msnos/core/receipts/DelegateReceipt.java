@@ -1,5 +1,7 @@
 package com.workshare.msnos.core.receipts;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -11,13 +13,23 @@ import com.workshare.msnos.core.Receipt;
 public class DelegateReceipt implements Receipt {
 
     private volatile Receipt delegate = this;
+    private List<Callback> pending = new ArrayList<Callback>(2);
 
     public DelegateReceipt(Message message) {
         delegate = new SingleReceipt(NullGateway.NAME, Status.UNKNOWN, message);
     }
 
     public void setDelegate(Receipt delegate) {
-        this.delegate = delegate;
+        final List<Callback> moved;
+        synchronized (this) {
+            this.delegate = delegate;
+            moved = pending;
+            pending = null;
+        }
+
+        if (moved != null)
+            for (Callback callback : moved)
+                forward(delegate, callback);
     }
 
     @Override
@@ -36,29 +48,40 @@ public class DelegateReceipt implements Receipt {
     }
 
     @Override
-    public boolean waitForDelivery(long amount, TimeUnit unit) throws InterruptedException {
-
-        final long tenth = unit.toMillis(amount)/10;
-        while(amount > 0) {
-            if (isDelegatePresent())
-                break;
+    public UUID getCoalescedInto() {
+        return delegate.getCoalescedInto();
+    }
 
-            justWait(tenth);
-            amount-=tenth;
+    @Override
+    public void onComplete(Callback callback) {
+        final Receipt target;
+        synchronized (this) {
+            if (pending != null) {
+                pending.add(callback);
+                return;
+            }
+            target = delegate;
         }
 
-        if (amount > 0)
-            return delegate.waitForDelivery(amount, unit);
-        else
-            return false;
+        forward(target, callback);
     }
 
-    private boolean isDelegatePresent() {
-        return delegate.getGate() != NullGateway.NAME;
+    @Override
+    public boolean waitForDelivery(long amount, TimeUnit unit) throws InterruptedException {
+        return Receipts.await(this, amount, unit);
     }
 
-    private synchronized void justWait(long millis) throws InterruptedException {
-        this.wait(millis);
-    }
+    private void forward(Receipt target, final Callback callback) {
+        if (Receipts.isComplete(target.getStatus())) {
+            Receipts.fire(callback, this);
+            return;
+        }
 
+        target.onComplete(new Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                Receipts.fire(callback, DelegateReceipt.this);
+            }
+        });
+    }
 }
@@ -1,5 +1,6 @@
 package com.workshare.msnos.core.receipts;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -12,23 +13,65 @@ import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.Receipt;
 import com.workshare.msnos.core.Message.Status;
 
+/**
+ * Combines the receipts of a message sent through several gateways. With the
+ * default policy the message is delivered as soon as one of them delivers it
+ * and failed only when all of them failed; with {@link Policy#ALL_DELIVERED}
+ * it's delivered only when all of them delivered it and failed as soon as one
+ * of them fails. Receipts added later take part in the outcome.
+ */
 public class MultiReceipt implements Receipt {
 
+    public static enum Policy {FIRST_DELIVERED, ALL_DELIVERED}
+
     private final UUID messageUuid;
+    private final Policy policy;
     private final Set<Receipt> receipts;
-     
+
+    private final List<Callback> callbacks = new ArrayList<Callback>(2);
+    private boolean listening;
+    private boolean completed;
+
+    private final Callback childCompleted = new Callback() {
+        @Override
+        public void onComplete(Receipt receipt) {
+            checkCompleted();
+        }
+    };
+
     public MultiReceipt(Message message, Receipt... someReceipts) {
         this(message, Arrays.asList(someReceipts));
     }
     
     public MultiReceipt(Message message, List<Receipt> someReceipts) {
+        this(message, Policy.FIRST_DELIVERED, someReceipts);
+    }
+
+    public MultiReceipt(Message message, Policy policy, List<Receipt> someReceipts) {
         this.messageUuid = message.getUuid();
+        this.policy = policy;
         this.receipts = Collections.newSetFromMap(new ConcurrentHashMap<Receipt, Boolean>());
         receipts.addAll(someReceipts);
     }
-    
+
+    public static MultiReceipt firstDelivered(Message message, Receipt... someReceipts) {
+        return new MultiReceipt(message, Policy.FIRST_DELIVERED, Arrays.asList(someReceipts));
+    }
+
+    public static MultiReceipt allDelivered(Message message, Receipt... someReceipts) {
+        return new MultiReceipt(message, Policy.ALL_DELIVERED, Arrays.asList(someReceipts));
+    }
+
     public void add(Receipt receipt) {
         receipts.add(receipt);
+
+        final boolean register;
+        synchronized (this) {
+            register = listening;
+        }
+
+        if (register)
+            receipt.onComplete(childCompleted);
     }
 
     public Set<Receipt> getReceipts() {
@@ -39,7 +82,14 @@ public class MultiReceipt implements Receipt {
         return messageUuid;
     }
 
+    public Policy getPolicy() {
+        return policy;
+    }
+
     public Status getStatus() {
+        if (policy == Policy.ALL_DELIVERED)
+            return getStatusOfAll();
+
         Status status = Status.UNKNOWN;
         for (Receipt receipt : receipts) {
             if (receipt.getStatus() == Status.FAILED  && status == Status.UNKNOWN) {
@@ -57,34 +107,78 @@ public class MultiReceipt implements Receipt {
         return status;
     }
 
-    public boolean waitForDelivery(long amount, TimeUnit unit) throws InterruptedException {
-
-        final long tenth = unit.toMillis(amount)/10;
-        while(amount > 0) {
-            amount-=tenth;
-            if (receipts.size() == 0)
-                justWait(tenth);
-            else
-                if (waitForDelivery(tenth))
-                    return true;
+    private Status getStatusOfAll() {
+        Status status = Status.UNKNOWN;
+        boolean allDelivered = !receipts.isEmpty();
+        for (Receipt receipt : receipts) {
+            final Status current = receipt.getStatus();
+            if (current == Status.FAILED)
+                return Status.FAILED;
+
+            if (current != Status.DELIVERED) {
+                allDelivered = false;
+                if (current == Status.PENDING)
+                    status = Status.PENDING;
+            }
         }
 
-        return getStatus() == Status.DELIVERED;
+        return allDelivered ? Status.DELIVERED : status;
     }
 
-    private synchronized void justWait(long millis) throws InterruptedException {
-        this.wait(millis);
-    }
+    private boolean isComplete() {
+        if (policy == Policy.ALL_DELIVERED)
+            return Receipts.isComplete(getStatusOfAll());
 
-    private boolean waitForDelivery(long millis) throws InterruptedException {
-        long slice = millis / receipts.size();
+        boolean allFailed = !receipts.isEmpty();
         for (Receipt receipt : receipts) {
-            boolean res = receipt.waitForDelivery(slice, TimeUnit.MILLISECONDS);
-            if (res == true)
+            final Status current = receipt.getStatus();
+            if (current == Status.DELIVERED)
                 return true;
+            if (current != Status.FAILED)
+                allFailed = false;
         }
-        
-        return false;
+
+        return allFailed;
+    }
+
+    @Override
+    public void onComplete(Callback callback) {
+        final boolean register;
+        synchronized (this) {
+            callbacks.add(callback);
+            register = !listening;
+            listening = true;
+        }
+
+        if (register)
+            for (Receipt receipt : receipts)
+                receipt.onComplete(childCompleted);
+
+        checkCompleted();
+    }
+
+    private void checkCompleted() {
+        final List<Callback> completing;
+        synchronized (this) {
+            if (!completed) {
+                if (!isComplete())
+                    return;
+                completed = true;
+            }
+
+            if (callbacks.isEmpty())
+                return;
+
+            completing = new ArrayList<Callback>(callbacks);
+            callbacks.clear();
+        }
+
+        for (Callback callback : completing)
+            Receipts.fire(callback, this);
+    }
+
+    public boolean waitForDelivery(long amount, TimeUnit unit) throws InterruptedException {
+        return Receipts.await(this, amount, unit);
     }
 
     public int size() {
@@ -109,6 +203,11 @@ public class MultiReceipt implements Receipt {
         return buffer.toString();
     }
 
+    @Override
+    public UUID getCoalescedInto() {
+        return null;
+    }
+
     @Override
     public String toString() {
         return getStatus()+":"+messageUuid;
@@ -0,0 +1,138 @@
+package com.workshare.msnos.core.receipts;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.workshare.msnos.core.Message.Status;
+import com.workshare.msnos.core.Receipt;
+import com.workshare.msnos.core.Receipt.Callback;
+import com.workshare.msnos.soup.threading.ExecutorServices;
+
+/**
+ * Helpers to wait on receipts without blocking a thread for each of them:
+ * all timeouts are driven by one shared timer thread, which only fires
+ * callbacks, so callbacks registered here should not block either.
+ * 
+ * The timer does not schedule a task for each receipt, as cancelled tasks
+ * would linger in its queue until their delay expires: it sweeps instead
+ * the pending receipts every few milliseconds, firing the expired ones and
+ * forgetting the ones already completed.
+ */
+public class Receipts {
+
+    private static final Logger log = LoggerFactory.getLogger(Receipts.class);
+
+    private static final long SWEEP_MILLIS = 10L;
+
+    private static final ScheduledExecutorService TIMER = ExecutorServices.newSingleThreadScheduledExecutor();
+    private static final Queue<Pending> PENDING = new ConcurrentLinkedQueue<Pending>();
+
+    static {
+        TIMER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private Receipts() {
+    }
+
+    public static boolean isComplete(Status status) {
+        return status == Status.DELIVERED || status == Status.FAILED;
+    }
+
+    /**
+     * Invokes the callback once, when the receipt completes or when the
+     * timeout expires, whatever comes first: the callback can tell by
+     * checking the status of the receipt
+     */
+    public static void onComplete(final Receipt receipt, long amount, TimeUnit unit, final Callback callback) {
+        final Pending pending = new Pending(receipt, System.nanoTime() + unit.toNanos(amount), callback);
+        receipt.onComplete(new Callback() {
+            @Override
+            public void onComplete(Receipt completed) {
+                pending.fire();
+            }
+        });
+
+        // an already completed receipt fired straight away, nothing to time
+        if (!pending.fired.get())
+            PENDING.add(pending);
+    }
+
+    /**
+     * Blocks until the receipt completes or the timeout expires, returning
+     * true if the message was delivered
+     */
+    public static boolean await(Receipt receipt, long amount, TimeUnit unit) throws InterruptedException {
+        if (!isComplete(receipt.getStatus())) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            receipt.onComplete(new Callback() {
+                @Override
+                public void onComplete(Receipt completed) {
+                    latch.countDown();
+                }
+            });
+            latch.await(amount, unit);
+        }
+
+        return receipt.getStatus() == Status.DELIVERED;
+    }
+
+    static boolean isPending(Receipt receipt) {
+        for (Pending pending : PENDING)
+            if (pending.receipt == receipt)
+                return true;
+
+        return false;
+    }
+
+    private static void sweep() {
+        final long now = System.nanoTime();
+        for (Iterator<Pending> it = PENDING.iterator(); it.hasNext();) {
+            final Pending pending = it.next();
+            if (pending.fired.get()) {
+                it.remove();
+            } else if (now - pending.deadline >= 0) {
+                it.remove();
+                pending.fire();
+            }
+        }
+    }
+
+    static void fire(Callback callback, Receipt receipt) {
+        try {
+            callback.onComplete(receipt);
+        } catch (RuntimeException ex) {
+            log.warn("Unexpected exception completing receipt " + receipt, ex);
+        }
+    }
+
+    private static final class Pending {
+        private final Receipt receipt;
+        private final long deadline;
+        private final Callback callback;
+        private final AtomicBoolean fired = new AtomicBoolean();
+
+        Pending(Receipt receipt, long deadline, Callback callback) {
+            this.receipt = receipt;
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+
+        void fire() {
+            if (fired.compareAndSet(false, true))
+                Receipts.fire(callback, receipt);
+        }
+    }
+}
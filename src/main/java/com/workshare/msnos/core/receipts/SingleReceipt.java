@@ -1,5 +1,7 @@
 package com.workshare.msnos.core.receipts;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -8,7 +10,6 @@ import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.Message.Status;
 import com.workshare.msnos.core.protocols.ip.NullGateway;
 import com.workshare.msnos.core.Receipt;
-import com.workshare.msnos.soup.time.SystemTime;
 
 public class SingleReceipt implements Receipt {
 
@@ -16,6 +17,16 @@ public class SingleReceipt implements Receipt {
     
     private String gate;
     private Status status;
+    private SingleReceipt newer;
+    private List<Callback> callbacks;
+
+    // keeps following the receipt this was updated from, until it completes
+    private final Callback follow = new Callback() {
+        @Override
+        public void onComplete(Receipt receipt) {
+            update(receipt);
+        }
+    };
 
     public SingleReceipt(Gateway gateway, Status status, Message message) {
         this(gateway.name(), status, message);
@@ -34,50 +45,95 @@ public class SingleReceipt implements Receipt {
 
     @Override
     public synchronized Status getStatus() {
-        return status;
+        return newer == null ? status : newer.getStatus();
     }
 
-    public synchronized void update(Receipt other) {
-        if (!messageUuid.equals(other.getMessageUuid()))
-            throw new IllegalArgumentException("You cannot update a receipt related to another message!");
+    public void update(Receipt other) {
+        final List<Callback> completed;
+        synchronized (this) {
+            if (!messageUuid.equals(other.getMessageUuid()))
+                throw new IllegalArgumentException("You cannot update a receipt related to another message!");
+
+            this.gate = other.getGate();
+            this.status = other.getStatus();
+            completed = (newer == null && Receipts.isComplete(status) ? takeCallbacks() : null);
+        }
 
-        this.gate = other.getGate();
-        this.status = other.getStatus();
-        notifyAll();
+        fire(completed);
+        if (!Receipts.isComplete(other.getStatus()) && other != this)
+            other.onComplete(follow);
     }
 
-    @Override
-    public synchronized boolean waitForDelivery(long amount, TimeUnit unit) throws InterruptedException {
-        switch (status) {
-            case DELIVERED:
-                return true;
+    /**
+     * Marks the message of this receipt as superseded by a newer one, which
+     * will be sent in its place
+     */
+    public void coalesce(SingleReceipt newer) {
+        final List<Callback> moved;
+        synchronized (this) {
+            this.newer = newer;
+            moved = takeCallbacks();
+        }
 
-            case FAILED:
-                return false;
+        if (moved != null)
+            for (Callback callback : moved)
+                newer.onComplete(forward(callback));
+    }
 
-            default:
-                doWaitForDelivery(amount, unit);
-                return status == Status.DELIVERED;
-        }
+    @Override
+    public synchronized UUID getCoalescedInto() {
+        return newer == null ? null : newer.getMessageUuid();
     }
 
-    private void doWaitForDelivery(long amount, TimeUnit unit) throws InterruptedException {
-        final long start = SystemTime.asMillis();
-        final long total = unit.toMillis(amount);
-        while(elapsedFrom(start) < total) {
-            this.wait(total);
-            if (status == Status.DELIVERED || status == Status.FAILED)
+    @Override
+    public void onComplete(Callback callback) {
+        final SingleReceipt target;
+        synchronized (this) {
+            if (newer == null && !Receipts.isComplete(status)) {
+                if (callbacks == null)
+                    callbacks = new ArrayList<Callback>(2);
+                callbacks.add(callback);
                 return;
+            }
+            target = newer;
         }
+
+        if (target == null)
+            Receipts.fire(callback, this);
+        else
+            target.onComplete(forward(callback));
+    }
+
+    @Override
+    public boolean waitForDelivery(long amount, TimeUnit unit) throws InterruptedException {
+        return Receipts.await(this, amount, unit);
+    }
+
+    private List<Callback> takeCallbacks() {
+        final List<Callback> taken = callbacks;
+        callbacks = null;
+        return taken;
+    }
+
+    private void fire(List<Callback> completed) {
+        if (completed != null)
+            for (Callback callback : completed)
+                Receipts.fire(callback, this);
     }
 
-    private final long elapsedFrom(long start) {
-        return SystemTime.asMillis() - start;
+    // reports the completion of the newer message as completion of this one
+    private Callback forward(final Callback callback) {
+        return new Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                Receipts.fire(callback, SingleReceipt.this);
+            }
+        };
     }
 
     @Override
-    public String getGate() {
-        return gate;
+    public synchronized String getGate() {
+        return newer == null ? gate : newer.getGate();
     }
     
     @Override
@@ -1,27 +1,45 @@
 package com.workshare.msnos.core.routing;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.workshare.msnos.core.Iden.Type;
 import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Message.Status;
 import com.workshare.msnos.core.Receipt;
 import com.workshare.msnos.core.RemoteAgent;
 import com.workshare.msnos.core.Ring;
 import com.workshare.msnos.core.receipts.MultiReceipt;
+import com.workshare.msnos.core.receipts.Receipts;
+import com.workshare.msnos.core.receipts.SingleReceipt;
 
+/**
+ * Broadcasts a cloud message via UDP and, through HTTP, to a few relays in
+ * each of the other rings. The HTTP sends run concurrently on the router
+ * fanout executor, so a slow ring does not hold the others: each ring gets
+ * up to "maximum messages per ring" lanes, each one trying the relays of
+ * the ring in turn, best scored first, until one accepts the message, and failing when no
+ * relay is left or the broadcast deadline expires, or straight away when the
+ * fanout executor is full. The returned receipt completes as the lanes do.
+ */
 public class CloudRouteBroadcast extends Route {
 
     private final int maximumHops;
     private final int maximumMessagesForRing;
+    private final long deadline;
 
     public CloudRouteBroadcast(Router router) {
         super(router);
         maximumHops = Integer.getInteger(Router.SYSP_MAXIMUM_HOPS_CLOUD, 10);
         maximumMessagesForRing = Integer.getInteger(Router.SYSP_MAXIMUM_MESSAGES_PER_RING, 2);
+        deadline = Long.getLong(Router.SYSP_BROADCAST_DEADLINE, 5000L);
     }
 
     @Override
@@ -37,46 +55,84 @@ public class CloudRouteBroadcast extends Route {
     }
 
     private void sendViaHTTP(Message message, List<Receipt> receipts) {
-
-        RingCounter rings = new RingCounter();
-        
-        Collection<RemoteAgent> agents = cloud.getRemoteAgents();
-        for (RemoteAgent remote : agents) {
-            final Ring ring = remote.getRing();
+        for (Ring ring : cloud.getRemoteRelayRings()) {
             if (ring.equals(cloud.getRing()))
                 continue;
 
-            if (!router.hasRouteFor(remote))
-                continue;
+            final List<RemoteAgent> ranking = router.scoreboard().rank(cloud.getRemoteRelays(ring));
+            final int count = Math.min(maximumMessagesForRing, ranking.size());
+            final Lanes lanes = new Lanes(ring, ranking, count);
+            for (int i = 0; i < count; i++)
+                receipts.add(startLane(message, lanes));
+        }
+    }
 
-            if (rings.size(ring) == maximumMessagesForRing)
-                continue;
+    private Receipt startLane(final Message message, final Lanes lanes) {
+        final SingleReceipt lane = new SingleReceipt(router.httpGateway(), Status.PENDING, message);
+        final AtomicBoolean done = new AtomicBoolean();
+        Receipts.onComplete(lane, deadline, TimeUnit.MILLISECONDS, new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                complete(lanes, lane, done, Status.FAILED, message);
+            }
+        });
 
-            receipts.add(router.sendViaHTTP(message, remote, maximumHops, "HTTP-VIA-RING"));
-            rings.count(ring);
+        try {
+            runLane(message, lanes, lane, done);
+        } catch (RejectedExecutionException ex) {
+            router.skip(message, "HTTP-VIA-RING-BUSY");
+            complete(lanes, lane, done, Status.FAILED, message);
+        }
+
+        return lane;
+    }
+
+    private void runLane(final Message message, final Lanes lanes, final SingleReceipt lane, final AtomicBoolean done) {
+        router.fanout().execute(new Runnable() {
+            @Override
+            public void run() {
+                RemoteAgent relay;
+                while (!done.get() && (relay = lanes.relays.poll()) != null) {
+                    final Receipt receipt = router.sendViaHTTP(message, relay, maximumHops, "HTTP-VIA-RING");
+                    if (receipt.getStatus() == Status.DELIVERED) {
+                        lanes.chosen.compareAndSet(null, relay);
+                        complete(lanes, lane, done, Status.DELIVERED, message);
+                        return;
+                    }
+                }
+
+                complete(lanes, lane, done, Status.FAILED, message);
+            }
+        });
+    }
+
+    // the first outcome wins, whether the send or the deadline
+    private void complete(Lanes lanes, SingleReceipt lane, AtomicBoolean done, Status status, Message message) {
+        if (done.compareAndSet(false, true)) {
+            lane.update(new SingleReceipt(router.httpGateway(), status, message));
+            if (lanes.pending.decrementAndGet() == 0)
+                router.scoreboard().decided(lanes.ring, "HTTP-VIA-RING", lanes.ranking, lanes.chosen.get());
         }
     }
 
     private void sendViaUDP(Message message, List<Receipt> receipts) {
         receipts.add(router.sendViaUDP(message, maximumHops, "UDP-BROADCAST"));
     }
-    
-    public static class RingCounter {
-        private Map<Ring, Integer> counters = new HashMap<Ring, Integer>();
- 
-        public void count(Ring ring) {
-            Integer val = counters.get(ring);
-            if (val == null) 
-                val = Integer.valueOf(1);
-            else
-                val = Integer.valueOf(val.intValue()+1);
-
-            counters.put(ring, val);
-        }
-        
-        public int size(Ring ring) {
-            Integer val = counters.get(ring);
-            return (val == null ? 0 : val.intValue());
+
+    // the lanes to a ring, sharing its relays and recording one decision when all are done
+    private static final class Lanes {
+        private final Ring ring;
+        private final List<RemoteAgent> ranking;
+        private final Queue<RemoteAgent> relays;
+        private final AtomicInteger pending;
+        private final AtomicReference<RemoteAgent> chosen;
+
+        Lanes(Ring ring, List<RemoteAgent> ranking, int count) {
+            this.ring = ring;
+            this.ranking = ranking;
+            this.relays = new ConcurrentLinkedQueue<RemoteAgent>(ranking);
+            this.pending = new AtomicInteger(count);
+            this.chosen = new AtomicReference<RemoteAgent>();
         }
     }
 }
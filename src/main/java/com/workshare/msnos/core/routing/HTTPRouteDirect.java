@@ -5,17 +5,28 @@ import com.workshare.msnos.core.Message.Status;
 import com.workshare.msnos.core.Receipt;
 import com.workshare.msnos.core.RemoteAgent;
 
+/**
+ * Sends the message straight to the destination over HTTP. A destination
+ * which kept failing lately is not tried, so that the message goes through
+ * the following routes at once: as its failure rate decays it gets tried
+ * again.
+ */
 public class HTTPRouteDirect extends Route {
 
+    private static final int MINIMUM_SAMPLES = 3;
+
+    private final double skipThreshold;
+
     public HTTPRouteDirect(Router router) {
         super(router);
+        skipThreshold = Integer.getInteger(Router.SYSP_SCORE_SKIP, 90) / 100.0;
     }
 
     @Override
     public Receipt send(Message message) {
         RemoteAgent remote = cloud.getRemoteAgent(message.getTo());
         if (remote != null) {
-            if (router.hasRouteFor(remote)) {
+            if (router.hasRouteFor(remote) && !isFailing(remote)) {
                 final Receipt receipt = router.sendViaHTTP(message, remote, 0, "HTTP-DIRECT");
                 if (receipt.getStatus() == Status.DELIVERED) {
                     return receipt;
@@ -25,4 +36,9 @@ public class HTTPRouteDirect extends Route {
 
         return null;
     }
+
+    private boolean isFailing(RemoteAgent remote) {
+        final RouteScoreboard.Score score = router.scoreboard().score(remote.getIden());
+        return score != null && score.samples() >= MINIMUM_SAMPLES && score.failureRate() >= skipThreshold;
+    }
 }
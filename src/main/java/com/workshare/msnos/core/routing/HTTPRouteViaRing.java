@@ -1,17 +1,45 @@
 package com.workshare.msnos.core.routing;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.Message.Status;
 import com.workshare.msnos.core.Receipt;
 import com.workshare.msnos.core.RemoteAgent;
 import com.workshare.msnos.core.Ring;
+import com.workshare.msnos.soup.time.SystemTime;
 
+/**
+ * Sends the message to a relay in the ring of the destination, trying the
+ * relays one after the other, best scored first, until one accepts it. When hedging is enabled
+ * the attempts run on the router fanout executor and, if a relay does not
+ * answer within the given percentile of the latencies observed so far, the
+ * message is also sent to the next relay, taking the first delivery: the
+ * destination drops the duplicates. Hedges are capped per message and in
+ * total, so that a slow ring does not double the traffic.
+ */
 public class HTTPRouteViaRing extends Route {
 
+    private final boolean hedging;
+    private final int maximumHedges;
+    private final int maximumHedgesInFlight;
+    private final LatencyWindow latencies;
+    private final AtomicInteger hedgesInFlight = new AtomicInteger();
+
     public HTTPRouteViaRing(Router router) {
         super(router);
+        hedging = Boolean.getBoolean(Router.SYSP_HEDGE_ENABLED);
+        maximumHedges = Integer.getInteger(Router.SYSP_HEDGE_MAX, 1);
+        maximumHedgesInFlight = Integer.getInteger(Router.SYSP_HEDGE_INFLIGHT, 16);
+        latencies = new LatencyWindow(256, Integer.getInteger(Router.SYSP_HEDGE_PERCENTILE, 95), Long.getLong(Router.SYSP_HEDGE_DELAY, 200L));
     }
 
     @Override
@@ -21,23 +49,112 @@ public class HTTPRouteViaRing extends Route {
             return null;
 
         Ring ring = remote.getRing();
-        Collection<RemoteAgent> agents = cloud.getRemoteAgents();
-        for (RemoteAgent agent : agents) {
-            if (agent.getIden().equals(message.getTo()))
-                continue;
-            
-            if (!ring.equals(agent.getRing()))
-                continue;
+        List<RemoteAgent> relays = new ArrayList<RemoteAgent>();
+        for (RemoteAgent agent : router.scoreboard().rank(cloud.getRemoteRelays(ring))) {
+            if (!agent.getIden().equals(message.getTo()))
+                relays.add(agent);
+        }
+
+        if (relays.isEmpty())
+            return null;
 
-            if (!router.hasRouteFor(agent))
-                continue;
+        final Attempt chosen = (hedging ? sendHedged(message, relays) : sendInTurn(message, relays));
+        if (chosen == null)
+            return null;
+
+        router.chose(relays, chosen.relay);
+        return chosen.receipt;
+    }
 
+    private Attempt sendInTurn(Message message, Collection<RemoteAgent> relays) {
+        for (RemoteAgent agent : relays) {
             final Receipt receipt = router.sendViaHTTP(message, agent, 1, "HTTP-RINGD");
             if (receipt.getStatus() == Status.DELIVERED) {
-                return receipt;
+                return new Attempt(agent, receipt);
             }
         }
 
         return null;
     }
+
+    private Attempt sendHedged(Message message, Collection<RemoteAgent> relays) {
+        final BlockingQueue<Attempt> results = new LinkedBlockingQueue<Attempt>();
+        final Iterator<RemoteAgent> next = relays.iterator();
+
+        int outstanding = 0;
+        int hedges = 0;
+        if (next.hasNext()) {
+            attempt(message, next.next(), results, false);
+            outstanding++;
+        }
+
+        try {
+            while (outstanding > 0) {
+                final boolean canHedge = next.hasNext() && hedges < maximumHedges;
+                final Attempt attempt = (canHedge ? results.poll(latencies.percentile(), TimeUnit.MILLISECONDS) : results.take());
+                if (attempt == null) {
+                    if (hedgesInFlight.incrementAndGet() <= maximumHedgesInFlight) {
+                        attempt(message, next.next(), results, true);
+                        outstanding++;
+                        hedges++;
+                    } else {
+                        hedgesInFlight.decrementAndGet();
+                        hedges = maximumHedges;
+                    }
+                    continue;
+                }
+
+                outstanding--;
+                if (attempt.receipt.getStatus() == Status.DELIVERED)
+                    return attempt;
+
+                // a failure is not a hedge: move on to the next relay
+                if (next.hasNext()) {
+                    attempt(message, next.next(), results, false);
+                    outstanding++;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+
+    private void attempt(final Message message, final RemoteAgent relay, final BlockingQueue<Attempt> results, final boolean hedge) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemTime.asMillis();
+                Receipt receipt = null;
+                try {
+                    receipt = router.sendViaHTTP(message, relay, 1, hedge ? "HTTP-RINGD-HEDGE" : "HTTP-RINGD");
+                    if (receipt.getStatus() == Status.DELIVERED)
+                        latencies.record(SystemTime.asMillis() - start);
+                } finally {
+                    if (hedge)
+                        hedgesInFlight.decrementAndGet();
+                    results.add(new Attempt(relay, receipt != null ? receipt : router.skip(message, "HTTP-RINGD-ERROR")));
+                }
+            }
+        };
+
+        try {
+            router.fanout().execute(task);
+        } catch (RejectedExecutionException ex) {
+            if (hedge)
+                hedgesInFlight.decrementAndGet();
+            results.add(new Attempt(relay, router.skip(message, "HTTP-RINGD-BUSY")));
+        }
+    }
+
+    private static final class Attempt {
+        private final RemoteAgent relay;
+        private final Receipt receipt;
+
+        Attempt(RemoteAgent relay, Receipt receipt) {
+            this.relay = relay;
+            this.receipt = receipt;
+        }
+    }
 }
@@ -0,0 +1,48 @@
+package com.workshare.msnos.core.routing;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latest latencies observed and tells their percentiles. The
+ * percentile is recomputed once every few samples, so reading it is cheap;
+ * until enough samples are collected the given default is returned.
+ */
+class LatencyWindow {
+
+    private static final int RECOMPUTE_EVERY = 16;
+
+    private final long[] samples;
+    private final int percentile;
+
+    private int count;
+    private int next;
+    private long recorded;
+    private volatile long current;
+
+    LatencyWindow(int size, int percentile, long byDefault) {
+        this.samples = new long[size];
+        this.percentile = Math.max(1, Math.min(100, percentile));
+        this.current = byDefault;
+    }
+
+    synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length)
+            count++;
+
+        if (++recorded % RECOMPUTE_EVERY == 0)
+            current = compute();
+    }
+
+    long percentile() {
+        return current;
+    }
+
+    private long compute() {
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -25,4 +25,14 @@ abstract class Route {
      * @throws IOException 
      */
     public abstract Receipt send(Message message);
+
+    /**
+     * Tells if the outcome of this route depends only on the destination of
+     * the message, so that it can be skipped once it declined it: routes
+     * looking at other details of the message, or always acting on it, are
+     * not cacheable
+     */
+    public boolean isCacheable() {
+        return true;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,240 @@
+package com.workshare.msnos.core.routing;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Message.Status;
+import com.workshare.msnos.core.Receipt;
+import com.workshare.msnos.core.RemoteAgent;
+import com.workshare.msnos.core.Ring;
+import com.workshare.msnos.core.cloud.IdentifiablesList;
+import com.workshare.msnos.core.protocols.ip.Endpoint;
+import com.workshare.msnos.soup.time.SystemTime;
+
+/**
+ * Remembers which route last carried messages to a destination, so that the
+ * router can skip the routes that declined it. Messages are told apart by
+ * destination, by whether they are sent or forwarded and by the gate they
+ * were received from, which is all the routes look at. The whole cache is
+ * dropped when remote agents come, go or change their ring or HTTP
+ * endpoints, as that can change the route of any destination, while an
+ * agent announcing itself again unchanged only drops its own entries; an
+ * entry is dropped when its route declines or fails a message, and expires
+ * after a while anyway.
+ */
+public class RouteCache implements IdentifiablesList.Callback<RemoteAgent> {
+
+    public static final String SYSP_CACHE_SIZE = "com.ws.nsnos.core.router.cache.size";
+    public static final String SYSP_CACHE_TTL = "com.ws.nsnos.core.router.cache.ttl";
+
+    public static final int MISS = -1;
+
+    static class Key {
+        private final Iden to;
+        private final String mode;
+        private final String gate;
+
+        Key(Iden to, String mode, String gate) {
+            this.to = to;
+            this.mode = mode;
+            this.gate = gate;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = to.hashCode();
+            result = 31 * result + (mode == null ? 0 : mode.hashCode());
+            result = 31 * result + (gate == null ? 0 : gate.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            try {
+                Key other = (Key) o;
+                return to.equals(other.to) && areEquals(mode, other.mode) && areEquals(gate, other.gate);
+            } catch (Exception ignore) {
+                return false;
+            }
+        }
+
+        private static boolean areEquals(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+    }
+
+    private static class Entry {
+        private final int route;
+        private final long expires;
+
+        Entry(int route, long expires) {
+            this.route = route;
+            this.expires = expires;
+        }
+    }
+
+    private final int capacity;
+    private final long ttl;
+    private final ConcurrentHashMap<Key, Entry> entries;
+    private final ConcurrentHashMap<Iden, Profile> profiles;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public RouteCache() {
+        this(Integer.getInteger(SYSP_CACHE_SIZE, 4096), Long.getLong(SYSP_CACHE_TTL, 5000L));
+    }
+
+    public RouteCache(int capacity, long ttlInMillis) {
+        this.capacity = capacity;
+        this.ttl = ttlInMillis;
+        this.entries = new ConcurrentHashMap<Key, Entry>();
+        this.profiles = new ConcurrentHashMap<Iden, Profile>();
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    Key keyOf(Message message, Object mode) {
+        if (!isEnabled() || message.getTo() == null)
+            return null;
+
+        return new Key(message.getTo(), mode == null ? null : mode.toString(), message.getReceivingGate());
+    }
+
+    /**
+     * Returns the index of the route cached for the key, or {@link #MISS}
+     */
+    int lookup(Key key) {
+        if (key == null)
+            return MISS;
+
+        final Entry entry = entries.get(key);
+        if (entry == null || entry.expires < SystemTime.asMillis()) {
+            misses.incrementAndGet();
+            return MISS;
+        }
+
+        hits.incrementAndGet();
+        return entry.route;
+    }
+
+    /**
+     * Records the route which returned the receipt: a failed receipt drops
+     * the entry, as does a receipt failing later on
+     */
+    void routed(final Key key, int route, Receipt receipt) {
+        if (key == null)
+            return;
+
+        if (receipt.getStatus() == Status.FAILED) {
+            invalidate(key);
+            return;
+        }
+
+        if (entries.size() >= capacity)
+            entries.clear();
+
+        final Entry entry = new Entry(route, SystemTime.asMillis() + ttl);
+        entries.put(key, entry);
+        receipt.onComplete(new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt completed) {
+                if (completed.getStatus() == Status.FAILED && entries.remove(key, entry))
+                    invalidations.incrementAndGet();
+            }
+        });
+    }
+
+    void invalidate(Key key) {
+        if (key != null && entries.remove(key) != null)
+            invalidations.incrementAndGet();
+    }
+
+    /**
+     * Drops all the entries for the destination
+     */
+    public void invalidate(Iden to) {
+        for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext();) {
+            if (it.next().to.equals(to)) {
+                it.remove();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        if (!entries.isEmpty()) {
+            entries.clear();
+            invalidations.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onAdd(RemoteAgent agent) {
+        final Profile profile = new Profile(agent);
+        if (profile.equals(profiles.put(agent.getIden(), profile)))
+            invalidate(agent.getIden());
+        else
+            clear();
+    }
+
+    @Override
+    public void onRemove(RemoteAgent agent) {
+        profiles.remove(agent.getIden());
+        clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long invalidations() {
+        return invalidations.get();
+    }
+
+    public double hitRate() {
+        final long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    // what of an agent can change the routes of the others
+    private static class Profile {
+        private final Ring ring;
+        private final Set<Endpoint> endpoints;
+
+        Profile(RemoteAgent agent) {
+            this.ring = agent.getRing();
+            this.endpoints = agent.getEndpoints(Endpoint.Type.HTTP);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (ring == null ? 0 : ring.hashCode()) + (endpoints == null ? 0 : endpoints.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            try {
+                Profile other = (Profile) o;
+                return Key.areEquals(ring, other.ring) && Key.areEquals(endpoints, other.endpoints);
+            } catch (Exception ignore) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.workshare.msnos.core.routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Identifiable;
+import com.workshare.msnos.core.Message.Status;
+import com.workshare.msnos.core.Ring;
+import com.workshare.msnos.soup.time.SystemTime;
+
+/**
+ * Keeps a score for each agent messages were sent to directly, whether the
+ * destination or a relay, out of the outcome of the gateway receipts: an
+ * exponentially weighted average of the delivery latency and of the failure
+ * rate. The failure rate slowly decays while an agent is not used, so that
+ * an agent which failed in the past gets traffic back after a while. The
+ * score is the expected cost of a send in milliseconds, a failure costing
+ * as much as "com.ws.nsnos.core.router.score.penalty", and agents never
+ * seen before score zero, so they are tried first.
+ *
+ * The router also records here how each destination was last reached, the
+ * route which took the message, the candidate relays in the order they were
+ * ranked with their scores and the one chosen, and the same for each ring a
+ * broadcast went to, once all the lanes to the ring are done. A decision is
+ * only recorded when it differs from the previous one for the same target,
+ * so that steady traffic costs a lookup. When too many agents or targets
+ * are tracked, the ones not updated for longer are dropped first.
+ */
+public class RouteScoreboard {
+
+    public static final String SYSP_SCORE_WEIGHT = "com.ws.nsnos.core.router.score.weight";
+    public static final String SYSP_SCORE_HALFLIFE = "com.ws.nsnos.core.router.score.halflife";
+    public static final String SYSP_SCORE_PENALTY = "com.ws.nsnos.core.router.score.penalty";
+
+    private static final Logger log = LoggerFactory.getLogger(RouteScoreboard.class);
+
+    private static final int MAX_ENTRIES = 4096;
+
+    private static interface Stamped {
+        long updated();
+    }
+
+    public class Score implements Stamped {
+        private double latency;
+        private double failures;
+        private long samples;
+        private long deliveries;
+        private long updated;
+
+        private synchronized void record(long millis, boolean failed) {
+            final long now = SystemTime.asMillis();
+            final double outcome = (failed ? 1.0 : 0.0);
+            if (samples == 0)
+                failures = outcome;
+            else
+                failures = decayedFailures(now) + weight * (outcome - decayedFailures(now));
+
+            // the latency of a failure tells nothing about the agent
+            if (!failed) {
+                latency = (deliveries == 0 ? millis : latency + weight * (millis - latency));
+                deliveries++;
+            }
+
+            samples++;
+            updated = now;
+        }
+
+        private double decayedFailures(long now) {
+            if (samples == 0 || halflife <= 0)
+                return failures;
+
+            return failures * Math.pow(0.5, (double) (now - updated) / halflife);
+        }
+
+        /**
+         * Returns the average latency of the deliveries, in milliseconds
+         */
+        public synchronized double latency() {
+            return latency;
+        }
+
+        /**
+         * Returns the current failure rate, between 0 and 1
+         */
+        public synchronized double failureRate() {
+            return decayedFailures(SystemTime.asMillis());
+        }
+
+        public synchronized long samples() {
+            return samples;
+        }
+
+        @Override
+        public synchronized long updated() {
+            return updated;
+        }
+
+        /**
+         * Returns the expected cost of a send, the lower the better
+         */
+        public synchronized double value() {
+            return latency + failureRate() * penalty;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("{latency: %.1f, failures: %.3f, samples: %d, score: %.1f}", latency, failureRate(), samples, value());
+        }
+    }
+
+    /**
+     * A routing decision: the route, the candidates in the order they were
+     * tried with their score at the time, and the one which took the message,
+     * null if none did or if there was no choice to make
+     */
+    public static final class Decision implements Stamped {
+        private final String how;
+        private final Map<Iden, Double> ranking;
+        private final Iden chosen;
+        private final long when;
+
+        private Decision(String how, Map<Iden, Double> ranking, Iden chosen, long when) {
+            this.how = how;
+            this.ranking = Collections.unmodifiableMap(ranking);
+            this.chosen = chosen;
+            this.when = when;
+        }
+
+        public String how() {
+            return how;
+        }
+
+        public Map<Iden, Double> ranking() {
+            return ranking;
+        }
+
+        public Iden chosen() {
+            return chosen;
+        }
+
+        @Override
+        public long updated() {
+            return when;
+        }
+
+        @Override
+        public String toString() {
+            return how + " chose " + chosen + " out of " + ranking;
+        }
+    }
+
+    private final double weight;
+    private final long halflife;
+    private final long penalty;
+    private final ConcurrentHashMap<Iden, Score> scores;
+    private final ConcurrentHashMap<Iden, Decision> decisions;
+    private final ConcurrentHashMap<Ring, Decision> broadcasts;
+
+    public RouteScoreboard() {
+        this(Integer.getInteger(SYSP_SCORE_WEIGHT, 20) / 100.0, Long.getLong(SYSP_SCORE_HALFLIFE, 60000L), Long.getLong(SYSP_SCORE_PENALTY, 10000L));
+    }
+
+    public RouteScoreboard(double weight, long halflifeInMillis, long penaltyInMillis) {
+        this.weight = weight;
+        this.halflife = halflifeInMillis;
+        this.penalty = penaltyInMillis;
+        this.scores = new ConcurrentHashMap<Iden, Score>();
+        this.decisions = new ConcurrentHashMap<Iden, Decision>();
+        this.broadcasts = new ConcurrentHashMap<Ring, Decision>();
+    }
+
+    public void record(Iden iden, long millis, Status status) {
+        Score score = scores.get(iden);
+        if (score == null) {
+            if (scores.size() >= MAX_ENTRIES)
+                evict(scores);
+
+            score = new Score();
+            final Score previous = scores.putIfAbsent(iden, score);
+            if (previous != null)
+                score = previous;
+        }
+
+        score.record(millis, status != Status.DELIVERED);
+    }
+
+    /**
+     * Returns the score of the agent, or null if nothing was sent to it yet
+     */
+    public Score score(Iden iden) {
+        return scores.get(iden);
+    }
+
+    public double value(Iden iden) {
+        final Score score = scores.get(iden);
+        return (score == null ? 0.0 : score.value());
+    }
+
+    public double failureRate(Iden iden) {
+        final Score score = scores.get(iden);
+        return (score == null ? 0.0 : score.failureRate());
+    }
+
+    /**
+     * Returns the candidates sorted by score, the best first: candidates
+     * with the same score keep their order
+     */
+    public <T extends Identifiable> List<T> rank(Collection<T> candidates) {
+        final List<T> ranked = new ArrayList<T>(candidates);
+        if (ranked.size() < 2 || scores.isEmpty())
+            return ranked;
+
+        final Map<Iden, Double> values = new HashMap<Iden, Double>();
+        for (T candidate : ranked)
+            values.put(candidate.getIden(), value(candidate.getIden()));
+
+        Collections.sort(ranked, new Comparator<T>() {
+            @Override
+            public int compare(T one, T two) {
+                return Double.compare(values.get(one.getIden()), values.get(two.getIden()));
+            }
+        });
+
+        return ranked;
+    }
+
+    /**
+     * Records how the message to the destination was routed, and which
+     * candidate was chosen out of the given ranking, if any
+     */
+    public void decided(Iden to, String how, Collection<? extends Identifiable> ranking, Identifiable chosen) {
+        decided(decisions, to, how, ranking, chosen);
+    }
+
+    /**
+     * Records which relay took a broadcast to the ring, if any, out of the
+     * given ranking
+     */
+    public void decided(Ring ring, String how, Collection<? extends Identifiable> ranking, Identifiable chosen) {
+        decided(broadcasts, ring, how, ranking, chosen);
+    }
+
+    /**
+     * Returns the last decision taken for the destination, or null if none was
+     */
+    public Decision decision(Iden to) {
+        return decisions.get(to);
+    }
+
+    /**
+     * Returns the last decision taken broadcasting to the ring, or null if
+     * none was
+     */
+    public Decision decision(Ring ring) {
+        return broadcasts.get(ring);
+    }
+
+    /**
+     * Returns the last decision taken for each destination
+     */
+    public Map<Iden, Decision> decisions() {
+        return Collections.unmodifiableMap(new HashMap<Iden, Decision>(decisions));
+    }
+
+    /**
+     * Returns the last decision taken for each ring broadcasts went to
+     */
+    public Map<Ring, Decision> broadcasts() {
+        return Collections.unmodifiableMap(new HashMap<Ring, Decision>(broadcasts));
+    }
+
+    /**
+     * Returns the scores of all the agents messages were sent to
+     */
+    public Map<Iden, Score> snapshot() {
+        return Collections.unmodifiableMap(new HashMap<Iden, Score>(scores));
+    }
+
+    @Override
+    public String toString() {
+        return scores.toString();
+    }
+
+    private <K> void decided(ConcurrentHashMap<K, Decision> entries, K target, String how, Collection<? extends Identifiable> ranking, Identifiable chosen) {
+        final Iden chosenIden = (chosen == null ? null : chosen.getIden());
+        if (isSame(entries.get(target), how, ranking, chosenIden))
+            return;
+
+        final Map<Iden, Double> values = new LinkedHashMap<Iden, Double>();
+        for (Identifiable candidate : ranking)
+            values.put(candidate.getIden(), value(candidate.getIden()));
+
+        final Decision decision = new Decision(how, values, chosenIden, SystemTime.asMillis());
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(target))
+            evict(entries);
+        entries.put(target, decision);
+
+        log.debug("Routing to {}: {}", target, decision);
+    }
+
+    private boolean isSame(Decision last, String how, Collection<? extends Identifiable> ranking, Iden chosen) {
+        if (last == null || !last.how.equals(how) || !(chosen == null ? last.chosen == null : chosen.equals(last.chosen)))
+            return false;
+
+        if (last.ranking.size() != ranking.size())
+            return false;
+
+        final Iterator<Iden> previous = last.ranking.keySet().iterator();
+        for (Identifiable candidate : ranking)
+            if (!candidate.getIden().equals(previous.next()))
+                return false;
+
+        return true;
+    }
+
+    // drops what went stale, or the least recently updated entry if nothing did
+    private <K, V extends Stamped> void evict(ConcurrentHashMap<K, V> entries) {
+        final long stale = SystemTime.asMillis() - 4 * Math.max(1, halflife);
+
+        K oldest = null;
+        long oldestUpdate = Long.MAX_VALUE;
+        boolean evicted = false;
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            final long updated = entry.getValue().updated();
+            if (updated < stale) {
+                entries.remove(entry.getKey(), entry.getValue());
+                evicted = true;
+            } else if (updated < oldestUpdate) {
+                oldest = entry.getKey();
+                oldestUpdate = updated;
+            }
+        }
+
+        if (!evicted && oldest != null)
+            entries.remove(oldest);
+    }
+}
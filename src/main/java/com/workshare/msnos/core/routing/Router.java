@@ -2,8 +2,11 @@ package com.workshare.msnos.core.routing;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +20,7 @@ import com.workshare.msnos.core.Receipt;
 import com.workshare.msnos.core.RemoteAgent;
 import com.workshare.msnos.core.cloud.MessageValidators;
 import com.workshare.msnos.core.cloud.MessageValidators.Result;
+import com.workshare.msnos.core.journal.ProtocolJournal;
 import com.workshare.msnos.core.payloads.TracePayload;
 import com.workshare.msnos.core.protocols.ip.Endpoint;
 import com.workshare.msnos.core.protocols.ip.Endpoint.Type;
@@ -25,6 +29,7 @@ import com.workshare.msnos.core.protocols.ip.http.HttpGateway;
 import com.workshare.msnos.core.protocols.ip.udp.UDPGateway;
 import com.workshare.msnos.core.protocols.ip.www.WWWGateway;
 import com.workshare.msnos.core.receipts.SingleReceipt;
+import com.workshare.msnos.soup.threading.ExecutorServices;
 
 public class Router {
 
@@ -33,20 +38,35 @@ public class Router {
     public static final String SYSP_MAXIMUM_HOPS_CLOUD = "com.ws.nsnos.core.router.hops.cloud.max";
     public static final String SYSP_MAXIMUM_HOPS_DIRECT = "com.ws.nsnos.core.router.hops.direct.max";
     public static final String SYSP_MAXIMUM_MESSAGES_PER_RING = "com.ws.nsnos.core.router.ring,messages.max";
+    public static final String SYSP_BROADCAST_DEADLINE = "com.ws.nsnos.core.router.broadcast.deadline";
+    public static final String SYSP_HEDGE_ENABLED = "com.ws.nsnos.core.router.hedge.enabled";
+    public static final String SYSP_HEDGE_PERCENTILE = "com.ws.nsnos.core.router.hedge.percentile";
+    public static final String SYSP_HEDGE_DELAY = "com.ws.nsnos.core.router.hedge.delay";
+    public static final String SYSP_HEDGE_MAX = "com.ws.nsnos.core.router.hedge.max";
+    public static final String SYSP_HEDGE_INFLIGHT = "com.ws.nsnos.core.router.hedge.inflight";
+    public static final String SYSP_SCORE_SKIP = "com.ws.nsnos.core.router.score.skip";
+    public static final String SYSP_FANOUT_THREADS = "com.ws.nsnos.core.router.fanout.threads";
+
+    private static final Executor DEFAULT_FANOUT_EXECUTOR = ExecutorServices.newBoundedDaemonThreadPool(Integer.getInteger(SYSP_FANOUT_THREADS, 32));
 
     private static final Logger routing = LoggerFactory.getLogger("routing");
     private static final Logger logger = LoggerFactory.getLogger(Router.class);
+    private static final ProtocolJournal journal = ProtocolJournal.instance();
 
     private final Cloud cloud;
     private final Gateway udpGate;
     private final Gateway wwwGate;
     private final Gateway httpGate;
     private final MessageValidators validators;
+    private final Executor fanout;
     
     private final Route[] routes;
+    private final RouteCache cache;
+    private final RouteScoreboard scoreboard;
 
     private static enum Mode {TXX, FWD};
     private final ThreadLocal<Mode> mode = new ThreadLocal<Router.Mode>();
+    private final ThreadLocal<Choice> choice = new ThreadLocal<Choice>();
 
     
     public Router(Cloud cloud, Set<Gateway> gates) {
@@ -54,7 +74,12 @@ public class Router {
     }
 
     Router(Cloud cloud, UDPGateway udpGate, HttpGateway httpGate, WWWGateway wwwGate) {
+        this(cloud, udpGate, httpGate, wwwGate, DEFAULT_FANOUT_EXECUTOR);
+    }
+
+    Router(Cloud cloud, UDPGateway udpGate, HttpGateway httpGate, WWWGateway wwwGate, Executor fanout) {
         this.cloud = cloud;
+        this.fanout = fanout;
         this.udpGate = (udpGate != null ? udpGate : NOOP_GATE);
         this.wwwGate = (wwwGate != null ? wwwGate : NOOP_GATE);
         this.httpGate = (httpGate != null ? httpGate : NOOP_GATE);
@@ -69,15 +94,20 @@ public class Router {
             new HTTPRouteViaRing(this),
             new UDPRouteBroadcast(this),
         };
+        this.cache = new RouteCache();
+        this.scoreboard = new RouteScoreboard();
     }
 
     Router(Cloud cloud, UDPGateway udpGate, HttpGateway httpGate, WWWGateway wwwGate, Route[] routes) {
         this.cloud = cloud;
+        this.fanout = DEFAULT_FANOUT_EXECUTOR;
         this.udpGate = (udpGate != null ? udpGate : NOOP_GATE);
         this.wwwGate = (wwwGate != null ? wwwGate : NOOP_GATE);
         this.httpGate = (httpGate != null ? httpGate : NOOP_GATE);
         this.validators = cloud.validators();
         this.routes = routes;
+        this.cache = new RouteCache();
+        this.scoreboard = new RouteScoreboard();
     }
 
     public Gateway udpGateway() {
@@ -107,27 +137,99 @@ public class Router {
             return skip(message, result.reason());
     }
 
+    public RouteCache cache() {
+        return cache;
+    }
+
+    public RouteScoreboard scoreboard() {
+        return scoreboard;
+    }
+
     Receipt route(Message message) {
         logger.debug("Routing message {}", message);
- 
-        for (Route route : routes) {
+
+        // on a cache hit the cacheable routes before the cached one are
+        // skipped, as they declined this destination already
+        final RouteCache.Key key = cache.keyOf(message, mode.get());
+        final int cached = cache.lookup(key);
+        choice.remove();
+        for (int i = 0; i < routes.length; i++) {
+            final Route route = routes[i];
+            if (i < cached && route.isCacheable())
+                continue;
+
             Receipt receipt = route.send(message);
             if (receipt != null) {
                 if (logger.isDebugEnabled())
                     logger.debug("Message {} routed via {}, result is {}", message, route.getClass().getSimpleName(), receipt);
 
+                if (route.isCacheable())
+                    cache.routed(key, i, receipt);
+                decided(message, route.getClass().getSimpleName());
                 return receipt;
             }
+
+            if (i == cached)
+                cache.invalidate(key);
         }
         
-        routing.info("{} {} {} {} {} {}", "N/A", "N/A", "NO-ROUTE", mode.get(), message);
+        decided(message, "NO-ROUTE");
+        journal.routed(message, mode.get(), "N/A", "N/A", "NO-ROUTE", -1);
         logger.warn("Unable to send message {} no route found", message);
         return SingleReceipt.failure(message);
     }
 
+    /**
+     * Tells the router which relay a route chose out of the ranking, on the
+     * routing thread, so that it is recorded if the route takes the message
+     */
+    void chose(Collection<? extends Identifiable> ranking, Identifiable relay) {
+        choice.set(new Choice(ranking, relay));
+    }
+
+    private void decided(Message message, String how) {
+        final Choice chosen = choice.get();
+        choice.remove();
+        if (message.getTo() == null)
+            return;
+
+        if (chosen == null)
+            scoreboard.decided(message.getTo(), how, Collections.<Identifiable>emptyList(), null);
+        else
+            scoreboard.decided(message.getTo(), how, chosen.ranking, chosen.relay);
+    }
+
     Cloud cloud() {
         return cloud;
     }
+
+    /**
+     * The executor running the sends which are fanned out concurrently: the
+     * tasks run in the routing mode of the thread handing them over. The
+     * executor is bounded and rejects the tasks when all its threads are
+     * busy, as a blocked send would hold its thread until the socket times
+     * out: callers are expected to fail the send straight away
+     */
+    Executor fanout() {
+        final Mode current = mode.get();
+        return new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                fanout.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final Mode previous = mode.get();
+                        mode.set(current);
+                        try {
+                            task.run();
+                        } finally {
+                            mode.set(previous);
+                        }
+                    }
+                });
+            }
+        };
+    }
  
     boolean hasRouteFor(RemoteAgent remote) {
         Set<Endpoint> endpoints = remote.getEndpoints(Type.HTTP);
@@ -140,7 +242,7 @@ public class Router {
     
     Receipt sendViaUDP(Message message, int hops, String how)  {
         if (udpGate.name().equals(message.getReceivingGate())) {
-            routing.info("{} {} {} {} {} {}", mode.get(), how, udpGate.name(), "UDP-TO-UDP", message);
+            journal.routed(message, mode.get(), how, udpGate.name(), "UDP-TO-UDP", -1);
             return SingleReceipt.failure(message);
         }
         
@@ -160,19 +262,37 @@ public class Router {
         }
         
         Receipt receipt;
+        final long start = System.nanoTime();
         try {
             final Message hoppedMessage = message.withHops(hops);
             receipt = gate.send(cloud, hoppedMessage, to);
-            routing.info("{} {} {} {} {} {} {}", mode.get(), how, gate.name(), receipt.getStatus(), hops, hoppedMessage);
+            if (to != null)
+                score(to, start, receipt);
+            journal.routed(hoppedMessage, mode.get(), how, gate.name(), receipt.getStatus(), hops);
         } catch (IOException e) {
             receipt = SingleReceipt.failure(message);
-            routing.info("{} {} {} {} {} {}", mode.get(), how, gate.name(), "GATE-FAILURE", message);
+            if (to != null)
+                scoreboard.record(to.getIden(), elapsedMillis(start), Message.Status.FAILED);
+            journal.routed(message, mode.get(), how, gate.name(), "GATE-FAILURE", -1);
             logger.warn("Unable to send message {} trough gateway {}", message, gate);
         }
         
         return receipt;
     }
 
+    private void score(final Identifiable to, final long start, Receipt receipt) {
+        receipt.onComplete(new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt completed) {
+                scoreboard.record(to.getIden(), elapsedMillis(start), completed.getStatus());
+            }
+        });
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
     private UUID findDestination(Identifiable to, Message message) {
         if (to != null)
             return to.getIden().getUUID();
@@ -194,7 +314,7 @@ public class Router {
     }
     
     Receipt terminal(Message message, String how) {
-        routing.info("{} {} {} {}", mode.get(), how, "NONE", message);
+        journal.routed(message, mode.get(), how, "NONE", null, -1);
         return SingleReceipt.failure(message);
     }
     
@@ -207,4 +327,14 @@ public class Router {
         
         return null;
     }
+
+    private static final class Choice {
+        private final Collection<? extends Identifiable> ranking;
+        private final Identifiable relay;
+
+        Choice(Collection<? extends Identifiable> ranking, Identifiable relay) {
+            this.ranking = ranking;
+            this.relay = relay;
+        }
+    }
 }
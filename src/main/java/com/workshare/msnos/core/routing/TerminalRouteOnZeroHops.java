@@ -17,4 +17,9 @@ public class TerminalRouteOnZeroHops extends Route {
         else
             return null;
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean isCacheable() {
+        return false;
+    }
+}
@@ -14,4 +14,9 @@ public class WWWRouteBroadcast extends Route {
         router.sendViaWWW(message, "WWW-BROADCAST");
         return null;
     }
+
+    @Override
+    public boolean isCacheable() {
+        return false;
+    }
 }
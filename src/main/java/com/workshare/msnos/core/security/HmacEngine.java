@@ -0,0 +1,86 @@
+package com.workshare.msnos.core.security;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.workshare.msnos.core.security.Signer.Algorithm;
+
+/**
+ * Hands out ready to use Mac instances: the key material is cached per key
+ * id and every thread gets its own initialized Mac for each key and
+ * algorithm. The keys store is checked on every call, so a key changed in
+ * the store is picked up without a restart.
+ */
+class HmacEngine {
+
+    private final KeysStore keys;
+    private final ConcurrentMap<String, Key> cache;
+
+    HmacEngine(KeysStore keys) {
+        this.keys = keys;
+        this.cache = new ConcurrentHashMap<String, Key>();
+    }
+
+    /**
+     * Returns the Mac for the given key id, reset and owned by the current
+     * thread, or null if the key is not in the store
+     */
+    public Mac get(String keyId, Algorithm algo) throws GeneralSecurityException {
+        final String secret = keys.get(keyId);
+        if (secret == null) {
+            cache.remove(keyId);
+            return null;
+        }
+
+        Key key = cache.get(keyId);
+        if (key == null || !key.secret.equals(secret)) {
+            key = new Key(secret);
+            cache.put(keyId, key);
+        }
+
+        return key.mac(algo);
+    }
+
+    private static class Key {
+        private final String secret;
+        private final byte[] bytes;
+        private final Map<Algorithm, ThreadLocal<Mac>> macs;
+
+        Key(String secret) throws GeneralSecurityException {
+            this.secret = secret;
+            this.bytes = utf8(secret);
+            this.macs = new EnumMap<Algorithm, ThreadLocal<Mac>>(Algorithm.class);
+            for (final Algorithm algo : Algorithm.values())
+                macs.put(algo, new ThreadLocal<Mac>());
+        }
+
+        Mac mac(Algorithm algo) throws GeneralSecurityException {
+            final ThreadLocal<Mac> local = macs.get(algo);
+            Mac mac = local.get();
+            if (mac == null) {
+                mac = Mac.getInstance(algo.jceName());
+                mac.init(new SecretKeySpec(bytes, algo.jceName()));
+                local.set(mac);
+            } else {
+                mac.reset();
+            }
+
+            return mac;
+        }
+
+        private static byte[] utf8(String text) throws GeneralSecurityException {
+            try {
+                return text.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new GeneralSecurityException(e);
+            }
+        }
+    }
+}
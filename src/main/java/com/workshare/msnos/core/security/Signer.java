@@ -1,54 +1,233 @@
 package com.workshare.msnos.core.security;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.DatatypeConverter;
 
 import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.serializers.WireBinarySerializer;
 import com.workshare.msnos.core.serializers.WireJsonSerializer;
 import com.workshare.msnos.core.serializers.WireSerializer;
 
+/**
+ * Signs messages with an HMAC of their json form. The fields that change
+ * in transit or that carry the signature itself (hops, signature and
+ * random) are not covered, so that a received message can be verified
+ * directly against the bytes that came from the wire.
+ * Messages are signed with the configured algorithm, while verification
+ * accepts any of the supported ones, telling them apart by the length of
+ * the signature, so that a cloud can be moved to a stronger one gradually.
+ */
 public class Signer {
 
+    public static final String SYSP_ALGORITHM = "com.ws.msnos.signer.algorithm";
+
     public static final KeysStore DEFAULT_KEYSSTORE = new SystemPropertiesKeysStore();
 
+    public enum Algorithm {
+        HMAC_SHA1("HmacSHA1", 20),
+        HMAC_SHA256("HmacSHA256", 32);
+
+        private final String jceName;
+        private final int length;
+
+        private Algorithm(String jceName, int length) {
+            this.jceName = jceName;
+            this.length = length;
+        }
+
+        public String jceName() {
+            return jceName;
+        }
+
+        public static Algorithm parse(String name) {
+            for (Algorithm algo : values()) {
+                if (algo.jceName.equalsIgnoreCase(name) || algo.name().equalsIgnoreCase(name))
+                    return algo;
+            }
+            throw new IllegalArgumentException("Unsupported signing algorithm: " + name);
+        }
+
+        static Algorithm forLength(int length) {
+            for (Algorithm algo : values()) {
+                if (algo.length == length)
+                    return algo;
+            }
+            return null;
+        }
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final byte[][] UNSIGNED_FIELDS = new byte[][] {
+        ascii("hp"), ascii("ss"), ascii("rr")
+    };
+
     private final WireSerializer sz;
-    private final KeysStore keys;
+    private final HmacEngine engine;
+    private final Algorithm algorithm;
 
     public Signer() {
         this(DEFAULT_KEYSSTORE);
     }
-    
+
     public Signer(KeysStore keys) {
         this(new WireJsonSerializer(), keys);
     }
-    
+
     public Signer(WireSerializer sz, KeysStore keys) {
+        this(sz, keys, Algorithm.parse(System.getProperty(SYSP_ALGORITHM, Algorithm.HMAC_SHA1.jceName())));
+    }
+
+    public Signer(WireSerializer sz, KeysStore keys, Algorithm algorithm) {
         this.sz = sz;
-        this.keys = keys;
+        this.engine = new HmacEngine(keys);
+        this.algorithm = algorithm;
     }
 
     public Message signed(Message message, String keyId) throws IOException {
-        String key = keys.get(keyId);
-        if (key == null)
+        final Mac mac = mac(keyId, algorithm);
+        if (mac == null)
             return message;
         else
-            return message.signed(keyId, signText(key, sz.toText(message)));
+            return message.signed(keyId, toHex(sign(mac, message.encoded(sz))));
+    }
+
+    /**
+     * Checks the message signature against the given key, using the bytes the
+     * message was received as when available, so that no re-encoding is
+     * needed. A missing key means signatures are not enforced.
+     */
+    public boolean verify(Message message, String keyId) throws IOException {
+        final String sig = message.getSig();
+        final byte[] received = (sig == null ? null : parseSignature(sig, keyId));
+        final Algorithm algo = (received == null ? null : Algorithm.forLength(received.length));
+
+        final Mac mac = mac(keyId, algo == null ? algorithm : algo);
+        if (mac == null)
+            return true;
+        if (algo == null)
+            return false;
+
+        final byte[] data = message.getReceivedBytes();
+        final boolean json = data != null && !WireBinarySerializer.isBinary(data, 0, data.length);
+        final byte[] expected = sign(mac, json ? data : message.encoded(sz));
+        return MessageDigest.isEqual(expected, received);
     }
 
-    private String signText(String key, String text) throws IOException {
-        byte[] keyBytes = key.getBytes("UTF-8");
-        SecretKeySpec signingKey = new SecretKeySpec(keyBytes, "HmacSHA1");
-        Mac mac;
+    private Mac mac(String keyId, Algorithm algo) throws IOException {
         try {
-            mac = Mac.getInstance("HmacSHA1");
-            mac.init(signingKey);
-            byte[] textBytes = mac.doFinal(text.getBytes("UTF-8"));
-            return DatatypeConverter.printHexBinary(textBytes);
-        } catch (Exception e) {
+            return engine.get(keyId, algo);
+        } catch (GeneralSecurityException e) {
             throw new IOException(e);
         }
     }
+
+    private static byte[] sign(Mac mac, byte[] data) {
+        updateSignable(mac, data);
+        return mac.doFinal();
+    }
+
+    private static byte[] parseSignature(String sig, String keyId) {
+        final int start = keyId.length() + 1;
+        if (sig.length() <= start || sig.charAt(start - 1) != ':' || !sig.startsWith(keyId))
+            return null;
+
+        final int length = sig.length() - start;
+        if (length % 2 != 0)
+            return null;
+
+        final byte[] bytes = new byte[length / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int hi = Character.digit(sig.charAt(start + i * 2), 16);
+            final int lo = Character.digit(sig.charAt(start + i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                return null;
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] text = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            text[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            text[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(text);
+    }
+
+    /**
+     * Feeds the mac with the json text, skipping the top level members that
+     * are not signed (leading comma included), without copying anything
+     */
+    static void updateSignable(Mac mac, byte[] data) {
+        int depth = 0;
+        int kept = 0;
+        int memberStart = -1;
+        for (int i = 0; i < data.length; i++) {
+            final byte b = data[i];
+            if (b == '"') {
+                i = endOfString(data, i);
+            } else if (b == '{' || b == '[') {
+                if (++depth == 1 && b == '{')
+                    memberStart = i + 1;
+            } else if (b == '}' || b == ']' || (b == ',' && depth == 1)) {
+                if (depth == 1 && memberStart >= 0 && isUnsigned(data, memberStart, i)) {
+                    mac.update(data, kept, memberStart - kept);
+                    kept = i;
+                }
+                if (b == ',')
+                    memberStart = i;
+                else
+                    depth--;
+            }
+        }
+
+        mac.update(data, kept, data.length - kept);
+    }
+
+    private static boolean isUnsigned(byte[] data, int start, int end) {
+        int quote = start;
+        while (quote < end && data[quote] != '"')
+            quote++;
+        if (quote == end)
+            return false;
+
+        final int keyStart = quote + 1;
+        final int keyEnd = endOfString(data, quote);
+        for (byte[] field : UNSIGNED_FIELDS) {
+            if (keyEnd - keyStart == field.length && regionMatches(data, keyStart, field))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] field) {
+        for (int i = 0; i < field.length; i++)
+            if (data[offset + i] != field[i])
+                return false;
+        return true;
+    }
+
+    private static int endOfString(byte[] data, int quote) {
+        for (int i = quote + 1; i < data.length; i++) {
+            if (data[i] == '\\')
+                i++;
+            else if (data[i] == '"')
+                return i;
+        }
+        return data.length - 1;
+    }
+
+    private static byte[] ascii(String text) {
+        final byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) text.charAt(i);
+        return bytes;
+    }
 }
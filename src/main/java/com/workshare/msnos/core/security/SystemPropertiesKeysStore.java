@@ -1,5 +1,6 @@
 package com.workshare.msnos.core.security;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -14,21 +15,33 @@ public class SystemPropertiesKeysStore implements KeysStore {
     public final Map<String,String> keyvals = new ConcurrentHashMap<String,String>();
     
     public SystemPropertiesKeysStore() {
+        reload();
+    }
+
+    /**
+     * Reads again the keys from the system property, so that keys can be
+     * added, changed or removed while running
+     */
+    public void reload() {
+        final Map<String,String> loaded = new HashMap<String,String>();
         String property = System.getProperty(SYSP_KEYS);
         if (property != null) {
             String[] allvals = property.split(",");
             for (String keyval : allvals) {
-                parseKeyVal(keyval);
+                parseKeyVal(keyval, loaded);
             }
         }
+
+        keyvals.putAll(loaded);
+        keyvals.keySet().retainAll(loaded.keySet());
     }
 
-    private void parseKeyVal(String keyval) {
+    private void parseKeyVal(String keyval, Map<String,String> loaded) {
         try {
             String[] tokens = keyval.split("=");
             String key = tokens[0];
             String val = tokens[1];
-            keyvals.put(key, val);
+            loaded.put(key, val);
         }
         catch (Exception ex) {
             logger.warn("Unexpect error parsing keys from system property: '"+System.getProperty(SYSP_KEYS)+"'", ex);
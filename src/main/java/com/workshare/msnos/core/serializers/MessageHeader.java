@@ -0,0 +1,348 @@
+package com.workshare.msnos.core.serializers;
+
+import java.util.UUID;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+
+/**
+ * The few fields of a message needed to decide if it's worth decoding it
+ * at all (uuid, type, recipient and timestamp), read straight from the wire
+ * in either the json or the binary format without building the message.
+ * The json scanner only looks at the top level members and stops as soon
+ * as it has found them all, so the payload is normally never touched.
+ */
+public final class MessageHeader {
+
+    private static final Message.Type[] MESSAGE_TYPES = Message.Type.values();
+    private static final Iden.Type[] IDEN_TYPES = Iden.Type.values();
+
+    private static final int UUID_LENGTH = 32;
+
+    private final UUID uuid;
+    private final Message.Type type;
+    private final Iden to;
+    private final long when;
+
+    MessageHeader(UUID uuid, Message.Type type, Iden to, long when) {
+        this.uuid = uuid;
+        this.type = type;
+        this.to = to;
+        this.when = when;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public Message.Type getType() {
+        return type;
+    }
+
+    public Iden getTo() {
+        return to;
+    }
+
+    public long getWhen() {
+        return when;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + uuid + " " + when + " " + to;
+    }
+
+    /**
+     * Reads the header of the encoded message, returning null when it cannot
+     * be found cheaply (malformed data, escaped strings, missing fields): the
+     * caller is then expected to go on with the full decoding
+     */
+    public static MessageHeader peek(byte[] array, int offset, int length) {
+        try {
+            if (WireBinarySerializer.isBinary(array, offset, length))
+                return peekBinary(new WireBinarySerializer.Input(array, offset, length));
+            else
+                return peekJson(new BytesText(array, offset, length));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    public static MessageHeader peek(String text) {
+        try {
+            return peekJson(new StringText(text));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static MessageHeader peekBinary(WireBinarySerializer.Input in) {
+        in.skip(2);
+        final Message.Type type = MESSAGE_TYPES[in.readEnum(MESSAGE_TYPES.length)];
+        in.skip(1);
+        final UUID uuid = new UUID(in.readLong(), in.readLong());
+        in.skip(17);
+        final Iden.Type toType = IDEN_TYPES[in.readEnum(IDEN_TYPES.length)];
+        final Iden to = new Iden(toType, new UUID(in.readLong(), in.readLong()));
+        in.readVarint();
+        final long when = in.readVarlong();
+
+        return new MessageHeader(uuid, type, to, when);
+    }
+
+    private static MessageHeader peekJson(Text text) {
+        UUID uuid = null;
+        Message.Type type = null;
+        Iden to = null;
+        long when = -1;
+
+        int i = skipBlanks(text, 0);
+        if (i >= text.length() || text.at(i) != '{')
+            return null;
+
+        i = skipBlanks(text, i + 1);
+        while (i < text.length() && text.at(i) == '"') {
+            final int keyEnd = endOfPlainString(text, i);
+            final int key = (keyEnd - i == 3) ? (text.at(i + 1) << 8) | text.at(i + 2) : 0;
+
+            i = skipBlanks(text, keyEnd + 1);
+            if (i >= text.length() || text.at(i) != ':')
+                return null;
+            i = skipBlanks(text, i + 1);
+
+            final int valueEnd;
+            if (key == ('i' << 8 | 'd')) {
+                valueEnd = endOfPlainString(text, i) + 1;
+                uuid = parseUUID(text, i + 1, valueEnd - 1);
+            } else if (key == ('t' << 8 | 'o')) {
+                valueEnd = endOfPlainString(text, i) + 1;
+                to = parseIden(text, i + 1, valueEnd - 1);
+            } else if (key == ('t' << 8 | 'y')) {
+                valueEnd = endOfPlainString(text, i) + 1;
+                type = parseType(text, i + 1, valueEnd - 1);
+            } else if (key == ('t' << 8 | 's')) {
+                valueEnd = endOfNumber(text, i);
+                when = parseLong(text, i, valueEnd);
+            } else {
+                valueEnd = endOfValue(text, i);
+            }
+
+            if (uuid != null && type != null && to != null && when >= 0)
+                return new MessageHeader(uuid, type, to, when);
+
+            i = skipBlanks(text, valueEnd);
+            if (i >= text.length() || text.at(i) != ',')
+                return null;
+            i = skipBlanks(text, i + 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Locates the value of the given top level member of a json object,
+     * returning its start and end offsets in the array, or null if not found
+     */
+    static int[] locate(byte[] array, int offset, int length, String name) {
+        try {
+            final Text text = new BytesText(array, offset, length);
+            int i = skipBlanks(text, 0);
+            if (i >= text.length() || text.at(i) != '{')
+                return null;
+
+            i = skipBlanks(text, i + 1);
+            while (i < text.length() && text.at(i) == '"') {
+                final int keyEnd = endOfString(text, i);
+                final boolean found = matches(text, i + 1, keyEnd, name);
+
+                i = skipBlanks(text, keyEnd + 1);
+                if (i >= text.length() || text.at(i) != ':')
+                    return null;
+                i = skipBlanks(text, i + 1);
+
+                final int valueEnd = endOfValue(text, i);
+                if (found)
+                    return new int[] { offset + i, offset + valueEnd };
+
+                i = skipBlanks(text, valueEnd);
+                if (i >= text.length() || text.at(i) != ',')
+                    return null;
+                i = skipBlanks(text, i + 1);
+            }
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        return null;
+    }
+
+    private static int skipBlanks(Text text, int i) {
+        while (i < text.length() && text.at(i) <= ' ')
+            i++;
+        return i;
+    }
+
+    // index of the closing quote of a string with no escapes in it
+    private static int endOfPlainString(Text text, int quote) {
+        if (quote >= text.length() || text.at(quote) != '"')
+            throw new IllegalArgumentException("String expected");
+
+        for (int i = quote + 1; i < text.length(); i++) {
+            final int c = text.at(i);
+            if (c == '"')
+                return i;
+            if (c == '\\')
+                throw new IllegalArgumentException("Escaped string");
+        }
+
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    // index right after a value of any kind, nested objects included
+    private static int endOfValue(Text text, int i) {
+        int depth = 0;
+        for (; i < text.length(); i++) {
+            final int c = text.at(i);
+            if (c == '"') {
+                i = endOfString(text, i);
+                if (depth == 0)
+                    return i + 1;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0)
+                    return i;
+                if (--depth == 0)
+                    return i + 1;
+            } else if (c == ',' && depth == 0) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Unterminated value");
+    }
+
+    private static int endOfString(Text text, int quote) {
+        for (int i = quote + 1; i < text.length(); i++) {
+            final int c = text.at(i);
+            if (c == '\\')
+                i++;
+            else if (c == '"')
+                return i;
+        }
+
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private static int endOfNumber(Text text, int i) {
+        while (i < text.length() && text.at(i) >= '0' && text.at(i) <= '9')
+            i++;
+        return i;
+    }
+
+    private static long parseLong(Text text, int start, int end) {
+        if (start == end || end - start > 18)
+            throw new IllegalArgumentException("Invalid timestamp");
+
+        long value = 0;
+        for (int i = start; i < end; i++)
+            value = value * 10 + (text.at(i) - '0');
+        return value;
+    }
+
+    private static Message.Type parseType(Text text, int start, int end) {
+        for (Message.Type type : MESSAGE_TYPES) {
+            if (matches(text, start, end, type.name()))
+                return type;
+        }
+
+        throw new IllegalArgumentException("Unknown message type");
+    }
+
+    private static Iden parseIden(Text text, int start, int end) {
+        int colon = start;
+        while (colon < end && text.at(colon) != ':')
+            colon++;
+
+        Iden.Type type = null;
+        for (Iden.Type candidate : IDEN_TYPES) {
+            if (matches(text, start, colon, candidate.name()))
+                type = candidate;
+        }
+
+        if (type == null || colon + 1 + UUID_LENGTH > end)
+            throw new IllegalArgumentException("Invalid iden");
+
+        return new Iden(type, parseUUID(text, colon + 1, colon + 1 + UUID_LENGTH));
+    }
+
+    private static UUID parseUUID(Text text, int start, int end) {
+        if (end - start != UUID_LENGTH)
+            throw new IllegalArgumentException("Invalid uuid");
+
+        return new UUID(parseHex(text, start), parseHex(text, start + 16));
+    }
+
+    private static long parseHex(Text text, int start) {
+        long value = 0;
+        for (int i = start; i < start + 16; i++) {
+            final int digit = Character.digit(text.at(i), 16);
+            if (digit < 0)
+                throw new IllegalArgumentException("Invalid uuid");
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static boolean matches(Text text, int start, int end, String name) {
+        if (end - start != name.length())
+            return false;
+
+        for (int i = 0; i < name.length(); i++)
+            if (text.at(start + i) != name.charAt(i))
+                return false;
+        return true;
+    }
+
+    private interface Text {
+        int length();
+
+        int at(int index);
+    }
+
+    private static final class BytesText implements Text {
+        private final byte[] array;
+        private final int offset;
+        private final int length;
+
+        BytesText(byte[] array, int offset, int length) {
+            this.array = array;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public int at(int index) {
+            return array[offset + index] & 0xff;
+        }
+    }
+
+    private static final class StringText implements Text {
+        private final String text;
+
+        StringText(String text) {
+            this.text = text;
+        }
+
+        public int length() {
+            return text.length();
+        }
+
+        public int at(int index) {
+            return text.charAt(index);
+        }
+    }
+}
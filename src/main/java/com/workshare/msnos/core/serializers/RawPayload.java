@@ -0,0 +1,83 @@
+package com.workshare.msnos.core.serializers;
+
+import java.nio.charset.Charset;
+
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Message.Payload;
+
+/**
+ * The payload of a received message, still in the form it came from the
+ * wire: it's decoded only when someone asks for it, once, and the result is
+ * shared by all the copies of the message. As long as the payload is not
+ * replaced, a serializer of the same format can write these bytes back as
+ * they are, so a relayed message never needs its payload at all.
+ */
+public final class RawPayload {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    interface Decoder {
+        Payload decode(byte[] array, int offset, int length, Message.Type type);
+    }
+
+    private final Class<? extends WireSerializer> format;
+    private final Decoder decoder;
+    private final byte[] array;
+    private final int offset;
+    private final int length;
+
+    private volatile Payload decoded;
+
+    RawPayload(Class<? extends WireSerializer> format, Decoder decoder, byte[] array, int offset, int length) {
+        this.format = format;
+        this.decoder = decoder;
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns the decoded payload, decoding it on the first call: a malformed
+     * payload surfaces here as an unchecked exception from the decoder
+     */
+    public Payload decode(Message.Type type) {
+        Payload current = decoded;
+        if (current == null) {
+            current = decoder.decode(array, offset, length, type);
+            decoded = current;
+        }
+        return current;
+    }
+
+    public boolean isDecoded() {
+        return decoded != null;
+    }
+
+    public int size() {
+        return length;
+    }
+
+    boolean isFormat(Class<? extends WireSerializer> clazz) {
+        return format == clazz;
+    }
+
+    byte[] array() {
+        return array;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    /**
+     * Returns the payload as received, without decoding it: json payloads
+     * are shown as they are, binary ones only by their size
+     */
+    @Override
+    public String toString() {
+        if (format == WireJsonSerializer.class)
+            return new String(array, offset, length, UTF8);
+        else
+            return "\"<" + length + " bytes>\"";
+    }
+}
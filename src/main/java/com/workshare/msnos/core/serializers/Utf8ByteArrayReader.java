@@ -0,0 +1,101 @@
+package com.workshare.msnos.core.serializers;
+
+import java.io.Reader;
+
+/**
+ * Reads characters straight out of a UTF-8 encoded byte array region, so
+ * that the json parser can work on a received packet without going through
+ * an intermediate String or the buffers of an InputStreamReader.
+ * Malformed sequences are replaced with U+FFFD, as new String(bytes) would do.
+ */
+final class Utf8ByteArrayReader extends Reader {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    private char pendingLowSurrogate;
+
+    Utf8ByteArrayReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (pos >= end && pendingLowSurrogate == 0)
+            return -1;
+
+        int count = 0;
+        if (pendingLowSurrogate != 0) {
+            cbuf[off + count++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+
+        while (count < len && pos < end) {
+            final byte b = data[pos];
+            if (b >= 0) {
+                cbuf[off + count++] = (char) b;
+                pos++;
+                continue;
+            }
+
+            final int cp = decodeMultiByte();
+            if (cp < 0x10000) {
+                cbuf[off + count++] = (char) cp;
+            } else {
+                cbuf[off + count++] = (char) (0xD7C0 + (cp >>> 10));
+                final char low = (char) (0xDC00 + (cp & 0x3FF));
+                if (count < len)
+                    cbuf[off + count++] = low;
+                else
+                    pendingLowSurrogate = low;
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private int decodeMultiByte() {
+        final int lead = data[pos++] & 0xff;
+
+        int needed;
+        int cp;
+        int min;
+        if ((lead & 0xe0) == 0xc0) {
+            needed = 1;
+            cp = lead & 0x1f;
+            min = 0x80;
+        } else if ((lead & 0xf0) == 0xe0) {
+            needed = 2;
+            cp = lead & 0x0f;
+            min = 0x800;
+        } else if ((lead & 0xf8) == 0xf0) {
+            needed = 3;
+            cp = lead & 0x07;
+            min = 0x10000;
+        } else {
+            return REPLACEMENT;
+        }
+
+        while (needed-- > 0) {
+            if (pos >= end || (data[pos] & 0xc0) != 0x80)
+                return REPLACEMENT;
+            cp = (cp << 6) | (data[pos++] & 0x3f);
+        }
+
+        if (cp < min || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF))
+            return REPLACEMENT;
+
+        return cp;
+    }
+}
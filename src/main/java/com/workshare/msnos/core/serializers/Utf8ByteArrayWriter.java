@@ -0,0 +1,121 @@
+package com.workshare.msnos.core.serializers;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Encodes characters as UTF-8 directly into a growing byte array, so that
+ * the json writer output can be sent without building a String first.
+ * Unpaired surrogates are written as '?', as String.getBytes() would do.
+ */
+final class Utf8ByteArrayWriter extends Writer {
+
+    private byte[] buffer;
+    private int count;
+
+    private char pendingHighSurrogate;
+
+    Utf8ByteArrayWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(int c) {
+        put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        ensure(len);
+        for (int i = off; i < off + len; i++)
+            put(cbuf[i]);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        ensure(len);
+        for (int i = off; i < off + len; i++)
+            put(str.charAt(i));
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Appends bytes that are already UTF-8 encoded
+     */
+    public void writeRaw(byte[] array, int offset, int length) {
+        ensure(length);
+        System.arraycopy(array, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * Removes the last byte written, if it matches the expected one
+     */
+    public boolean unwrite(char expected) {
+        if (pendingHighSurrogate != 0 || count == 0 || buffer[count - 1] != expected)
+            return false;
+
+        count--;
+        return true;
+    }
+
+    public byte[] toByteArray() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            putByte('?');
+        }
+
+        return Arrays.copyOf(buffer, count);
+    }
+
+    private void put(char c) {
+        if (pendingHighSurrogate != 0) {
+            final char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                final int cp = Character.toCodePoint(high, c);
+                ensure(4);
+                buffer[count++] = (byte) (0xf0 | (cp >>> 18));
+                buffer[count++] = (byte) (0x80 | ((cp >>> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((cp >>> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+                return;
+            }
+            putByte('?');
+        }
+
+        if (c < 0x80) {
+            putByte(c);
+        } else if (c < 0x800) {
+            ensure(2);
+            buffer[count++] = (byte) (0xc0 | (c >>> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            putByte('?');
+        } else {
+            ensure(3);
+            buffer[count++] = (byte) (0xe0 | (c >>> 12));
+            buffer[count++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+            buffer[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private void putByte(int b) {
+        ensure(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void ensure(int extra) {
+        if (count + extra > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+    }
+}
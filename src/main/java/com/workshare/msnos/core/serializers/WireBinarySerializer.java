@@ -0,0 +1,567 @@
+package com.workshare.msnos.core.serializers;
+
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.google.gson.JsonElement;
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Message.Payload;
+import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.Version;
+import com.workshare.msnos.core.payloads.FltPayload;
+import com.workshare.msnos.core.payloads.GenericPayload;
+import com.workshare.msnos.core.payloads.HealthcheckPayload;
+import com.workshare.msnos.core.payloads.NullPayload;
+import com.workshare.msnos.core.payloads.PongPayload;
+import com.workshare.msnos.core.payloads.Presence;
+import com.workshare.msnos.core.payloads.QnePayload;
+import com.workshare.msnos.core.payloads.TracePayload;
+import com.workshare.msnos.core.protocols.ip.BaseEndpoint;
+import com.workshare.msnos.core.protocols.ip.Endpoint;
+import com.workshare.msnos.core.protocols.ip.HttpEndpoint;
+import com.workshare.msnos.core.protocols.ip.Network;
+
+/**
+ * A compact binary serializer for messages, marked on the wire by the
+ * {@link Version#V2_0} header. Every frame starts with the version major and
+ * minor bytes: a JSON document always starts with '{', so the two encodings can
+ * be told apart looking at the first byte, and this serializer will happily
+ * decode both. Anything that is not a message (or a payload) is handled as
+ * JSON, as well as all the text based methods.
+ *
+ * Frame layout: version(2) type(1) flags(1) uuid(16) from(17) to(17)
+ * hops(zigzag varint) when(varint) [sig] [rnd] [payload], where strings are
+ * length prefixed UTF-8 and the payload is a tag byte followed by a length
+ * prefixed body
+ *
+ * @author bbossola
+ */
+public class WireBinarySerializer implements WireSerializer {
+
+    public static final Version WIRE_VERSION = Version.V2_0;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_RELIABLE = 0x01;
+    private static final int FLAG_SIG = 0x02;
+    private static final int FLAG_RND = 0x04;
+    private static final int FLAG_DATA = 0x08;
+
+    // version, type, flags, uuid, from and to come first, all fixed size
+    private static final int HOPS_OFFSET = 2 + 1 + 1 + 16 + 17 + 17;
+
+    private static final int TAG_JSON = 0;
+    private static final int TAG_PRESENCE = 1;
+    private static final int TAG_FLT = 2;
+    private static final int TAG_HCK = 3;
+    private static final int TAG_PONG = 4;
+
+    private static final Map<Message.Type, Class<? extends Payload>> JSON_PAYLOADS = new EnumMap<Message.Type, Class<? extends Payload>>(Message.Type.class);
+    static {
+        JSON_PAYLOADS.put(Message.Type.ACK, TracePayload.class);
+        JSON_PAYLOADS.put(Message.Type.TRC, TracePayload.class);
+        JSON_PAYLOADS.put(Message.Type.QNE, QnePayload.class);
+        JSON_PAYLOADS.put(Message.Type.PRS, Presence.class);
+        JSON_PAYLOADS.put(Message.Type.FLT, FltPayload.class);
+        JSON_PAYLOADS.put(Message.Type.HCK, HealthcheckPayload.class);
+        JSON_PAYLOADS.put(Message.Type.PON, PongPayload.class);
+    }
+
+    private static final Message.Type[] MESSAGE_TYPES = Message.Type.values();
+    private static final Iden.Type[] IDEN_TYPES = Iden.Type.values();
+    private static final Endpoint.Type[] ENDPOINT_TYPES = Endpoint.Type.values();
+
+    private final WireJsonSerializer json;
+
+    private final RawPayload.Decoder payloadDecoder = new RawPayload.Decoder() {
+        @Override
+        public Payload decode(byte[] array, int offset, int length, Message.Type type) {
+            return readPayload(new Input(array, offset, length), type);
+        }
+    };
+
+    public WireBinarySerializer() {
+        this(new WireJsonSerializer());
+    }
+
+    WireBinarySerializer(WireJsonSerializer json) {
+        this.json = json;
+    }
+
+    @Override
+    public <T> T fromText(String text, Class<T> clazz) {
+        return json.fromText(text, clazz);
+    }
+
+    @Override
+    public String toText(Object anyObject) {
+        return json.toText(anyObject);
+    }
+
+    @Override
+    public <T> T fromReader(Reader reader, Class<T> clazz) {
+        return json.fromReader(reader, clazz);
+    }
+
+    @Override
+    public <T> T fromBytes(byte[] array, Class<T> clazz) {
+        return fromBytes(array, 0, array.length, clazz);
+    }
+
+    @Override
+    public <T> T fromBytes(byte[] array, int offset, int length, Class<T> clazz) {
+        if (clazz == Message.class && isBinary(array, offset, length))
+            return clazz.cast(readMessage(Arrays.copyOfRange(array, offset, offset + length)));
+        else
+            return json.fromBytes(array, offset, length, clazz);
+    }
+
+    @Override
+    public byte[] toBytes(Object anyObject) {
+        if (anyObject instanceof Message) {
+            final Output out = new Output(128);
+            writeMessage(out, (Message) anyObject);
+            return out.toByteArray();
+        } else if (anyObject instanceof Payload) {
+            final Output out = new Output(64);
+            writePayload(out, (Payload) anyObject);
+            return out.toByteArray();
+        } else
+            return json.toBytes(anyObject);
+    }
+
+    @Override
+    public byte[] withHops(byte[] encoded, int hops) {
+        if (!isBinary(encoded, 0, encoded.length))
+            return null;
+
+        final Input in = new Input(encoded, 0, encoded.length);
+        in.skip(HOPS_OFFSET);
+        in.readVarint();
+        final int end = in.position();
+
+        final Output out = new Output(encoded.length + 5);
+        out.write(encoded, 0, HOPS_OFFSET);
+        out.writeVarint(zigzag(hops));
+        out.write(encoded, end, encoded.length - end);
+        return out.toByteArray();
+    }
+
+    public static boolean isBinary(byte[] array, int offset, int length) {
+        return length >= 2 && array[offset] == WIRE_VERSION.getMajor() && array[offset + 1] == WIRE_VERSION.getMinor();
+    }
+
+    private void writeMessage(Output out, Message msg) {
+        final String sig = msg.getSig();
+        final String rnd = msg.getRnd();
+        final RawPayload raw = msg.getRawData();
+        final boolean passthrough = raw != null && raw.isFormat(WireBinarySerializer.class);
+        final Payload data = passthrough ? null : msg.getData();
+
+        int flags = 0;
+        if (msg.isReliable())
+            flags |= FLAG_RELIABLE;
+        if (sig != null)
+            flags |= FLAG_SIG;
+        if (rnd != null)
+            flags |= FLAG_RND;
+        if (passthrough || !(data instanceof NullPayload))
+            flags |= FLAG_DATA;
+
+        out.write(WIRE_VERSION.getMajor());
+        out.write(WIRE_VERSION.getMinor());
+        out.write(msg.getType().ordinal());
+        out.write(flags);
+        writeUUID(out, msg.getUuid());
+        writeIden(out, msg.getFrom());
+        writeIden(out, msg.getTo());
+        out.writeVarint(zigzag(msg.getHops()));
+        out.writeVarlong(msg.getWhen());
+        if (sig != null)
+            writeString(out, sig);
+        if (rnd != null)
+            writeString(out, rnd);
+        if (passthrough)
+            out.write(raw.array(), raw.offset(), raw.size());
+        else if ((flags & FLAG_DATA) != 0)
+            writePayload(out, data);
+    }
+
+    // the received bytes are kept, so that a relay only patches the hops
+    private Message readMessage(byte[] received) {
+        final Message message = readMessage(new Input(received, 0, received.length));
+        message.setReceivedBytes(received);
+        return message;
+    }
+
+    private Message readMessage(Input in) {
+        in.skip(2);
+
+        final Message.Type type = MESSAGE_TYPES[in.readEnum(MESSAGE_TYPES.length)];
+        final int flags = in.read();
+        final UUID uuid = readUUID(in);
+        final Iden from = readIden(in);
+        final Iden to = readIden(in);
+        final int hops = unzigzag(in.readVarint());
+        final long when = in.readVarlong();
+        final String sig = ((flags & FLAG_SIG) != 0) ? readString(in) : null;
+        final String rnd = ((flags & FLAG_RND) != 0) ? readString(in) : null;
+        final RawPayload raw = ((flags & FLAG_DATA) != 0) ? skipPayload(in) : null;
+
+        return new MessageBuilder(type, from, to)
+            .withHops(hops)
+            .with(raw)
+            .with(uuid)
+            .at(when)
+            .reliable((flags & FLAG_RELIABLE) != 0)
+            .signed(sig, rnd)
+            .make();
+    }
+
+    // the payload is left in the received bytes, to be decoded only if needed
+    private RawPayload skipPayload(Input in) {
+        final int start = in.position();
+        in.read();
+        final int length = in.readVarint();
+        in.skip(length);
+
+        return new RawPayload(WireBinarySerializer.class, payloadDecoder, in.array(), start, in.position() - start);
+    }
+
+    private void writePayload(Output out, Payload data) {
+        final int tag;
+        if (data instanceof Presence)
+            tag = TAG_PRESENCE;
+        else if (data instanceof FltPayload)
+            tag = TAG_FLT;
+        else if (data instanceof HealthcheckPayload)
+            tag = TAG_HCK;
+        else if (data instanceof PongPayload)
+            tag = TAG_PONG;
+        else
+            tag = TAG_JSON;
+
+        out.write(tag);
+        final int mark = out.reserveLength();
+        switch (tag) {
+            case TAG_PRESENCE:
+                writePresence(out, (Presence) data);
+                break;
+            case TAG_FLT:
+                writeNullableIden(out, ((FltPayload) data).getAbout());
+                break;
+            case TAG_HCK:
+                final HealthcheckPayload hck = (HealthcheckPayload) data;
+                writeIden(out, hck.getIden());
+                out.write(hck.isWorking() ? 1 : 0);
+                break;
+            case TAG_PONG:
+                break;
+            default:
+                out.write(json.toBytes(data));
+                break;
+        }
+        out.commitLength(mark);
+    }
+
+    private Payload readPayload(Input in, Message.Type type) {
+        final int tag = in.read();
+        final int length = in.readVarint();
+        final int end = in.position() + length;
+
+        final Payload data;
+        switch (tag) {
+            case TAG_PRESENCE:
+                data = readPresence(in);
+                break;
+            case TAG_FLT:
+                data = new FltPayload(readNullableIden(in));
+                break;
+            case TAG_HCK:
+                data = new HealthcheckPayload(readIden(in), in.read() != 0);
+                break;
+            case TAG_PONG:
+                data = new PongPayload();
+                break;
+            case TAG_JSON:
+                data = readJsonPayload(in.array(), in.position(), length, type);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload tag " + tag);
+        }
+
+        in.seek(end);
+        return data;
+    }
+
+    private Payload readJsonPayload(byte[] array, int offset, int length, Message.Type type) {
+        final Class<? extends Payload> clazz = JSON_PAYLOADS.get(type);
+        if (clazz == null)
+            return new GenericPayload(json.fromBytes(array, offset, length, JsonElement.class));
+
+        if (type == Message.Type.ACK) {
+            try {
+                return json.fromBytes(array, offset, length, clazz);
+            } catch (Exception ignore) {
+                return null;
+            }
+        }
+
+        return json.fromBytes(array, offset, length, clazz);
+    }
+
+    private void writePresence(Output out, Presence presence) {
+        final Set<Endpoint> endpoints = presence.getEndpoints();
+        out.write(presence.isPresent() ? 1 : 0);
+        out.writeVarint(endpoints == null ? 0 : endpoints.size());
+        if (endpoints == null)
+            return;
+
+        for (Endpoint endpoint : endpoints) {
+            final Network network = endpoint.getNetwork();
+            final byte[] address = network.getAddress();
+            out.write(endpoint.getType().ordinal());
+            out.writeShort(endpoint.getPort());
+            out.write(address.length);
+            out.write(address);
+            out.writeShort(network.getPrefix());
+            if (endpoint instanceof HttpEndpoint)
+                writeString(out, ((HttpEndpoint) endpoint).getUrl());
+        }
+    }
+
+    private Presence readPresence(Input in) {
+        final boolean present = in.read() != 0;
+        final int count = in.readVarint();
+
+        final Set<Endpoint> endpoints = new HashSet<Endpoint>();
+        for (int i = 0; i < count; i++) {
+            final Endpoint.Type type = ENDPOINT_TYPES[in.readEnum(ENDPOINT_TYPES.length)];
+            final short port = in.readShort();
+            final byte[] address = in.readBytes(in.read());
+            final short prefix = in.readShort();
+            final Network network = new Network(address, prefix);
+            if (type == Endpoint.Type.HTTP)
+                endpoints.add(new HttpEndpoint(network, readString(in)));
+            else
+                endpoints.add(new BaseEndpoint(type, network, port));
+        }
+
+        return new Presence(present, endpoints);
+    }
+
+    private void writeIden(Output out, Iden iden) {
+        out.write(iden.getType().ordinal());
+        writeUUID(out, iden.getUUID());
+    }
+
+    private Iden readIden(Input in) {
+        final Iden.Type type = IDEN_TYPES[in.readEnum(IDEN_TYPES.length)];
+        return new Iden(type, readUUID(in));
+    }
+
+    private void writeNullableIden(Output out, Iden iden) {
+        out.write(iden == null ? 0 : 1);
+        if (iden != null)
+            writeIden(out, iden);
+    }
+
+    private Iden readNullableIden(Input in) {
+        return (in.read() == 0) ? null : readIden(in);
+    }
+
+    private void writeUUID(Output out, UUID uuid) {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private UUID readUUID(Input in) {
+        final long msb = in.readLong();
+        final long lsb = in.readLong();
+        return new UUID(msb, lsb);
+    }
+
+    private void writeString(Output out, String text) {
+        final byte[] bytes = text.getBytes(UTF8);
+        out.writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(Input in) {
+        final int length = in.readVarint();
+        in.skip(length);
+        return new String(in.array(), in.position() - length, length, UTF8);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static final class Output {
+        private byte[] buf;
+        private int pos;
+
+        Output(int size) {
+            this.buf = new byte[size];
+        }
+
+        void write(int value) {
+            ensure(1);
+            buf[pos++] = (byte) value;
+        }
+
+        void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, pos, length);
+            pos += length;
+        }
+
+        void writeShort(int value) {
+            ensure(2);
+            buf[pos++] = (byte) (value >>> 8);
+            buf[pos++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                buf[pos++] = (byte) (value >>> shift);
+        }
+
+        void writeVarint(int value) {
+            writeVarlong(value & 0xffffffffL);
+        }
+
+        void writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        // lengths are written as a fixed 3 bytes varint, so that the body can be encoded in place
+        int reserveLength() {
+            ensure(3);
+            final int mark = pos;
+            pos += 3;
+            return mark;
+        }
+
+        void commitLength(int mark) {
+            final int length = pos - mark - 3;
+            if (length >= (1 << 21))
+                throw new IllegalArgumentException("Payload too big to be encoded: " + length + " bytes");
+
+            buf[mark] = (byte) ((length & 0x7f) | 0x80);
+            buf[mark + 1] = (byte) (((length >>> 7) & 0x7f) | 0x80);
+            buf[mark + 2] = (byte) (length >>> 14);
+        }
+
+        byte[] toByteArray() {
+            final byte[] res = new byte[pos];
+            System.arraycopy(buf, 0, res, 0, pos);
+            return res;
+        }
+
+        private void ensure(int more) {
+            if (pos + more > buf.length) {
+                final byte[] newbuf = new byte[Math.max(buf.length * 2, pos + more)];
+                System.arraycopy(buf, 0, newbuf, 0, pos);
+                buf = newbuf;
+            }
+        }
+    }
+
+    static final class Input {
+        private final byte[] buf;
+        private final int limit;
+        private int pos;
+
+        Input(byte[] array, int offset, int length) {
+            this.buf = array;
+            this.pos = offset;
+            this.limit = offset + length;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        void seek(int position) {
+            if (position > limit)
+                throw new IllegalArgumentException("Truncated binary message");
+            pos = position;
+        }
+
+        void skip(int count) {
+            seek(pos + count);
+        }
+
+        int read() {
+            if (pos >= limit)
+                throw new IllegalArgumentException("Truncated binary message");
+            return buf[pos++] & 0xff;
+        }
+
+        int readEnum(int size) {
+            final int ordinal = read();
+            if (ordinal >= size)
+                throw new IllegalArgumentException("Invalid enum ordinal " + ordinal);
+            return ordinal;
+        }
+
+        short readShort() {
+            return (short) ((read() << 8) | read());
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++)
+                value = (value << 8) | read();
+            return value;
+        }
+
+        byte[] readBytes(int length) {
+            final byte[] res = new byte[length];
+            skip(length);
+            System.arraycopy(buf, pos - length, res, 0, length);
+            return res;
+        }
+
+        int readVarint() {
+            return (int) readVarlong();
+        }
+
+        long readVarlong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = read();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package com.workshare.msnos.core.serializers;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.lang.reflect.Type;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.UUID;
 
 import org.slf4j.Logger;
@@ -13,12 +17,19 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.workshare.msnos.core.Iden;
 import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.Message.Payload;
@@ -44,6 +55,13 @@ public class WireJsonSerializer implements WireSerializer {
 
     private static Logger log = LoggerFactory.getLogger(WireSerializer.class);
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // only keeps a reference to this, so it's safe to build it here
+    private final WireBinarySerializer binary = new WireBinarySerializer(this);
+
     @Override
     public <T> T fromText(String text, Class<T> clazz) {
         try {
@@ -66,20 +84,127 @@ public class WireJsonSerializer implements WireSerializer {
 
     @Override
     public <T> T fromBytes(byte[] array, Class<T> clazz) {
-        return fromText(new String(array, Charset.forName("UTF-8")), clazz);
+        return fromBytes(array, 0, array.length, clazz);
     }
 
     @Override
     public <T> T fromBytes(byte[] array, int offset, int length, Class<T> clazz) {
-        return fromText(new String(array, offset, length, Charset.forName("UTF-8")), clazz);
+        if (clazz == Message.class && WireBinarySerializer.isBinary(array, offset, length))
+            return binary.fromBytes(array, offset, length, clazz);
+
+        try {
+            if (clazz == Message.class)
+                return clazz.cast(readMessage(Arrays.copyOfRange(array, offset, offset + length)));
+            else
+                return gson.fromReader(new Utf8ByteArrayReader(array, offset, length), clazz);
+        } catch (JsonSyntaxException ex) {
+            log.warn("Error parsing JSON content: {}", new String(array, offset, length, Charset.forName("UTF-8")));
+            throw ex;
+        }
     }
 
     @Override
     public byte[] toBytes(Object anyObject) {
-        final String json = gson.toJson(anyObject);
-        return json.getBytes(Charset.forName("UTF-8"));
+        final Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(512);
+        if (anyObject instanceof Message && hasJsonRawData((Message) anyObject))
+            writeMessage(writer, (Message) anyObject);
+        else
+            gson.toJson(anyObject, writer);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public byte[] withHops(byte[] encoded, int hops) {
+        if (WireBinarySerializer.isBinary(encoded, 0, encoded.length))
+            return null;
+
+        final int[] range = MessageHeader.locate(encoded, 0, encoded.length, "hp");
+        if (range == null)
+            return null;
+
+        final byte[] value = Integer.toString(hops).getBytes(ASCII);
+        final int start = range[0];
+        final int end = range[1];
+        if (end - start == value.length && regionMatches(encoded, start, value))
+            return encoded;
+
+        final byte[] patched = new byte[encoded.length - (end - start) + value.length];
+        System.arraycopy(encoded, 0, patched, 0, start);
+        System.arraycopy(value, 0, patched, start, value.length);
+        System.arraycopy(encoded, end, patched, start + value.length, encoded.length - end);
+        return patched;
     }
 
+    private static boolean regionMatches(byte[] array, int offset, byte[] value) {
+        for (int i = 0; i < value.length; i++)
+            if (array[offset + i] != value[i])
+                return false;
+        return true;
+    }
+
+    // the payload is kept in its received form, to be decoded only if needed
+    private static Message readMessage(byte[] received) {
+        try {
+            final Message message = messageAdapter().read(newLenientReader(received, 0, received.length), received);
+            message.setReceivedBytes(received);
+            return message;
+        } catch (IOException ex) {
+            throw new JsonSyntaxException(ex);
+        } catch (IllegalStateException ex) {
+            throw new JsonSyntaxException(ex);
+        }
+    }
+
+    // the payload bytes are copied as they are after the other fields
+    private static void writeMessage(Utf8ByteArrayWriter writer, Message message) {
+        final RawPayload raw = message.getRawData();
+        try {
+            final JsonWriter out = new JsonWriter(writer);
+            out.setLenient(true);
+            out.setHtmlSafe(true);
+            out.setSerializeNulls(false);
+            messageAdapter().write(out, message, false);
+            out.flush();
+
+            if (!writer.unwrite('}'))
+                throw new JsonIOException("Message was not written as a json object");
+
+            writer.write(",\"dt\":");
+            writer.writeRaw(raw.array(), raw.offset(), raw.size());
+            writer.write('}');
+        } catch (IOException ex) {
+            throw new JsonIOException(ex);
+        }
+    }
+
+    private static boolean hasJsonRawData(Message message) {
+        final RawPayload raw = message.getRawData();
+        return raw != null && raw.isFormat(WireJsonSerializer.class);
+    }
+
+    private static JsonReader newLenientReader(byte[] array, int offset, int length) {
+        final JsonReader reader = new JsonReader(new Utf8ByteArrayReader(array, offset, length));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static MessageAdapter messageAdapter() {
+        return (MessageAdapter) gson.gson().getAdapter(Message.class);
+    }
+
+    private static final RawPayload.Decoder PAYLOAD_DECODER = new RawPayload.Decoder() {
+        @Override
+        public Payload decode(byte[] array, int offset, int length, Message.Type type) {
+            try {
+                return messageAdapter().readPayload(newLenientReader(array, offset, length), type);
+            } catch (IOException ex) {
+                throw new JsonSyntaxException(ex);
+            } catch (IllegalStateException ex) {
+                throw new JsonSyntaxException(ex);
+            }
+        }
+    };
+
     private static final JsonSerializer<Boolean> ENC_BOOL = new JsonSerializer<Boolean>() {
         @Override
         public JsonElement serialize(Boolean value, Type typeof, JsonSerializationContext context) {
@@ -120,7 +245,7 @@ public class WireJsonSerializer implements WireSerializer {
     private static final JsonSerializer<Iden> ENC_IDEN = new JsonSerializer<Iden>() {
         @Override
         public JsonElement serialize(Iden iden, Type typeof, JsonSerializationContext context) {
-            return serializeIden(iden, true);
+            return new JsonPrimitive(serializeIden(iden));
         }
     };
 
@@ -128,7 +253,7 @@ public class WireJsonSerializer implements WireSerializer {
         @Override
         public Iden deserialize(JsonElement json, Type typeof, JsonDeserializationContext context)
                 throws JsonParseException {
-            return deserializeIden(json);
+            return deserializeIden(json.getAsString());
         }
     };
 
@@ -143,13 +268,7 @@ public class WireJsonSerializer implements WireSerializer {
         @Override
         public Version deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
                 throws JsonParseException {
-            final String text = json.getAsString();
-            final int dotIndex = text.indexOf(".");
-
-            final int major = Integer.parseInt(text.substring(0, dotIndex));
-            final int minor = Integer.parseInt(text.substring(dotIndex + 1));
-
-            return new Version(major, minor);
+            return Version.parse(json.getAsString());
         }
     };
 
@@ -250,88 +369,204 @@ public class WireJsonSerializer implements WireSerializer {
         }
     };
 
-    private static final JsonSerializer<Message> ENC_MESSAGE = new JsonSerializer<Message>() {
+    private static final Map<Message.Type, Class<? extends Payload>> PAYLOADS = new EnumMap<Message.Type, Class<? extends Payload>>(Message.Type.class);
+    static {
+        PAYLOADS.put(Message.Type.ACK, TracePayload.class);
+        PAYLOADS.put(Message.Type.PRS, Presence.class);
+        PAYLOADS.put(Message.Type.QNE, QnePayload.class);
+        PAYLOADS.put(Message.Type.FLT, FltPayload.class);
+        PAYLOADS.put(Message.Type.HCK, HealthcheckPayload.class);
+        PAYLOADS.put(Message.Type.PON, PongPayload.class);
+        PAYLOADS.put(Message.Type.TRC, TracePayload.class);
+    }
+
+    private static final TypeAdapterFactory MESSAGE_ADAPTER = new TypeAdapterFactory() {
         @Override
-        public JsonElement serialize(Message msg, Type typeof, JsonSerializationContext context) {
-            final JsonObject res = new JsonObject();
-            res.add("v", context.serialize(msg.getVersion()));
-            res.add("fr", context.serialize(msg.getFrom()));
-            res.add("to", serializeIden(msg.getTo(), false));
-            res.add("rx", context.serialize(msg.isReliable()));
-            res.addProperty("hp", msg.getHops());
-            res.addProperty("ty", msg.getType().toString());
-            res.addProperty("ss", msg.getSig());
-            res.addProperty("rr", msg.getRnd());
-            res.addProperty("ts", msg.getWhen());
-            res.add("id", context.serialize(msg.getUuid()));
-            if (!(msg.getData() instanceof NullPayload))
-                res.add("dt", context.serialize(msg.getData()));
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != Message.class)
+                return null;
 
-            return res;
+            return (TypeAdapter<T>) new MessageAdapter(gson);
         }
     };
 
-    private static final JsonDeserializer<Message> DEC_MESSAGE = new JsonDeserializer<Message>() {
+    /**
+     * Streams messages in and out without building a json tree: fields are
+     * written in the historical order and read in whatever order they come,
+     * with the payload decoded directly once its type is known
+     */
+    private static class MessageAdapter extends TypeAdapter<Message> {
+
+        private final Gson gson;
+
+        MessageAdapter(Gson gson) {
+            this.gson = gson;
+        }
+
         @Override
-        public Message deserialize(JsonElement json, Type typeof, JsonDeserializationContext context)
-                throws JsonParseException {
-            final JsonObject obj = json.getAsJsonObject();
+        public void write(JsonWriter out, Message msg) throws IOException {
+            write(out, msg, true);
+        }
 
-            final UUID uuid;
-            if (obj.get("id") != null) uuid = context.deserialize(obj.get("id").getAsJsonPrimitive(), UUID.class);
-            else uuid = null;
+        void write(JsonWriter out, Message msg, boolean withData) throws IOException {
+            if (msg == null) {
+                out.nullValue();
+                return;
+            }
+
+            final Version version = msg.getVersion();
+            out.beginObject();
+            out.name("v").value(version.getMajor() + "." + version.getMinor());
+            out.name("fr").value(serializeIden(msg.getFrom()));
+            out.name("to").value(serializeIden(msg.getTo()));
+            out.name("rx").value(msg.isReliable() ? 1 : 0);
+            out.name("hp").value(msg.getHops());
+            out.name("ty").value(msg.getType().toString());
+            out.name("ss").value(msg.getSig());
+            out.name("rr").value(msg.getRnd());
+            out.name("ts").value(msg.getWhen());
+            out.name("id").value(msg.getUuid() == null ? null : serializeUUIDToShortString(msg.getUuid()));
+
+            final Payload data = withData ? msg.getData() : null;
+            if (data != null && !(data instanceof NullPayload)) {
+                out.name("dt");
+                gson.toJson(data, data.getClass(), out);
+            }
+
+            out.endObject();
+        }
+
+        @Override
+        public Message read(JsonReader in) throws IOException {
+            return read(in, null);
+        }
 
-            final Message.Type type = Message.Type.valueOf(obj.get("ty").getAsString());
-            final Iden from = context.deserialize(obj.get("fr").getAsJsonPrimitive(), Iden.class);
-            final Iden to = context.deserialize(obj.get("to").getAsJsonPrimitive(), Iden.class);
-            final int hops = obj.get("hp").getAsInt();
-            final Boolean reliable = context.deserialize(obj.get("rx"), Boolean.class);
-            final String sig = getString(obj, "ss");
-            final String rnd = getString(obj, "rr");
-            final long when = obj.get("ts").getAsLong();
+        /**
+         * Reads a message: when the source bytes are given the payload is
+         * skipped, and attached to the message in its raw form
+         */
+        Message read(JsonReader in, byte[] source) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
 
+            Message.Type type = null;
+            Iden from = null;
+            Iden to = null;
+            Integer hops = null;
+            Boolean reliable = null;
+            String sig = null;
+            String rnd = null;
+            Long when = null;
+            UUID uuid = null;
             Payload data = null;
-            JsonElement dataJson = obj.get("dt");
-            if (dataJson != null) {
-                switch (type) {
-                    case ACK:
-                        try {data = (Payload) gson.fromJsonTree(dataJson, TracePayload.class);}
-                        catch (Exception ignore) {}
-                        break;
-                    case PRS:
-                        data = (Payload) gson.fromJsonTree(dataJson, Presence.class);
-                        break;
-                    case QNE:
-                        data = (Payload) gson.fromJsonTree(dataJson, QnePayload.class);
-                        break;
-                    case FLT:
-                        data = (Payload) gson.fromJsonTree(dataJson, FltPayload.class);
-                        break;
-                    case HCK:
-                        data = (Payload) gson.fromJsonTree(dataJson, HealthcheckPayload.class);
-                        break;
-                    case PON:
-                        data = (Payload) gson.fromJsonTree(dataJson, PongPayload.class);
-                        break;
-                    case TRC:
-                        data = (Payload) gson.fromJsonTree(dataJson, TracePayload.class);
-                        break;
-                    default:
-                        data = (dataJson == null ? NullPayload.INSTANCE : new GenericPayload(dataJson));
-                        break;
+            JsonElement early = null;
+            boolean skipped = false;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                final String name = in.nextName();
+                if ("ty".equals(name))
+                    type = Message.Type.valueOf(in.nextString());
+                else if ("fr".equals(name))
+                    from = deserializeIden(in.nextString());
+                else if ("to".equals(name))
+                    to = deserializeIden(in.nextString());
+                else if ("hp".equals(name))
+                    hops = in.nextInt();
+                else if ("rx".equals(name))
+                    reliable = readBoolean(in);
+                else if ("ss".equals(name))
+                    sig = readString(in);
+                else if ("rr".equals(name))
+                    rnd = readString(in);
+                else if ("ts".equals(name))
+                    when = in.nextLong();
+                else if ("id".equals(name))
+                    uuid = deserializeUUIDFromShortString(in.nextString());
+                else if ("dt".equals(name)) {
+                    if (source != null) {
+                        in.skipValue();
+                        skipped = true;
+                    }
+                    else if (type != null)
+                        data = readPayload(in, type);
+                    else
+                        early = gson.getAdapter(JsonElement.class).read(in);
                 }
+                else
+                    in.skipValue();
+            }
+            in.endObject();
+
+            if (type == null || from == null || to == null || hops == null || reliable == null || when == null)
+                throw new JsonSyntaxException("Message is missing mandatory fields");
+
+            if (early != null)
+                data = toPayload(early, type);
+
+            RawPayload raw = null;
+            if (skipped) {
+                final int[] range = MessageHeader.locate(source, 0, source.length, "dt");
+                if (range == null)
+                    return read(newLenientReader(source, 0, source.length), null);
+
+                raw = new RawPayload(WireJsonSerializer.class, PAYLOAD_DECODER, source, range[0], range[1] - range[0]);
             }
 
             return new MessageBuilder(type, from, to)
                     .withHops(hops)
                     .with(data)
+                    .with(raw)
                     .with(uuid)
                     .at(when)
                     .reliable(reliable)
                     .signed(sig, rnd)
                     .make();
         }
-    };
+
+        Payload readPayload(JsonReader in, Message.Type type) throws IOException {
+            final Class<? extends Payload> clazz = PAYLOADS.get(type);
+            if (clazz == null || type == Message.Type.ACK)
+                return toPayload(gson.getAdapter(JsonElement.class).read(in), type);
+
+            return gson.fromJson(in, clazz);
+        }
+
+        private Payload toPayload(JsonElement json, Message.Type type) {
+            final Class<? extends Payload> clazz = PAYLOADS.get(type);
+            if (clazz == null)
+                return new GenericPayload(json);
+
+            if (type == Message.Type.ACK) {
+                try {
+                    return gson.fromJson(json, clazz);
+                } catch (Exception ignore) {
+                    return null;
+                }
+            }
+
+            return gson.fromJson(json, clazz);
+        }
+
+        private static Boolean readBoolean(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.BOOLEAN)
+                return in.nextBoolean();
+            else
+                return in.nextInt() == 0 ? Boolean.FALSE : Boolean.TRUE;
+        }
+
+        private static String readString(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            return in.nextString();
+        }
+    }
 
     private static final ThreadSafeGson gson = new ThreadSafeGson() {
         protected Gson newGson() {
@@ -357,8 +592,7 @@ public class WireJsonSerializer implements WireSerializer {
             builder.registerTypeAdapter(Version.class, ENC_VERSION);
             builder.registerTypeAdapter(Version.class, DEC_VERSION);
 
-            builder.registerTypeAdapter(Message.class, ENC_MESSAGE);
-            builder.registerTypeAdapter(Message.class, DEC_MESSAGE);
+            builder.registerTypeAdapterFactory(MESSAGE_ADAPTER);
 
             builder.registerTypeAdapter(RestApi.class, ENC_RESTAPI);
             builder.registerTypeAdapter(RestApi.class, DEC_RESTAPI);
@@ -372,14 +606,11 @@ public class WireJsonSerializer implements WireSerializer {
         }
     };
 
-    private static final JsonPrimitive serializeIden(Iden iden, boolean includeSuid) {
-        String text = iden.getType() + ":" + serializeUUIDToShortString(iden.getUUID());
-        return new JsonPrimitive(text);
+    private static final String serializeIden(Iden iden) {
+        return iden.getType() + ":" + serializeUUIDToShortString(iden.getUUID());
     }
 
-    private static final Iden deserializeIden(JsonElement json) {
-        String text = json.getAsString();
-
+    private static final Iden deserializeIden(String text) {
         int idx1 = text.indexOf(':');
         int idx2 = text.indexOf(':', idx1 + 1);
         idx2 = (idx2 > 0 ? idx2 : text.length());
@@ -391,10 +622,23 @@ public class WireJsonSerializer implements WireSerializer {
     }
 
     private static String serializeUUIDToShortString(UUID uuid) {
-        return uuid.toString().replaceAll("-", "");
+        final char[] text = new char[32];
+        appendHex(text, 0, uuid.getMostSignificantBits());
+        appendHex(text, 16, uuid.getLeastSignificantBits());
+        return new String(text);
+    }
+
+    private static void appendHex(char[] text, int offset, long value) {
+        for (int i = offset + 15; i >= offset; i--) {
+            text[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
     }
 
     private static UUID deserializeUUIDFromShortString(String text) {
+        if (text.length() == 32 && isHex(text))
+            return new UUID(parseHex(text, 0), parseHex(text, 16));
+
         try {
             StringBuilder sb = new StringBuilder();
             sb.append(text.substring(0, 8));
@@ -413,6 +657,20 @@ public class WireJsonSerializer implements WireSerializer {
         }
     }
 
+    private static long parseHex(String text, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++)
+            value = (value << 4) | Character.digit(text.charAt(i), 16);
+        return value;
+    }
+
+    private static boolean isHex(String text) {
+        for (int i = 0; i < text.length(); i++)
+            if (Character.digit(text.charAt(i), 16) < 0)
+                return false;
+        return true;
+    }
+
     private static final String getString(final JsonObject obj, final String memberName) {
         final JsonElement jsonElement = obj.get(memberName);
         return (jsonElement == null) ? null : jsonElement.getAsString();
@@ -15,4 +15,11 @@ public interface WireSerializer {
     public byte[] toBytes(Object anyObject);
 
     public <T> T fromReader(Reader reader, Class<T> clazz);
+
+    /**
+     * Returns the encoding of a message received as the given bytes, with
+     * only the hops changed, by patching a copy of them: null is returned
+     * when the bytes are not in the format produced by this serializer
+     */
+    public byte[] withHops(byte[] encoded, int hops);
 }
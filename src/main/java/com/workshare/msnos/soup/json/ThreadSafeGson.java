@@ -54,6 +54,10 @@ public class ThreadSafeGson {
         return gson().toJson(anyObject);
     }
 
+    public final void toJson(Object anyObject, Appendable writer) {
+        gson().toJson(anyObject, writer);
+    }
+
     public final <T> T fromJson(String json, Class<T> clazz) {
         return gson().fromJson(json, clazz);
     }
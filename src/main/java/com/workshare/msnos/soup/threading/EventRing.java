@@ -0,0 +1,193 @@
+package com.workshare.msnos.soup.threading;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A preallocated ring of events with one thread per consumer, in the style
+ * of the LMAX disruptor: publishers write the event reference in the next
+ * slot and move the cursor, each consumer follows the cursor with its own
+ * sequence and handles everything available in one batch. Nothing is
+ * allocated per event. A publisher never overwrites an event not yet seen by
+ * every consumer, waiting for the slowest one instead, so a consumer must
+ * never publish on its own ring.
+ *
+ * How consumers wait for new events is decided by the {@link WaitStrategy}:
+ * spinning gives the lowest latency at the cost of a burnt core per consumer,
+ * blocking the opposite.
+ */
+public class EventRing<E> {
+
+    private static final Logger log = LoggerFactory.getLogger(EventRing.class);
+
+    public static enum WaitStrategy {BUSY_SPIN, YIELD, PARK, BLOCK}
+
+    public static interface Handler<E> {
+        public void handle(E event);
+    }
+
+    private static final long PARK_NANOS = 50000L;
+
+    private final Object[] entries;
+    private final int mask;
+    private final WaitStrategy strategy;
+
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+
+    public EventRing(int size, WaitStrategy strategy) {
+        final int capacity = Integer.highestOneBit(Math.max(2, size));
+        this.entries = new Object[capacity < size ? capacity << 1 : capacity];
+        this.mask = entries.length - 1;
+        this.strategy = strategy;
+    }
+
+    public void publish(E event) {
+        final long seq = claimed.incrementAndGet();
+
+        // wait for the slowest consumer to free the slot
+        while (seq - entries.length > slowest(seq))
+            LockSupport.parkNanos(1000L);
+
+        entries[(int) (seq & mask)] = event;
+
+        // publishers complete in claim order, so the cursor never jumps a slot still being written
+        while (cursor.get() != seq - 1)
+            Thread.yield();
+        cursor.set(seq);
+
+        if (strategy == WaitStrategy.BLOCK) {
+            lock.lock();
+            try {
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts a consumer thread receiving all the events published from now
+     * on, returning the handle to use to stop it
+     */
+    public Consumer addConsumer(String name, Handler<E> handler) {
+        final Consumer consumer = new Consumer(handler, cursor.get());
+        consumers.add(consumer);
+
+        final Thread thread = new Thread(consumer, name);
+        thread.setDaemon(true);
+        consumer.thread = thread;
+        thread.start();
+        return consumer;
+    }
+
+    public void removeConsumer(Consumer consumer) {
+        if (consumers.remove(consumer)) {
+            consumer.running = false;
+            consumer.thread.interrupt();
+        }
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public int consumers() {
+        return consumers.size();
+    }
+
+    /**
+     * Returns how many events the consumer has still to handle
+     */
+    public long lag(Consumer consumer) {
+        return cursor.get() - consumer.sequence.get();
+    }
+
+    private long slowest(long fallback) {
+        long min = fallback;
+        for (Consumer consumer : consumers)
+            min = Math.min(min, consumer.sequence.get());
+        return min;
+    }
+
+    private long waitFor(long next, Consumer consumer) throws InterruptedException {
+        long available;
+        while ((available = cursor.get()) < next && consumer.running) {
+            switch (strategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(PARK_NANOS);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                break;
+            default:
+                lock.lock();
+                try {
+                    if (cursor.get() < next)
+                        published.await(10, TimeUnit.MILLISECONDS);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return available;
+    }
+
+    /**
+     * A consumer of the ring, following it on its own thread
+     */
+    public final class Consumer implements Runnable {
+        private final Handler<E> handler;
+        private final AtomicLong sequence;
+        private volatile boolean running = true;
+        private Thread thread;
+
+        private Consumer(Handler<E> handler, long start) {
+            this.handler = handler;
+            this.sequence = new AtomicLong(start);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            long next = sequence.get() + 1;
+            while (running) {
+                final long available;
+                try {
+                    available = waitFor(next, this);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+
+                // removed while waiting: the events published since are not ours
+                if (!running)
+                    break;
+
+                for (; next <= available; next++) {
+                    try {
+                        handler.handle((E) entries[(int) (next & mask)]);
+                    } catch (Throwable ex) {
+                        log.warn("Consumer " + thread.getName() + " failed handling an event", ex);
+                    }
+                }
+                sequence.lazySet(available);
+            }
+        }
+    }
+}
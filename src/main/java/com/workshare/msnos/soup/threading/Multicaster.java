@@ -1,97 +1,588 @@
-package com.workshare.msnos.soup.threading;
-
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ThreadPoolExecutor;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * This class is an asynchronous multicaster, allows you to send asynchronous
- * notifications to an arbitrary number of listeners, managed by this It's
- * thread safe, it uses internally an Executor to deliver notifications, but you
- * can provide your own instance.
- * An option for synchronous dispatching is also available trough a separate
- * list of listeners which is invoked without using the executor   
- * 
- * 
- * To use it, you need to extend this class and provide an implementation of the
- * dispatch(L listener, M message) method - it should be straightforward.
- * 
- * @author bossola
- * 
- * @param <L>
- *            The listener class
- * @param <M>
- *            The message class (the argument to notify)
- */
-public abstract class Multicaster<L, M> {
-
-    private static final Logger log = LoggerFactory.getLogger(Multicaster.class);
-    public static final Executor THREADPOOL = ExecutorServices.newFixedDaemonThreadPool(Integer.getInteger("msnos.multicaster.threads.num", 5));
-
-    private List<L> syncListeners = new CopyOnWriteArrayList<L>();
-    private List<L> asyncListeners = new CopyOnWriteArrayList<L>();
-
-    private Executor asyncExecutor;
-
-    public Multicaster() {
-        this(THREADPOOL);
-    }
-
-    public Multicaster(Executor executor) {
-        this.asyncExecutor = executor;
-    }
-
-    public L addListener(L listener) {
-        asyncListeners.add(listener);
-        return listener;
-    }
-
-    public L addSynchronousListener(L listener) {
-        syncListeners.add(listener);
-        return listener;
-    }
-
-    public boolean removeListener(L listener) {
-        return asyncListeners.remove(listener);
-    }
-
-    public boolean removeSynchronousListener(L listener) {
-        return syncListeners.remove(listener);
-    }
-
-    public void dispatch(final M message) {
-        if (log.isTraceEnabled()) {
-            ThreadPoolExecutor pool = (ThreadPoolExecutor) asyncExecutor;
-            int active = pool.getActiveCount();
-            int queued = pool.getQueue().size();
-            long total = pool.getTaskCount();
-            log.trace(String.format("%d %d %d\n", active, queued, total));
-        }
-
-        notifySync(message);
-        notifyAsync(message);
-    }
-
-    private void notifySync(final M message) {
-        for (final L listener : syncListeners) {
-            dispatch(listener, message);
-        }
-    }
-
-    private void notifyAsync(final M message) {
-        for (final L listener : asyncListeners) {
-            asyncExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    dispatch(listener, message);
-                }
-            });
-        }
-    }
-
-    protected abstract void dispatch(L listener, M message);
-}
+package com.workshare.msnos.soup.threading;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is an asynchronous multicaster, allows you to send asynchronous
+ * notifications to an arbitrary number of listeners, managed by this It's
+ * thread safe, it uses internally an Executor to deliver notifications, but you
+ * can provide your own instance.
+ * An option for synchronous dispatching is also available trough a separate
+ * list of listeners which is invoked without using the executor   
+ * 
+ * 
+ * Asynchronous listeners can optionally be given each their own bounded
+ * mailbox, drained by one task at a time on the executor: in this mode each
+ * listener receives the messages in the same order they were dispatched, and
+ * a slow listener can only fill its own mailbox. What happens when the
+ * mailbox is full is decided by the {@link Overflow} policy.
+ * 
+ * Asynchronous listeners can subscribe only to some types of messages (see
+ * {@link Multicaster#typeOf}) and to messages for a given recipient (see
+ * {@link Multicaster#recipientOf}): the listeners interested in each type are
+ * precomputed when subscribing, so a message is only handed to them.
+ * 
+ * Alternatively asynchronous listeners can be served by an {@link EventRing}:
+ * messages are published once on a preallocated ring and each listener
+ * follows it on its own thread, at its own pace, handling in one go all the
+ * messages available. Nothing is allocated per message and per listener, at
+ * the cost of a dedicated thread per listener, and the slowest listener
+ * holds back the dispatching thread when the ring is full, so a listener
+ * should never dispatch on the same multicaster. The ring is a mode of this
+ * class rather than a subclass, as the concrete multicasters already extend
+ * it: the ring replaces the mailboxes, so it cannot be combined with an
+ * {@link Overflow} policy.
+ * 
+ * Ordered listeners are instead notified on a shared {@link StripedExecutor},
+ * keyed on {@link Multicaster#keyOf}: messages with the same key reach the
+ * listener in order, one at a time, messages with different keys in parallel.
+ * 
+ * To use it, you need to extend this class and provide an implementation of the
+ * dispatch(L listener, M message) method - it should be straightforward.
+ * 
+ * @author bossola
+ * 
+ * @param <L>
+ *            The listener class
+ * @param <M>
+ *            The message class (the argument to notify)
+ */
+public abstract class Multicaster<L, M> {
+
+    private static final Logger log = LoggerFactory.getLogger(Multicaster.class);
+    public static final Executor THREADPOOL = ExecutorServices.newFixedDaemonThreadPool(Integer.getInteger("msnos.multicaster.threads.num", 5));
+
+    public static final StripedExecutor STRIPES = new StripedExecutor(Integer.getInteger("msnos.multicaster.stripes.num", Runtime.getRuntime().availableProcessors()));
+
+    public static final String SYSP_MAILBOX_POLICY = "msnos.multicaster.mailbox.policy";
+    public static final String SYSP_MAILBOX_CAPACITY = "msnos.multicaster.mailbox.capacity";
+    public static final String SYSP_MAILBOX_WAIT = "msnos.multicaster.mailbox.wait";
+    public static final String SYSP_RING_ENABLED = "msnos.multicaster.ring";
+    public static final String SYSP_RING_SIZE = "msnos.multicaster.ring.size";
+    public static final String SYSP_RING_WAIT = "msnos.multicaster.ring.wait";
+
+    private static final int MAILBOX_BATCH = 64;
+
+    /**
+     * What to do when a listener mailbox is full: wait for room, for a limited
+     * time (see {@link Multicaster#SYSP_MAILBOX_WAIT}) and never from the
+     * listener itself, then drop the new message, evict the oldest message, or evict the oldest message of the same type of the new
+     * one (see {@link Multicaster#typeOf}), dropping the new message if none
+     * of its type is queued
+     */
+    public static enum Overflow {BLOCK, DROP_OLDEST, DROP_BY_TYPE}
+
+    private List<L> syncListeners = new CopyOnWriteArrayList<L>();
+    private List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private List<Mailbox> mailboxes = new CopyOnWriteArrayList<Mailbox>();
+    private List<L> orderedListeners = new CopyOnWriteArrayList<L>();
+
+    private volatile Subscription[] untyped = newSubscriptions(0);
+    private volatile Map<Object, Subscription[]> typed = Collections.emptyMap();
+
+    private final Executor asyncExecutor;
+    private final StripedExecutor stripedExecutor;
+    private final Overflow overflow;
+    private final int capacity;
+    private final long waitMillis;
+    private final EventRing<M> ring;
+
+    public Multicaster() {
+        this(THREADPOOL);
+    }
+
+    public Multicaster(Executor executor) {
+        this(executor, loadOverflow(), Integer.getInteger(SYSP_MAILBOX_CAPACITY, 1024), STRIPES, Multicaster.<M>loadRing());
+    }
+
+    /**
+     * Creates a multicaster where each asynchronous listener has its own
+     * mailbox of the given capacity, or the classic one if overflow is null
+     */
+    public Multicaster(Executor executor, Overflow overflow, int capacity) {
+        this(executor, overflow, capacity, STRIPES);
+    }
+
+    public Multicaster(Executor executor, Overflow overflow, int capacity, StripedExecutor striped) {
+        this(executor, overflow, capacity, striped, null);
+    }
+
+    /**
+     * Creates a multicaster where asynchronous listeners follow the given
+     * ring, if not null, instead of being notified trough the executor: an
+     * overflow policy is not allowed together with a ring
+     */
+    public Multicaster(Executor executor, Overflow overflow, int capacity, StripedExecutor striped, EventRing<M> ring) {
+        if (ring != null && overflow != null)
+            throw new IllegalArgumentException("Mailbox overflow policy " + overflow + " cannot be used with a ring, as ring listeners have no mailbox");
+
+        this.asyncExecutor = executor;
+        this.ring = ring;
+        this.stripedExecutor = striped;
+        this.overflow = overflow;
+        this.capacity = Math.max(1, capacity);
+        this.waitMillis = Long.getLong(SYSP_MAILBOX_WAIT, 1000L);
+    }
+
+    public L addListener(L listener) {
+        return addListener(listener, null, null);
+    }
+
+    public L addListener(L listener, Set<?> types) {
+        return addListener(listener, types, null);
+    }
+
+    /**
+     * Adds an asynchronous listener which receives only messages of the given
+     * types, or all if null, and addressed to the recipient, or any if null
+     */
+    public L addListener(L listener, Set<?> types, Object recipient) {
+        if (ring != null) {
+            final Subscription subscription = new Subscription(listener, null, types, recipient);
+            subscription.consumer = ring.addConsumer("Multicaster-" + listener.getClass().getSimpleName(), new EventRing.Handler<M>() {
+                @Override
+                public void handle(M message) {
+                    if (accepts(subscription, message))
+                        dispatch(subscription.listener, message);
+                }
+            });
+            subscriptions.add(subscription);
+            return listener;
+        }
+
+        final Mailbox mailbox = (overflow != null ? new Mailbox(listener) : null);
+        if (mailbox != null)
+            mailboxes.add(mailbox);
+
+        subscriptions.add(new Subscription(listener, mailbox, types, recipient));
+        reindex();
+        return listener;
+    }
+
+    public L addSynchronousListener(L listener) {
+        syncListeners.add(listener);
+        return listener;
+    }
+
+    /**
+     * Adds a listener that receives the messages with the same key in order
+     */
+    public L addOrderedListener(L listener) {
+        orderedListeners.add(listener);
+        return listener;
+    }
+
+    public boolean removeListener(L listener) {
+        if (orderedListeners.remove(listener))
+            return true;
+
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                if (subscription.mailbox != null) {
+                    subscription.mailbox.close();
+                    mailboxes.remove(subscription.mailbox);
+                }
+                if (subscription.consumer != null)
+                    ring.removeConsumer(subscription.consumer);
+
+                subscriptions.remove(subscription);
+                reindex();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private synchronized void reindex() {
+        final List<Subscription> all = new ArrayList<Subscription>();
+        final Set<Object> types = new HashSet<Object>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.types == null)
+                all.add(subscription);
+            else
+                types.addAll(subscription.types);
+        }
+
+        final Map<Object, Subscription[]> index = new HashMap<Object, Subscription[]>();
+        for (Object type : types) {
+            final List<Subscription> targets = new ArrayList<Subscription>();
+            for (Subscription subscription : subscriptions) {
+                if (subscription.types == null || subscription.types.contains(type))
+                    targets.add(subscription);
+            }
+            index.put(type, targets.toArray(newSubscriptions(targets.size())));
+        }
+
+        untyped = all.toArray(newSubscriptions(all.size()));
+        typed = index;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Subscription[] newSubscriptions(int size) {
+        return new Multicaster.Subscription[size];
+    }
+
+    /**
+     * Returns the mailbox of the listener, or null if the listener has none
+     */
+    public Mailbox mailbox(L listener) {
+        for (Mailbox mailbox : mailboxes)
+            if (mailbox.listener == listener)
+                return mailbox;
+
+        return null;
+    }
+
+    public List<Mailbox> mailboxes() {
+        return mailboxes;
+    }
+
+    public boolean removeSynchronousListener(L listener) {
+        return syncListeners.remove(listener);
+    }
+
+    public void dispatch(final M message) {
+        if (log.isTraceEnabled()) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) asyncExecutor;
+            int active = pool.getActiveCount();
+            int queued = pool.getQueue().size();
+            long total = pool.getTaskCount();
+            log.trace(String.format("%d %d %d\n", active, queued, total));
+        }
+
+        notifySync(message);
+        notifyOrdered(message);
+        notifyAsync(message);
+    }
+
+    private void notifyOrdered(final M message) {
+        if (orderedListeners.isEmpty())
+            return;
+
+        final Object key = keyOf(message);
+        for (final L listener : orderedListeners) {
+            stripedExecutor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(listener, message);
+                }
+            });
+        }
+    }
+
+    private void notifySync(final M message) {
+        for (final L listener : syncListeners) {
+            dispatch(listener, message);
+        }
+    }
+
+    private void notifyAsync(final M message) {
+        if (ring != null) {
+            if (!subscriptions.isEmpty())
+                ring.publish(message);
+            return;
+        }
+
+        final Map<Object, Subscription[]> index = typed;
+        Subscription[] targets = (index.isEmpty() ? null : index.get(typeOf(message)));
+        if (targets == null)
+            targets = untyped;
+
+        Object recipient = null;
+        for (final Subscription subscription : targets) {
+            if (subscription.recipient != null) {
+                if (recipient == null)
+                    recipient = recipientOf(message);
+                if (!subscription.recipient.equals(recipient))
+                    continue;
+            }
+
+            if (subscription.mailbox != null) {
+                subscription.mailbox.offer(message);
+            } else {
+                final L listener = subscription.listener;
+                asyncExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch(listener, message);
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean accepts(Subscription subscription, M message) {
+        if (subscription.types != null && !subscription.types.contains(typeOf(message)))
+            return false;
+
+        return subscription.recipient == null || subscription.recipient.equals(recipientOf(message));
+    }
+
+    /**
+     * Returns the ring followed by the asynchronous listeners, or null if
+     * they are notified trough the executor
+     */
+    public EventRing<M> ring() {
+        return ring;
+    }
+
+    protected abstract void dispatch(L listener, M message);
+
+    /**
+     * The type of the message, as used by the {@link Overflow#DROP_BY_TYPE}
+     * policy: by default all messages are of the same type
+     */
+    protected Object typeOf(M message) {
+        return null;
+    }
+
+    /**
+     * The recipient of the message, as used by the listeners subscribed to a
+     * given recipient: by default messages have none
+     */
+    protected Object recipientOf(M message) {
+        return null;
+    }
+
+    /**
+     * The key used to order messages for the ordered listeners: by default
+     * all messages have the same key, so they are all delivered in order
+     */
+    protected Object keyOf(M message) {
+        return null;
+    }
+
+    private static <M> EventRing<M> loadRing() {
+        if (!Boolean.getBoolean(SYSP_RING_ENABLED))
+            return null;
+
+        final String wait = System.getProperty(SYSP_RING_WAIT, EventRing.WaitStrategy.BLOCK.name());
+        return new EventRing<M>(Integer.getInteger(SYSP_RING_SIZE, 4096), EventRing.WaitStrategy.valueOf(wait.trim().toUpperCase()));
+    }
+
+    private static Overflow loadOverflow() {
+        final String policy = System.getProperty(SYSP_MAILBOX_POLICY);
+        return (policy == null ? null : Overflow.valueOf(policy.trim().toUpperCase()));
+    }
+
+    /**
+     * The bounded queue of messages waiting for a listener, drained in order
+     * by at most one executor task at a time
+     */
+    public final class Mailbox {
+
+        private final L listener;
+        private final ArrayDeque<Entry<M>> queue;
+        private final Runnable drainer;
+
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong maxLagNanos = new AtomicLong();
+
+        private boolean scheduled;
+        private boolean closed;
+        private Thread draining;
+
+        Mailbox(L listener) {
+            this.listener = listener;
+            this.queue = new ArrayDeque<Entry<M>>();
+            this.drainer = new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+        }
+
+        public L listener() {
+            return listener;
+        }
+
+        public synchronized int depth() {
+            return queue.size();
+        }
+
+        /**
+         * How long the oldest message has been waiting, in milliseconds
+         */
+        public long lagMillis() {
+            final long since;
+            synchronized (this) {
+                final Entry<M> head = queue.peek();
+                if (head == null)
+                    return 0;
+                since = head.nanos;
+            }
+            return (System.nanoTime() - since) / 1000000L;
+        }
+
+        public long maxLagMillis() {
+            return maxLagNanos.get() / 1000000L;
+        }
+
+        public long delivered() {
+            return delivered.get();
+        }
+
+        public long dropped() {
+            return dropped.get();
+        }
+
+        void offer(M message) {
+            final boolean schedule;
+            synchronized (this) {
+                if (closed)
+                    return;
+
+                if (queue.size() >= capacity && !makeRoom(message))
+                    return;
+
+                queue.add(new Entry<M>(message, System.nanoTime()));
+                schedule = !scheduled;
+                scheduled = true;
+            }
+
+            if (schedule)
+                asyncExecutor.execute(drainer);
+        }
+
+        synchronized void close() {
+            closed = true;
+            queue.clear();
+            notifyAll();
+        }
+
+        // called with the lock held, returns false if the new message has to be dropped
+        private boolean makeRoom(M message) {
+            switch (overflow) {
+            case BLOCK:
+                // the listener dispatching to itself would wait for its own drain
+                if (draining == Thread.currentThread()) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+
+                final long deadline = System.nanoTime() + waitMillis * 1000000L;
+                while (queue.size() >= capacity && !closed) {
+                    final long millis = (deadline - System.nanoTime()) / 1000000L;
+                    if (millis <= 0) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+
+                    try {
+                        wait(millis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                }
+                return !closed;
+
+            case DROP_OLDEST:
+                queue.poll();
+                dropped.incrementAndGet();
+                return true;
+
+            default:
+                final Object type = typeOf(message);
+                for (Iterator<Entry<M>> it = queue.iterator(); it.hasNext();) {
+                    if (sameType(type, typeOf(it.next().message))) {
+                        it.remove();
+                        dropped.incrementAndGet();
+                        return true;
+                    }
+                }
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+
+        private void drain() {
+            for (int i = 0; i < MAILBOX_BATCH; i++) {
+                final Entry<M> entry;
+                synchronized (this) {
+                    entry = queue.poll();
+                    if (entry == null) {
+                        scheduled = false;
+                        draining = null;
+                        return;
+                    }
+                    draining = Thread.currentThread();
+                    notifyAll();
+                }
+
+                lagged(System.nanoTime() - entry.nanos);
+                try {
+                    dispatch(listener, entry.message);
+                    delivered.incrementAndGet();
+                } catch (Throwable ex) {
+                    log.warn("Listener " + listener + " failed on message " + entry.message, ex);
+                }
+            }
+
+            // give the other mailboxes a chance, we will be back
+            synchronized (this) {
+                draining = null;
+            }
+            asyncExecutor.execute(drainer);
+        }
+
+        private void lagged(long nanos) {
+            long max = maxLagNanos.get();
+            while (nanos > max && !maxLagNanos.compareAndSet(max, nanos))
+                max = maxLagNanos.get();
+        }
+
+        private boolean sameType(Object one, Object two) {
+            return one == null ? two == null : one.equals(two);
+        }
+
+        @Override
+        public String toString() {
+            return listener + " [depth=" + depth() + ", lag=" + lagMillis() + "ms, maxLag=" + maxLagMillis() + "ms, delivered=" + delivered + ", dropped=" + dropped + "]";
+        }
+    }
+
+    private final class Subscription {
+        private final L listener;
+        private final Mailbox mailbox;
+        private final Set<?> types;
+        private final Object recipient;
+        private EventRing<M>.Consumer consumer;
+
+        Subscription(L listener, Mailbox mailbox, Set<?> types, Object recipient) {
+            this.listener = listener;
+            this.mailbox = mailbox;
+            this.types = (types == null ? null : Collections.unmodifiableSet(new HashSet<Object>(types)));
+            this.recipient = recipient;
+        }
+    }
+
+    private static final class Entry<M> {
+        private final M message;
+        private final long nanos;
+
+        Entry(M message, long nanos) {
+            this.message = message;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.workshare.msnos.soup.threading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A stage of a processing pipeline: items submitted are queued in a bounded
+ * queue and handled by a fixed number of worker threads, so that a slow
+ * stage does not hold the threads feeding it. When the queue is full the
+ * submitter waits, so the pressure is pushed back upstream instead of
+ * losing items. With zero workers the items are handled straight away on
+ * the submitting thread, exactly as a plain method call would do.
+ *
+ * The stage keeps track of how many items went through it, how long they
+ * took from submission to completion (queueing included) and how many are
+ * waiting in the queue.
+ *
+ * An item is lost only if the submitter is interrupted while waiting for
+ * room: submit then returns false, so that the caller can release whatever
+ * it was holding for that item.
+ */
+public class PipelineStage<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(PipelineStage.class);
+
+    public static interface Handler<T> {
+        public void handle(T item);
+    }
+
+    private final String name;
+    private final Handler<T> handler;
+    private final BlockingQueue<Entry<T>> queue;
+    private final List<Thread> workers;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public PipelineStage(String name, int workers, int capacity, ThreadFactory threads, Handler<T> handler) {
+        this.name = name;
+        this.handler = handler;
+        this.workers = new ArrayList<Thread>();
+        this.queue = (workers > 0 ? new ArrayBlockingQueue<Entry<T>>(Math.max(1, capacity)) : null);
+
+        for (int i = 0; i < workers; i++) {
+            Thread worker = threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            });
+            worker.setName(name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            this.workers.add(worker);
+        }
+    }
+
+    /**
+     * Submits the item to the stage, returns false if the item was lost
+     */
+    public boolean submit(T item) {
+        final long start = System.nanoTime();
+        if (queue == null) {
+            try {
+                handler.handle(item);
+            } finally {
+                done(start);
+            }
+            return true;
+        }
+
+        try {
+            queue.put(new Entry<T>(item, start));
+            return true;
+        } catch (InterruptedException ex) {
+            log.warn("Interrupted while submitting to stage {}, item lost: {}", name, item);
+            lost.incrementAndGet();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void stop() {
+        for (Thread worker : workers)
+            worker.interrupt();
+    }
+
+    private void loop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final Entry<T> entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            try {
+                handler.handle(entry.item);
+            } catch (Throwable ex) {
+                failed.incrementAndGet();
+                log.warn("Stage " + name + " failed to handle " + entry.item, ex);
+            } finally {
+                done(entry.start);
+            }
+        }
+    }
+
+    private void done(long start) {
+        final long elapsed = System.nanoTime() - start;
+        processed.incrementAndGet();
+        totalNanos.addAndGet(elapsed);
+
+        long max = maxNanos.get();
+        while (elapsed > max && !maxNanos.compareAndSet(max, elapsed))
+            max = maxNanos.get();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int workers() {
+        return workers.size();
+    }
+
+    public int depth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long processed() {
+        return processed.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+
+    public long lost() {
+        return lost.get();
+    }
+
+    public long meanLatencyMicros() {
+        final long count = processed.get();
+        return count == 0 ? 0 : totalNanos.get() / count / 1000;
+    }
+
+    public long maxLatencyMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return name + " [workers=" + workers() + ", depth=" + depth() + ", processed=" + processed + ", failed=" + failed + ", lost=" + lost + ", latency(us)=" + meanLatencyMicros() + "/" + maxLatencyMicros() + "]";
+    }
+
+    private static final class Entry<T> {
+        private final T item;
+        private final long start;
+
+        Entry(T item, long start) {
+            this.item = item;
+            this.start = start;
+        }
+    }
+}
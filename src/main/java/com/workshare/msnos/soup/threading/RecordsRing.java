@@ -0,0 +1,128 @@
+package com.workshare.msnos.soup.threading;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded ring of fixed size binary records, written by any number of
+ * threads and read by a single one, backed by one preallocated byte array.
+ * A producer claims a slot with a compare and set on the cursor, fills it in
+ * place and then publishes it: producers never lock and never wait, when the
+ * ring is full the record is simply dropped and counted.
+ *
+ * Usage: <code>
+ *   long seq = ring.claim();
+ *   if (seq >= 0) try {
+ *       write(ring.buffer(), ring.offset(seq));
+ *   } finally {
+ *       ring.publish(seq);
+ *   }
+ * </code>
+ */
+public class RecordsRing {
+
+    public static interface Consumer {
+        public void consume(byte[] buffer, int offset, int length);
+    }
+
+    private final byte[] buffer;
+    private final int recordSize;
+    private final int capacity;
+    private final int mask;
+
+    private final AtomicLongArray published;
+    private final AtomicLong cursor;
+    private final AtomicLong consumed;
+    private final AtomicLong dropped;
+
+    public RecordsRing(int records, int recordSize) {
+        if (records < 1 || recordSize < 1)
+            throw new IllegalArgumentException("Invalid ring size: " + records + "x" + recordSize);
+
+        this.capacity = Integer.highestOneBit(records) == records ? records : Integer.highestOneBit(records) << 1;
+        this.mask = capacity - 1;
+        this.recordSize = recordSize;
+        this.buffer = new byte[capacity * recordSize];
+
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            published.set(i, -1);
+
+        this.cursor = new AtomicLong();
+        this.consumed = new AtomicLong();
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * Claims the next free slot, returning its sequence or -1 when the ring
+     * is full: a claimed slot must always be published, even if unused
+     */
+    public long claim() {
+        while (true) {
+            final long current = cursor.get();
+            if (current - consumed.get() >= capacity) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+
+            if (cursor.compareAndSet(current, current + 1))
+                return current;
+        }
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int offset(long sequence) {
+        return (int) (sequence & mask) * recordSize;
+    }
+
+    public void publish(long sequence) {
+        published.lazySet((int) (sequence & mask), sequence);
+    }
+
+    /**
+     * Passes to the consumer, in order, up to max published records and
+     * returns how many they were. Only one thread at a time may drain.
+     */
+    public int drain(Consumer consumer, int max) {
+        long next = consumed.get();
+        int count = 0;
+        while (count < max) {
+            final int slot = (int) (next & mask);
+            if (published.get(slot) != next)
+                break;
+
+            consumer.consume(buffer, slot * recordSize, recordSize);
+            next++;
+            count++;
+        }
+
+        if (count > 0)
+            consumed.set(next);
+
+        return count;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int recordSize() {
+        return recordSize;
+    }
+
+    public long size() {
+        return cursor.get() - consumed.get();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "capacity=" + capacity + ", size=" + size() + ", dropped=" + dropped;
+    }
+}
@@ -0,0 +1,78 @@
+package com.workshare.msnos.soup.threading;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor split in a fixed number of lanes, each one served by a single
+ * thread: tasks are assigned to a lane hashing their key, so that all tasks
+ * with the same key run one after the other in submission order, while tasks
+ * with different keys can run in parallel on different lanes.
+ */
+public class StripedExecutor {
+
+    private final ThreadPoolExecutor[] lanes;
+
+    public StripedExecutor(int lanes) {
+        this(lanes, ThreadFactories.DEFAULT);
+    }
+
+    public StripedExecutor(int lanes, final ThreadFactory threads) {
+        this.lanes = new ThreadPoolExecutor[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; i++) {
+            final String name = "Striped-" + i;
+            this.lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = threads.newThread(runnable);
+                    thread.setName(name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public void execute(Object key, Runnable task) {
+        lanes[lane(key)].execute(task);
+    }
+
+    public int lanes() {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the number of tasks waiting on the lane of the given key
+     */
+    public int depth(Object key) {
+        return lanes[lane(key)].getQueue().size();
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes)
+            lane.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                return false;
+        }
+        return true;
+    }
+
+    int lane(Object key) {
+        if (key == null)
+            return 0;
+
+        // spread the bits, as hash codes of similar keys tend to differ only in the high ones
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return (hash & 0x7fffffff) % lanes.length;
+    }
+}
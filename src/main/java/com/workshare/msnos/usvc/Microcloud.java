@@ -6,12 +6,14 @@ import static com.workshare.msnos.core.Message.Type.QNE;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -36,6 +38,7 @@ import com.workshare.msnos.core.payloads.Presence;
 import com.workshare.msnos.core.payloads.QnePayload;
 import com.workshare.msnos.core.protocols.ip.Endpoint;
 import com.workshare.msnos.core.protocols.ip.HttpEndpoint;
+import com.workshare.msnos.core.receipts.Receipts;
 import com.workshare.msnos.soup.json.Json;
 import com.workshare.msnos.soup.threading.ExecutorServices;
 import com.workshare.msnos.usvc.api.RestApi;
@@ -46,6 +49,8 @@ public class Microcloud {
 
     private static final ScheduledExecutorService DEFAULT_EXECUTOR = ExecutorServices.newSingleThreadScheduledExecutor();
 
+    public static final String SYSP_ORDERED_PROCESSING = "com.ws.msnos.microservice.processing.ordered";
+
     private static final Long ENQUIRY_EXPIRE = Long.getLong("com.ws.msnos.microservice.enquiry.timeout", 60);
 
     private static final Logger log = LoggerFactory.getLogger("STANDARD");
@@ -63,7 +68,7 @@ public class Microcloud {
 
     public Microcloud(Cloud cloud, ScheduledExecutorService executor) {
         this.cloud = cloud;
-        this.cloud.addSynchronousListener(new Cloud.Listener() {
+        final Cloud.Listener listener = new Cloud.Listener() {
             @Override
             public void onMessage(Message message) {
                 try {
@@ -72,7 +77,12 @@ public class Microcloud {
                     log.error("Error processing message {}", e);
                 }
             }
-        });
+        };
+
+        if (Boolean.getBoolean(SYSP_ORDERED_PROCESSING))
+            this.cloud.addOrderedListener(listener);
+        else
+            this.cloud.addSynchronousListener(listener);
 
         remoteServices = new ConcurrentHashMap<Iden, RemoteMicroservice>();
         passiveServices = new ConcurrentHashMap<UUID, PassiveService>();
@@ -97,6 +107,10 @@ public class Microcloud {
         return cloud.addListener(listener);
     }
 
+    public Listener addListener(Listener listener, EnumSet<Message.Type> types) {
+        return cloud.addListener(listener, types);
+    }
+
     public void removeListener(Listener listener) {
         cloud.removeListener(listener);
     }
@@ -326,21 +340,38 @@ public class Microcloud {
         }
     }
 
+    /**
+     * Sends a discovery and then, once delivered or after half the time, an
+     * enquiry: waits for the enquiry to complete or the time to expire
+     */
     public void update(final long amount, final TimeUnit unit) throws MsnosException {
-        
-        final Message[] messages = new Message[] {
-            new MessageBuilder(Message.Type.DSC, cloud, cloud).make(),
-            new MessageBuilder(Message.Type.ENQ, cloud, cloud).make(),
+        final CountDownLatch done = new CountDownLatch(1);
+        final Receipt.Callback completed = new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                done.countDown();
+            }
         };
-        
-        long allotted = amount/messages.length;
-        for (Message message : messages) {
-            Receipt receipt = cloud.sendSync(message);
-            try {
-                receipt.waitForDelivery(allotted, unit);
-            } catch (InterruptedException e) {
-                Thread.interrupted();
+
+        final long allotted = amount/2;
+        Receipt discovery = cloud.sendSync(new MessageBuilder(Message.Type.DSC, cloud, cloud).make());
+        Receipts.onComplete(discovery, allotted, unit, new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                try {
+                    Receipt enquiry = cloud.send(new MessageBuilder(Message.Type.ENQ, cloud, cloud).make());
+                    Receipts.onComplete(enquiry, allotted, unit, completed);
+                } catch (MsnosException ex) {
+                    log.warn("Unable to send enquiry on cloud update", ex);
+                    done.countDown();
+                }
             }
+        });
+
+        try {
+            done.await(amount, unit);
+        } catch (InterruptedException e) {
+            Thread.interrupted();
         }
     }
-}
\ No newline at end of file
+}
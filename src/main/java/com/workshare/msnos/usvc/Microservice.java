@@ -1,6 +1,7 @@
 package com.workshare.msnos.usvc;
 
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -135,7 +136,7 @@ public class Microservice implements IMicroservice {
 
         cloud = cumulus;
         cloud.onJoin(this);
-        cloud.addListener(listener);
+        cloud.addListener(listener, EnumSet.of(Message.Type.ENQ));
         
         cloud.getCloud().getRing().onMicroserviceJoin(this);
     }
@@ -21,9 +21,13 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -46,6 +50,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.workshare.msnos.core.Cloud.Internal;
 import com.workshare.msnos.core.Message.Status;
@@ -158,10 +165,21 @@ public class CloudTest {
     @Test
     public void shouldSendDiscoveryMessageWhenAgentJoins() throws Exception {
         LocalAgent smith = new LocalAgent(UUID.randomUUID());
+        deliverSynchronousMessages();
 
         smith.join(thisCloud);
 
-        assertMessageSent(Message.Type.DSC, smith.getIden(), thisCloud.getIden(), null);
+        verify(sender).send(any(Cloud.class), argThat(isMessage(Message.Type.DSC, smith.getIden(), thisCloud.getIden())));
+    }
+
+    @Test
+    public void shouldSendDiscoveryMessageAfterASecondWhenPresenceIsNotDelivered() throws Exception {
+        LocalAgent smith = new LocalAgent(UUID.randomUUID());
+
+        smith.join(thisCloud);
+
+        verify(sender, never()).send(any(Cloud.class), argThat(isMessage(Message.Type.DSC, smith.getIden(), thisCloud.getIden())));
+        verify(sender, timeout(3000)).send(any(Cloud.class), argThat(isMessage(Message.Type.DSC, smith.getIden(), thisCloud.getIden())));
     }
 
     @Test
@@ -595,6 +613,27 @@ public class CloudTest {
         }
     }
 
+    private void deliverSynchronousMessages() {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final Message message = (Message) invocation.getArguments()[1];
+                ((SingleReceipt) invocation.getArguments()[2]).update(new SingleReceipt(httpGate, Status.DELIVERED, message));
+                return null;
+            }
+        }).when(sender).sendSync(any(Cloud.class), any(Message.class), any(SingleReceipt.class));
+    }
+
+    private ArgumentMatcher<Message> isMessage(final Type type, final Iden from, final Iden to) {
+        return new ArgumentMatcher<Message>() {
+            @Override
+            public boolean matches(Object argument) {
+                final Message message = (Message) argument;
+                return message.getType() == type && from.equals(message.getFrom()) && to.equals(message.getTo());
+            }
+        };
+    }
+
     private void assertMessageContent(Message message, final Type type, final Iden from, final Iden to, Object data) {
         assertNotNull(message);
         assertEquals(type, message.getType());
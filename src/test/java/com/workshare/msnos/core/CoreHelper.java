@@ -205,6 +205,7 @@ public class CoreHelper {
             public Message answer(InvocationOnMock invocation) throws Throwable {
                 return (Message) invocation.getArguments()[0];
             }});
+        when(internal.verify(any(Message.class))).thenReturn(true);
 
         when(internal.localAgents()).thenReturn(new IdentifiablesList<LocalAgent>());
         when(internal.remoteAgents()).thenReturn(new IdentifiablesList<RemoteAgent>());
@@ -2,6 +2,7 @@ package com.workshare.msnos.core;
 
 import static com.workshare.msnos.core.CoreHelper.asSet;
 import static com.workshare.msnos.core.CoreHelper.fakeSystemTime;
+import static com.workshare.msnos.core.Message.Type.DSC;
 import static com.workshare.msnos.core.Message.Type.PIN;
 import static com.workshare.msnos.core.Message.Type.PON;
 import static com.workshare.msnos.core.Message.Type.PRS;
@@ -10,6 +11,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -17,6 +19,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Set;
 import java.util.UUID;
 
@@ -81,7 +84,7 @@ public class LocalAgentTest {
  
     @Test
     public void agentShouldAttachListenerToCloud() {
-        verify(cloud, atLeastOnce()).addListener(any(Cloud.Listener.class));
+        verify(cloud, atLeastOnce()).addListener(any(Cloud.Listener.class), eq(EnumSet.of(DSC, PIN)));
     }
 
     @Test
@@ -200,7 +203,7 @@ public class LocalAgentTest {
 
     private void simulateMessageFromCloud(final Message message) {
         ArgumentCaptor<Cloud.Listener> cloudListener = ArgumentCaptor.forClass(Cloud.Listener.class);
-        verify(cloud, atLeastOnce()).addListener(cloudListener.capture());
+        verify(cloud, atLeastOnce()).addListener(cloudListener.capture(), eq(EnumSet.of(DSC, PIN)));
         cloudListener.getValue().onMessage(message);
     }
 }
@@ -2,6 +2,11 @@ package com.workshare.msnos.core;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.util.UUID;
 
@@ -9,6 +14,8 @@ import org.junit.Test;
 
 import com.workshare.msnos.core.payloads.PongPayload;
 import com.workshare.msnos.core.payloads.TracePayload;
+import com.workshare.msnos.core.serializers.WireJsonSerializer;
+import com.workshare.msnos.core.serializers.WireSerializer;
 
 public class MessageTest {
 
@@ -52,4 +59,35 @@ public class MessageTest {
         assertNotNull(msg.getData());
         assertEquals(TracePayload.class, msg.getData().getClass());
     }
+
+    @Test
+    public void shouldEncodeOnlyOncePerSerializer() {
+        Message msg = new MessageBuilder(Message.Type.APP, CLOUD_IDEN, AGENT_IDEN).make();
+        WireSerializer sz = mock(WireSerializer.class);
+        when(sz.toBytes(msg)).thenReturn(new byte[]{1, 2, 3});
+
+        byte[] first = msg.encoded(sz);
+        byte[] second = msg.encoded(sz);
+
+        assertSame(first, second);
+        verify(sz, times(1)).toBytes(msg);
+    }
+
+    @Test
+    public void shouldEncodeAsTheSerializerDoes() {
+        Message msg = new MessageBuilder(Message.Type.PIN, CLOUD_IDEN, AGENT_IDEN).make();
+        WireSerializer sz = new WireJsonSerializer();
+
+        assertEquals(sz.toText(msg), new String(msg.encoded(sz)));
+    }
+
+    @Test
+    public void shouldNotShareEncodingWithCopies() {
+        Message msg = new MessageBuilder(Message.Type.APP, CLOUD_IDEN, AGENT_IDEN).withHops(3).make();
+        WireSerializer sz = new WireJsonSerializer();
+
+        Message hopped = msg.hopped();
+
+        assertEquals(sz.toText(hopped), new String(hopped.encoded(sz)));
+    }
 }
@@ -16,6 +16,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.After;
 import org.junit.Before;
@@ -25,6 +26,7 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import com.workshare.msnos.core.Cloud.Internal;
+import com.workshare.msnos.core.cloud.AdmissionControl;
 import com.workshare.msnos.core.cloud.IdentifiablesList;
 import com.workshare.msnos.core.cloud.MessageValidators;
 import com.workshare.msnos.core.cloud.Multicaster;
@@ -106,6 +108,19 @@ public class ReceiverTest {
         assertEquals("YOP", lastMessageReceived().getReceivingGate());
     }
 
+    @Test
+    public void shouldDiscardMessagesShedByAdmissionControl() throws Exception {
+        gate = mock(Gateway.class);
+        receiver = new Receiver(cloud, asSet(gate), caster, router, new AdmissionControl(1, 1, 1000, 1000));
+
+        simulateMessageReceived(newPingMessage(cloud));
+        simulateMessageReceived(newPingMessage(cloud));
+
+        verify(caster, times(1)).dispatch(any(Message.class));
+        assertEquals(1, receiver.admission().shed(Message.Type.PIN));
+        assertEquals(0, receiver.admission().inflight());
+    }
+
     @Test
     public void shouldDiscardMessageFromAnotherCloud() throws Exception {
         Cloud other = createMockCloud();
@@ -187,6 +202,34 @@ public class ReceiverTest {
         verifyMessageDiscarded();
     }
 
+    @Test
+    public void shouldNotHoldTheGatewayWhileForwardingOnItsOwnStage() throws Exception {
+        final CountDownLatch forwarding = new CountDownLatch(1);
+        when(router.forward(any(Message.class))).thenAnswer(new Answer<Receipt>() {
+            @Override
+            public Receipt answer(InvocationOnMock invocation) throws Throwable {
+                forwarding.await();
+                return null;
+            }
+        });
+
+        System.setProperty(Receiver.SYSP_STAGE_PREFIX + "forward" + Receiver.SYSP_STAGE_WORKERS, "1");
+        try {
+            gate = mock(Gateway.class);
+            receiver = new Receiver(cloud, asSet(gate), caster, router);
+        } finally {
+            System.clearProperty(Receiver.SYSP_STAGE_PREFIX + "forward" + Receiver.SYSP_STAGE_WORKERS);
+        }
+
+        final Message message = newPingMessage(cloud);
+        simulateMessageReceived(message);
+        simulateMessageReceived(newPingMessage(cloud));
+
+        verify(caster).dispatch(message);
+        forwarding.countDown();
+        verify(router, timeout(1000).times(2)).forward(any(Message.class));
+        receiver.stages().get(2).stop();
+    }
 
     private void verifyMessageDiscarded() {
         verifyZeroInteractions(caster, router);
@@ -214,11 +257,11 @@ public class ReceiverTest {
     }
 
     private void mockMessageSigning(final String signKey, final String signVal) {
-        when(cloud.internal().sign(any(Message.class))).thenAnswer(new Answer<Message>(){
+        when(cloud.internal().verify(any(Message.class))).thenAnswer(new Answer<Boolean>(){
             @Override
-            public Message answer(InvocationOnMock invocation) throws Throwable {
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
                 final Message message = (Message) invocation.getArguments()[0];
-                return message.signed(signKey, signVal);
+                return (signKey + ":" + signVal).equals(message.getSig());
             }});
     }
     
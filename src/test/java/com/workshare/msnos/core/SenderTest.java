@@ -3,17 +3,27 @@ package com.workshare.msnos.core;
 import static com.workshare.msnos.core.CoreHelper.createMockCloud;
 import static com.workshare.msnos.core.MessagesHelper.newPingMessage;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.UUID;
 import java.util.concurrent.Executor;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.workshare.msnos.core.Message.Status;
 import com.workshare.msnos.core.receipts.SingleReceipt;
@@ -69,6 +79,91 @@ public class SenderTest {
         assertEquals(message.getUuid(), receipt.getMessageUuid());
     }
 
+    @Test
+    public void shouldSendPresencesBeforeApplicationMessages() throws Exception {
+        when(router.send(any(Message.class))).thenAnswer(new Answer<Receipt>() {
+            @Override
+            public Receipt answer(InvocationOnMock invocation) throws Throwable {
+                return SingleReceipt.failure((Message) invocation.getArguments()[0]);
+            }
+        });
+        Message app = new MessageBuilder(Message.Type.APP, cloud, cloud).make();
+        Message prs = new MessageBuilder(Message.Type.PRS, cloud, cloud).make();
+        sender.send(cloud, app);
+        sender.send(cloud, prs);
+
+        runAllTasks(2);
+
+        InOrder inOrder = inOrder(router);
+        inOrder.verify(router).send(argThat(hasUuid(prs)));
+        inOrder.verify(router).send(argThat(hasUuid(app)));
+    }
+
+    @Test
+    public void shouldCoalesceRepeatedPresencesStillWaiting() throws Exception {
+        final Message newer = new MessageBuilder(Message.Type.PRS, cloud, cloud).make();
+        Receipt delivered = createReceipt("FOO", Status.DELIVERED, newer);
+        when(router.send(any(Message.class))).thenReturn(delivered);
+
+        Receipt older = sender.send(cloud, new MessageBuilder(Message.Type.PRS, cloud, cloud).make());
+        Receipt receipt = sender.send(cloud, newer);
+        runAllTasks(2);
+
+        verifyMessageSent(newer);
+        assertEquals(newer.getUuid(), older.getCoalescedInto());
+        assertEquals(Status.DELIVERED, older.getStatus());
+        assertNull(receipt.getCoalescedInto());
+    }
+
+    @Test
+    public void shouldCoalesceRepeatedEnquiriesOnlyToTheSameTarget() throws Exception {
+        final Iden one = new Iden(Iden.Type.AGT, UUID.randomUUID());
+        final Iden two = new Iden(Iden.Type.AGT, UUID.randomUUID());
+
+        Receipt first = sender.send(cloud, new MessageBuilder(Message.Type.ENQ, cloud.getIden(), one).make());
+        Receipt other = sender.send(cloud, new MessageBuilder(Message.Type.ENQ, cloud.getIden(), two).make());
+        sender.send(cloud, new MessageBuilder(Message.Type.ENQ, cloud.getIden(), one).make());
+
+        assertNotNull(first.getCoalescedInto());
+        assertNull(other.getCoalescedInto());
+        assertEquals(2, sender.queued());
+    }
+
+    @Test
+    public void shouldFailLowerPriorityMessagesWhenTheQueueIsFull() throws Exception {
+        System.setProperty(Sender.SYSP_SENDER_QUEUE_SIZE, "1");
+        try {
+            sender = new Sender(router, executor);
+        } finally {
+            System.clearProperty(Sender.SYSP_SENDER_QUEUE_SIZE);
+        }
+
+        Receipt app = sender.send(cloud, new MessageBuilder(Message.Type.APP, cloud, cloud).make());
+        Receipt prs = sender.send(cloud, new MessageBuilder(Message.Type.PRS, cloud, cloud).make());
+        Receipt trc = sender.send(cloud, new MessageBuilder(Message.Type.TRC, cloud, cloud).make());
+
+        assertEquals(Status.FAILED, app.getStatus());
+        assertEquals(Status.UNKNOWN, prs.getStatus());
+        assertEquals(Status.FAILED, trc.getStatus());
+        assertEquals(1, sender.queued());
+    }
+
+    private void runAllTasks(int count) {
+        ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(count)).execute(runnableCaptor.capture());
+        for (Runnable task : runnableCaptor.getAllValues())
+            task.run();
+    }
+
+    private ArgumentMatcher<Message> hasUuid(final Message message) {
+        return new ArgumentMatcher<Message>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((Message) argument).getUuid().equals(message.getUuid());
+            }
+        };
+    }
+
     private Message verifyMessageSent(final Message message) throws IOException {
         ArgumentCaptor<Message> runnableCaptor = ArgumentCaptor.forClass(Message.class);
         verify(router).send(runnableCaptor.capture());
@@ -0,0 +1,172 @@
+package com.workshare.msnos.core.cloud;
+
+import static com.workshare.msnos.core.CoreHelper.fakeElapseTime;
+import static com.workshare.msnos.core.CoreHelper.fakeSystemTime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.cloud.AdmissionControl.Decision;
+import com.workshare.msnos.core.cloud.AdmissionControl.Priority;
+import com.workshare.msnos.soup.time.SystemTime;
+
+public class AdmissionControlTest {
+
+    private static final Iden CLOUD = new Iden(Iden.Type.CLD, UUID.randomUUID());
+
+    private Iden alfa;
+    private Iden beta;
+
+    @Before
+    public void setup() {
+        fakeSystemTime(123456789L);
+        alfa = new Iden(Iden.Type.AGT, UUID.randomUUID());
+        beta = new Iden(Iden.Type.AGT, UUID.randomUUID());
+    }
+
+    @After
+    public void after() {
+        SystemTime.reset();
+    }
+
+    @Test
+    public void shouldGiveMembershipAndHealthTheHighestPriority() {
+        assertEquals(Priority.CRITICAL, AdmissionControl.priorityOf(Message.Type.PRS));
+        assertEquals(Priority.CRITICAL, AdmissionControl.priorityOf(Message.Type.FLT));
+        assertEquals(Priority.CRITICAL, AdmissionControl.priorityOf(Message.Type.HCK));
+        assertEquals(Priority.CRITICAL, AdmissionControl.priorityOf(Message.Type.PON));
+        assertEquals(Priority.CONTROL, AdmissionControl.priorityOf(Message.Type.DSC));
+        assertEquals(Priority.BULK, AdmissionControl.priorityOf(Message.Type.APP));
+        assertEquals(Priority.BULK, AdmissionControl.priorityOf(Message.Type.TRC));
+    }
+
+    @Test
+    public void shouldAdmitEverythingByDefault() {
+        AdmissionControl admission = new AdmissionControl();
+
+        for (int i = 0; i < 100; i++)
+            assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.APP, alfa)));
+
+        assertEquals(100, admission.admitted());
+        assertEquals(0, admission.shed());
+    }
+
+    @Test
+    public void shouldShedMessagesOverTheSourceRate() {
+        AdmissionControl admission = new AdmissionControl(10, 2, 1000, 1000);
+
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.APP, alfa)));
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.APP, alfa)));
+        assertEquals(Decision.SHED_RATE, admission.admit(newMessage(Message.Type.APP, alfa)));
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.APP, beta)));
+
+        assertEquals(1, admission.shed(alfa));
+        assertEquals(0, admission.shed(beta));
+        assertEquals(1, admission.shed(Message.Type.APP));
+    }
+
+    @Test
+    public void shouldRefillTheSourceBucketsOverTime() {
+        AdmissionControl admission = new AdmissionControl(10, 1, 1000, 1000);
+        admission.admit(newMessage(Message.Type.APP, alfa));
+        assertEquals(Decision.SHED_RATE, admission.admit(newMessage(Message.Type.APP, alfa)));
+
+        fakeElapseTime(100L);
+
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.APP, alfa)));
+    }
+
+    @Test
+    public void shouldKeepLimitingKnownSourcesDuringASpoofedFlood() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 100000, 1000);
+        admission.admit(newMessage(Message.Type.APP, alfa));
+
+        int admitted = 0;
+        for (int i = 0; i < 5000; i++) {
+            if (admission.admit(newMessage(Message.Type.APP, newIden())) == Decision.ADMIT)
+                admitted++;
+        }
+
+        assertEquals(Decision.SHED_RATE, admission.admit(newMessage(Message.Type.APP, alfa)));
+        assertTrue(admitted < 5000);
+        assertEquals(1, admission.shed(alfa));
+    }
+
+    @Test
+    public void shouldEvictIdleSourcesWhenFull() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 100000, 1000);
+        for (int i = 0; i < 5000; i++)
+            admission.admit(newMessage(Message.Type.APP, newIden()));
+        assertEquals(Decision.SHED_RATE, admission.admit(newMessage(Message.Type.APP, alfa)));
+
+        fakeElapseTime(2000L);
+
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.APP, beta)));
+        assertEquals(Decision.SHED_RATE, admission.admit(newMessage(Message.Type.APP, beta)));
+    }
+
+    @Test
+    public void shouldNeverRateLimitCriticalMessages() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 1000, 1000);
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.PRS, alfa)));
+    }
+
+    @Test
+    public void shedLowestClassFirstWhenTooManyMessagesAreInFlight() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 2, 1000);
+        for (int i = 0; i < 3; i++)
+            admission.admit(newMessage(Message.Type.PRS, alfa));
+
+        assertEquals(1, admission.pressure());
+        assertEquals(Decision.SHED_LOAD, admission.admit(newMessage(Message.Type.APP, alfa)));
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.DSC, alfa)));
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.PRS, alfa)));
+
+        assertEquals(2, admission.pressure());
+        assertEquals(Decision.SHED_LOAD, admission.admit(newMessage(Message.Type.DSC, alfa)));
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.PRS, alfa)));
+
+        assertEquals(1, admission.shed(Message.Type.APP));
+        assertEquals(1, admission.shed(Message.Type.DSC));
+        assertEquals(2, admission.shed(alfa));
+    }
+
+    @Test
+    public void shouldShedWhenProcessingIsTooSlow() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 1000, 1);
+        admission.admit(newMessage(Message.Type.PRS, alfa));
+        admission.admit(newMessage(Message.Type.PRS, alfa));
+        admission.completed(System.nanoTime() - 100 * 1000000L);
+
+        assertEquals(2, admission.pressure());
+        assertEquals(Decision.SHED_LOAD, admission.admit(newMessage(Message.Type.ENQ, alfa)));
+    }
+
+    @Test
+    public void shouldReleasePressureWhenNothingIsInFlight() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 1000, 1);
+        admission.admit(newMessage(Message.Type.PRS, alfa));
+        admission.completed(System.nanoTime() - 100 * 1000000L);
+
+        assertEquals(0, admission.pressure());
+        assertEquals(Decision.ADMIT, admission.admit(newMessage(Message.Type.APP, alfa)));
+    }
+
+    private Iden newIden() {
+        return new Iden(Iden.Type.AGT, UUID.randomUUID());
+    }
+
+    private Message newMessage(Message.Type type, Iden from) {
+        return new MessageBuilder(type, from, CLOUD).make();
+    }
+}
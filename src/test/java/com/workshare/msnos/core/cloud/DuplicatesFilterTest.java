@@ -0,0 +1,139 @@
+package com.workshare.msnos.core.cloud;
+
+import static com.workshare.msnos.core.CoreHelper.fakeElapseTime;
+import static com.workshare.msnos.core.CoreHelper.fakeSystemTime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.workshare.msnos.soup.time.SystemTime;
+
+public class DuplicatesFilterTest {
+
+    private static final long LIFETIME = 3000L;
+    private static final int ONE = 1;
+    private static final int TWO = 2;
+
+    private DuplicatesFilter filter;
+
+    @Before
+    public void setup() {
+        fakeSystemTime(123456789L);
+        filter = new DuplicatesFilter(LIFETIME, 1000);
+    }
+
+    @After
+    public void after() {
+        SystemTime.reset();
+    }
+
+    @Test
+    public void shouldAcceptNewUuids() {
+        assertTrue(filter.add(UUID.randomUUID(), ONE));
+        assertTrue(filter.add(UUID.randomUUID(), ONE));
+        assertEquals(2, filter.size());
+    }
+
+    @Test
+    public void shouldRejectDuplicatesOnTheSameChannel() {
+        UUID uuid = UUID.randomUUID();
+        filter.add(uuid, ONE);
+
+        assertFalse(filter.add(uuid, ONE));
+        assertFalse(filter.add(new UUID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()), ONE));
+    }
+
+    @Test
+    public void shouldKeepChannelsIndependent() {
+        UUID uuid = UUID.randomUUID();
+        filter.add(uuid, ONE);
+
+        assertTrue(filter.add(uuid, TWO));
+        assertFalse(filter.add(uuid, TWO));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void shouldRememberUuidsForTheWholeLifetime() {
+        UUID uuid = UUID.randomUUID();
+        filter.add(uuid, ONE);
+
+        fakeElapseTime(LIFETIME - 1);
+
+        assertFalse(filter.add(uuid, ONE));
+    }
+
+    @Test
+    public void shouldForgetUuidsAfterTheLifetime() {
+        UUID uuid = UUID.randomUUID();
+        filter.add(uuid, ONE);
+
+        fakeElapseTime(LIFETIME * 2);
+
+        assertTrue(filter.add(uuid, ONE));
+        assertEquals(1, filter.size());
+        assertEquals(0, filter.evictions());
+    }
+
+    @Test
+    public void shouldNeverGoOverCapacity() {
+        filter = new DuplicatesFilter(LIFETIME, 100);
+
+        for (int i = 0; i < 250; i++) {
+            filter.add(UUID.randomUUID(), ONE);
+            if (i % 10 == 0)
+                fakeElapseTime(LIFETIME / 10);
+        }
+
+        assertTrue(filter.size() <= 100);
+        assertEquals(250, filter.size() + filter.evictions());
+    }
+
+    @Test
+    public void shouldEvictTheOldestEntriesFirst() {
+        filter = new DuplicatesFilter(LIFETIME, 10);
+        UUID oldest = UUID.randomUUID();
+        filter.add(oldest, ONE);
+
+        fakeElapseTime(LIFETIME / 3);
+        UUID newest = UUID.randomUUID();
+        filter.add(newest, ONE);
+        for (int i = 0; i < 9; i++)
+            filter.add(UUID.randomUUID(), ONE);
+
+        assertEquals(1, filter.evictions());
+        assertFalse(filter.add(newest, ONE));
+        assertTrue(filter.add(oldest, ONE));
+    }
+
+    @Test
+    public void shouldCountHitsAndMisses() {
+        UUID uuid = UUID.randomUUID();
+        filter.add(uuid, ONE);
+        filter.add(uuid, ONE);
+        filter.add(uuid, TWO);
+        filter.add(uuid, ONE);
+
+        assertEquals(2, filter.hits());
+        assertEquals(2, filter.misses());
+    }
+
+    @Test
+    public void shouldHandleManyEntries() {
+        filter = new DuplicatesFilter(LIFETIME, 100000);
+        UUID[] uuids = new UUID[10000];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID();
+            assertTrue(filter.add(uuids[i], ONE));
+        }
+
+        for (UUID uuid : uuids)
+            assertFalse(filter.add(uuid, ONE));
+    }
+}
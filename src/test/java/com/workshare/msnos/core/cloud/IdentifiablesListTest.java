@@ -2,15 +2,24 @@ package com.workshare.msnos.core.cloud;
 
 import static com.workshare.msnos.core.CoreHelper.createMockAgent;
 import static com.workshare.msnos.core.CoreHelper.newAgentIden;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import com.workshare.msnos.core.Agent;
 import com.workshare.msnos.core.cloud.IdentifiablesList.Callback;
+import com.workshare.msnos.core.cloud.IdentifiablesList.Indexer;
 
 @SuppressWarnings("unchecked")
 public class IdentifiablesListTest {
@@ -49,4 +58,80 @@ public class IdentifiablesListTest {
         identifiables.remove(newAgentIden());
         verifyZeroInteractions(callback);
     }
+
+    @Test
+    public void shouldIndexOnAdd() {
+        IdentifiablesList<Agent>.Index<String> index = identifiables.addIndex(keys);
+        Agent agent = createMockAgent();
+        keys.put(agent, "alfa");
+
+        identifiables.add(agent);
+
+        assertEquals(asSet(agent), asSet(index.get("alfa")));
+        assertEquals(asSet("alfa"), index.keys());
+    }
+
+    @Test
+    public void shouldIndexExistingIdentifiablesWhenIndexAdded() {
+        Agent agent = createMockAgent();
+        keys.put(agent, "alfa");
+        identifiables.add(agent);
+
+        IdentifiablesList<Agent>.Index<String> index = identifiables.addIndex(keys);
+
+        assertEquals(asSet(agent), asSet(index.get("alfa")));
+    }
+
+    @Test
+    public void shouldUnindexOnRemove() {
+        IdentifiablesList<Agent>.Index<String> index = identifiables.addIndex(keys);
+        Agent agent = createMockAgent();
+        keys.put(agent, "alfa");
+        identifiables.add(agent);
+
+        identifiables.remove(agent.getIden());
+
+        assertTrue(index.get("alfa").isEmpty());
+        assertTrue(index.keys().isEmpty());
+    }
+
+    @Test
+    public void shouldNOTIndexWhenKeyIsNull() {
+        IdentifiablesList<Agent>.Index<String> index = identifiables.addIndex(keys);
+
+        identifiables.add(createMockAgent());
+
+        assertTrue(index.keys().isEmpty());
+    }
+
+    @Test
+    public void shouldMoveIdentifiableOnReindex() {
+        IdentifiablesList<Agent>.Index<String> index = identifiables.addIndex(keys);
+        Agent agent = createMockAgent();
+        keys.put(agent, "alfa");
+        identifiables.add(agent);
+
+        keys.put(agent, "beta");
+        identifiables.reindex(agent);
+
+        assertTrue(index.get("alfa").isEmpty());
+        assertEquals(asSet(agent), asSet(index.get("beta")));
+    }
+
+    private static class Keys extends HashMap<Agent, String> implements Indexer<String, Agent> {
+        @Override
+        public String keyOf(Agent agent) {
+            return get(agent);
+        }
+    }
+
+    private final Keys keys = new Keys();
+
+    private static <T> Set<T> asSet(Collection<T> items) {
+        return new HashSet<T>(items);
+    }
+
+    private static <T> Set<T> asSet(T item) {
+        return new HashSet<T>(Arrays.asList(item));
+    }
 }
@@ -0,0 +1,144 @@
+package com.workshare.msnos.core.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Message.Status;
+import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.soup.threading.RecordsRing;
+
+public class ProtocolJournalTest {
+
+    private static final Iden AGENT = new Iden(Iden.Type.AGT, UUID.randomUUID());
+    private static final Iden CLOUD = new Iden(Iden.Type.CLD, UUID.randomUUID());
+
+    private File home;
+    private JournalFiles files;
+    private ProtocolJournal journal;
+
+    @BeforeClass
+    public static void useLocalTimeSource() {
+        System.setProperty("com.ws.nsnos.time.local", "true");
+    }
+
+    @Before
+    public void init() throws IOException {
+        home = File.createTempFile("msnos-", ".tmp");
+        home.delete();
+        home.mkdirs();
+    }
+
+    @After
+    public void cleanUp() {
+        if (files != null)
+            files.close();
+        for (File file : home.listFiles())
+            file.delete();
+        home.delete();
+    }
+
+    @Test
+    public void shouldBeDisabledByDefault() {
+        assertFalse(ProtocolJournal.instance().isEnabled());
+    }
+
+    @Test
+    public void shouldDecodeReceivedMessagesAsTheProtocolLogger() throws Exception {
+        Message message = newMessage();
+        newJournal(1024 * 1024, 2).received(message, "UDP");
+
+        String line = decode();
+
+        assertEquals(1, count(line));
+        assertTrue(line, line.contains(" | RX(UDP): APP " + message.getUuid().toString().substring(28) + " " + message.getWhen() + " " + AGENT + " " + CLOUD + " -"));
+    }
+
+    @Test
+    public void shouldDecodeRejectedAndTransmittedMessages() throws Exception {
+        Message message = newMessage();
+        newJournal(1024 * 1024, 2);
+        journal.rejected(message, "HTTP", "DUPLICATE", false);
+        journal.transmitted(message, "HTTP");
+
+        String lines = decode();
+
+        assertEquals(2, count(lines));
+        assertTrue(lines, lines.contains(" | R#(HTT): =DUPLICATE= APP "));
+        assertTrue(lines, lines.contains(" | TX(HTTP): APP "));
+    }
+
+    @Test
+    public void shouldDecodeRoutingEvents() throws Exception {
+        Message message = newMessage();
+        newJournal(1024 * 1024, 2);
+        journal.routed(message, "FWD", "HTTP-VIA-RING", "HTTP", Status.DELIVERED, 2);
+        journal.routed(message, "TXX", "ZERO-HOPS", "NONE", null, -1);
+
+        String lines = decode();
+
+        assertTrue(lines, lines.contains(" | FWD HTTP-VIA-RING HTTP DELIVERED 2 APP "));
+        assertTrue(lines, lines.contains(" | TXX ZERO-HOPS NONE APP "));
+    }
+
+    @Test
+    public void shouldRollFilesAndKeepOnlyTheMostRecent() throws Exception {
+        newJournal(JournalFiles.HEADER_SIZE + 2 * JournalRecord.SIZE, 2);
+
+        for (int i = 0; i < 7; i++) {
+            journal.received(newMessage(), "UDP");
+            journal.drain();
+        }
+
+        assertEquals(2, JournalFiles.list(home).length);
+        assertEquals(3, count(decode()));
+    }
+
+    @Test
+    public void shouldDropRecordsWhenTheRingIsFull() throws Exception {
+        newJournal(1024 * 1024, 2);
+
+        for (int i = 0; i < 20; i++)
+            journal.received(newMessage(), "UDP");
+
+        assertEquals(4, journal.dropped());
+        assertEquals(16, count(decode()));
+    }
+
+    private ProtocolJournal newJournal(long fileSize, int maxFiles) throws IOException {
+        files = new JournalFiles(home, JournalRecord.SIZE, fileSize, maxFiles);
+        journal = new ProtocolJournal(new RecordsRing(16, JournalRecord.SIZE), files);
+        return journal;
+    }
+
+    private String decode() throws IOException {
+        while (journal.drain() > 0)
+            ;
+        files.flush();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JournalDecoder(new PrintStream(out, true)).decode(home);
+        return out.toString();
+    }
+
+    private int count(String lines) {
+        return lines.length() == 0 ? 0 : lines.split("\n").length;
+    }
+
+    private Message newMessage() {
+        return new MessageBuilder(Message.Type.APP, AGENT, CLOUD).make();
+    }
+}
@@ -13,6 +13,7 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -228,6 +229,73 @@ public class UDPGatewayTest {
         serverListener.getValue().onMessage(message);
     }
 
+    @Test
+    public void shouldPackSmallMessagesInOneDatagramWhenBatching() throws Exception {
+        System.setProperty(UDPGateway.SYSP_PORT_WIDTH, "1");
+        System.setProperty(UDPGateway.SYSP_UDP_BATCH_WINDOW, "10000");
+        try {
+            gate();
+        } finally {
+            System.clearProperty(UDPGateway.SYSP_UDP_BATCH_WINDOW);
+        }
+
+        final Message one = newSampleMessage();
+        final Message two = newSampleMessage();
+        gate().send(cloud, one, null);
+        gate().send(cloud, two, null);
+        gate().close();
+
+        final List<DatagramPacket> packets = getSentPackets();
+        assertEquals(1, packets.size());
+
+        final List<Message> unpacked = new ArrayList<Message>();
+        final byte[] data = packets.get(0).getData();
+        DatagramBatch.unpack(data, 0, data.length, new DatagramBatch.Visitor() {
+            @Override
+            public void onEntry(byte[] data, int offset, int length) {
+                unpacked.add(gate.serializer().fromBytes(data, offset, length, Message.class));
+            }
+        });
+        assertEquals(2, unpacked.size());
+        assertEquals(one.getUuid(), unpacked.get(0).getUuid());
+        assertEquals(two.getUuid(), unpacked.get(1).getUuid());
+    }
+
+    @Test
+    public void shouldSendFarLessDatagramsOnAHeartbeatRoundWhenBatching() throws Exception {
+        System.setProperty(UDPGateway.SYSP_PORT_WIDTH, "3");
+        System.setProperty(UDPGateway.SYSP_UDP_PACKET_SIZE, "512");
+        System.setProperty(UDPGateway.SYSP_UDP_BATCH_WINDOW, "10000");
+        try {
+            gate();
+        } finally {
+            System.clearProperty(UDPGateway.SYSP_UDP_BATCH_WINDOW);
+        }
+
+        for (int i = 0; i < 30; i++)
+            gate().send(cloud, new MessageBuilder(Message.Type.PIN, new Iden(Iden.Type.AGT, UUID.randomUUID()), cloud.getIden()).make(), null);
+        gate().close();
+
+        assertTrue("Sent " + gate().datagrams() + " datagrams", gate().datagrams() <= 30 * 3 / 2);
+    }
+
+    @Test
+    public void shouldFlushTheBatchWhenTheWindowExpires() throws Exception {
+        System.setProperty(UDPGateway.SYSP_PORT_WIDTH, "1");
+        System.setProperty(UDPGateway.SYSP_UDP_BATCH_WINDOW, "1");
+        try {
+            gate();
+        } finally {
+            System.clearProperty(UDPGateway.SYSP_UDP_BATCH_WINDOW);
+        }
+
+        Message message = newSampleMessage();
+        gate().send(cloud, message, null);
+
+        verify(socket, timeout(1000)).send(any(DatagramPacket.class));
+        assertPacketValid(message, getSentPackets().get(0));
+    }
+
     private void assertPacketValid(Message message, final DatagramPacket packet) {
         byte[] actuals = packet.getData();
         byte[] expecteds = gate.serializer().toBytes(message);
@@ -1,20 +1,27 @@
 package com.workshare.msnos.core.protocols.ip.udp;
 
+import com.workshare.msnos.core.Cloud;
+import com.workshare.msnos.core.Gateway;
 import com.workshare.msnos.core.Gateway.Listener;
 import com.workshare.msnos.core.Iden;
 import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.cloud.MessageValidators.Reason;
+import com.workshare.msnos.core.serializers.WireBinarySerializer;
 import com.workshare.msnos.soup.json.Json;
 import com.workshare.msnos.soup.threading.Multicaster;
+import com.workshare.msnos.soup.threading.ThreadFactories;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.mockito.stubbing.Stubber;
 
 import java.net.DatagramPacket;
 import java.net.MulticastSocket;
+import java.util.Collections;
 import java.util.UUID;
 import java.util.concurrent.ThreadFactory;
 
@@ -37,16 +44,15 @@ public class UDPServerTest {
         thread = Mockito.mock(Thread.class);
         when(thread.isInterrupted()).thenReturn(false);
 
-        ThreadFactory threads = Mockito.mock(ThreadFactory.class);
         runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
-        Mockito.when(threads.newThread(runnableCaptor.capture())).thenReturn(thread);
+        ThreadFactory threads = threadFactory();
 
         caster = Mockito.mock(Multicaster.class);
         messageCaptor = ArgumentCaptor.forClass(Message.class);
         Mockito.doNothing().when(caster).dispatch(messageCaptor.capture());
 
         socket = Mockito.mock(MulticastSocket.class);
-        server = new UDPServer(threads, caster);
+        server = new UDPServer(threads, caster, 0);
     }
 
     @Test
@@ -102,6 +108,157 @@ public class UDPServerTest {
         assertEquals(toJson(message), toJson(getLastMessage()));
     }
 
+    @Test
+    public void shouldReceiveBinaryMessage() throws Exception {
+        final Message message = newSampleMessage();
+
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                DatagramPacket packet = (DatagramPacket) invocation.getArguments()[0];
+                packet.setData(new WireBinarySerializer().toBytes(message));
+                return null;
+            }
+        }).doThrow(new IllegalArgumentException()).when(socket).receive(any(DatagramPacket.class));
+
+        server.start(socket, 512);
+        try {
+            runnable().run();
+        } catch (IllegalArgumentException ignore) {
+        }
+
+        assertEquals(toJson(message), toJson(getLastMessage()));
+    }
+
+    @Test
+    public void shouldShedMessagesForOtherCloudsBeforeDecoding() throws Exception {
+        server.addCloud(new Cloud(UUID.randomUUID(), null, Collections.<Gateway>emptySet()));
+
+        receive(newSampleMessage());
+
+        verify(caster, never()).dispatch(any(Message.class));
+        assertEquals(1, server.prefilter().shed(Reason.TO_OTHER));
+    }
+
+    @Test
+    public void shouldLetThroughMessagesForListeningClouds() throws Exception {
+        final Message message = newSampleMessage();
+        server.addCloud(new Cloud(message.getTo().getUUID(), null, Collections.<Gateway>emptySet()));
+
+        receive(message);
+
+        assertEquals(toJson(message), toJson(getLastMessage()));
+        assertEquals(1, server.prefilter().passed());
+    }
+
+    @Test
+    public void shouldCountReadPackets() throws Exception {
+        receive(newSampleMessage(), 3);
+
+        assertEquals(3, server.read());
+        assertEquals(0, server.dropped());
+    }
+
+    @Test
+    public void shouldDropTruncatedPackets() throws Exception {
+        final byte[] data = server.serializer().toBytes(newSampleMessage());
+
+        receive(data, 1, data.length - 1);
+
+        verify(caster, never()).dispatch(any(Message.class));
+        assertEquals(1, server.truncated());
+    }
+
+    @Test
+    public void shouldDropPacketsWhenNoBufferIsFree() throws Exception {
+        System.setProperty(UDPServer.SYSP_BUFFERS, "1");
+        try {
+            server = new UDPServer(threadFactory(), caster, 1);
+        } finally {
+            System.clearProperty(UDPServer.SYSP_BUFFERS);
+        }
+
+        receive(newSampleMessage(), 3);
+
+        assertEquals(3, server.read());
+        assertEquals(2, server.dropped());
+    }
+
+    @Test
+    public void shouldDecodeOnDecoderThreads() throws Exception {
+        final byte[] data = server.serializer().toBytes(newSampleMessage());
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                DatagramPacket packet = (DatagramPacket) invocation.getArguments()[0];
+                System.arraycopy(data, 0, packet.getData(), 0, data.length);
+                packet.setLength(data.length);
+                Thread.sleep(1);
+                return null;
+            }
+        }).when(socket).receive(any(DatagramPacket.class));
+
+        server = new UDPServer(ThreadFactories.DEFAULT, caster, 2);
+        server.start(socket, 512);
+        try {
+            verify(caster, timeout(1000).atLeast(10)).dispatch(any(Message.class));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void shouldUnpackBatchesOfMessages() throws Exception {
+        final Message one = newSampleMessage();
+        final Message two = newSampleMessage();
+        final DatagramBatch batch = new DatagramBatch(512);
+        batch.add(server.serializer().toBytes(one));
+        batch.add(server.serializer().toBytes(two));
+
+        receive(batch.toBytes(), 1, 512);
+
+        verify(caster, times(2)).dispatch(any(Message.class));
+        assertEquals(one.getUuid(), messageCaptor.getAllValues().get(0).getUuid());
+        assertEquals(two.getUuid(), messageCaptor.getAllValues().get(1).getUuid());
+        assertEquals(1, server.batches());
+    }
+
+    private void receive(final Message message) throws Exception {
+        receive(message, 1);
+    }
+
+    private void receive(final Message message, int times) throws Exception {
+        receive(server.serializer().toBytes(message), times, 512);
+    }
+
+    private void receive(final byte[] data, int times, int maxPacketSize) throws Exception {
+        Answer<Object> answer = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                DatagramPacket packet = (DatagramPacket) invocation.getArguments()[0];
+                packet.setData(data);
+                return null;
+            }
+        };
+
+        Stubber stubber = doAnswer(answer);
+        for (int i = 1; i < times; i++)
+            stubber = stubber.doAnswer(answer);
+        stubber.doThrow(new IllegalArgumentException()).when(socket).receive(any(DatagramPacket.class));
+
+        server.start(socket, maxPacketSize);
+        try {
+            runnable().run();
+        } catch (IllegalArgumentException ignore) {
+        }
+    }
+
+    private ThreadFactory threadFactory() {
+        ThreadFactory threads = Mockito.mock(ThreadFactory.class);
+        Mockito.when(threads.newThread(runnableCaptor.capture())).thenReturn(thread);
+        return threads;
+    }
+
     private String toJson(Message message) {
         return Json.toJsonString(message);
     }
@@ -8,6 +8,7 @@ import static org.mockito.Mockito.when;
 
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -17,6 +18,7 @@ import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.Message.Status;
 import com.workshare.msnos.core.MessageBuilder;
 import com.workshare.msnos.core.Receipt;
+import com.workshare.msnos.core.protocols.ip.NullGateway;
 
 public class DelegateReceiptTest {
 
@@ -45,7 +47,7 @@ public class DelegateReceiptTest {
         
         receipt.waitForDelivery(100, TimeUnit.MILLISECONDS);
 
-        assertTrue(System.currentTimeMillis() > now + 100);
+        assertTrue(System.currentTimeMillis() >= now + 100);
     }
     
     @Test
@@ -92,6 +94,37 @@ public class DelegateReceiptTest {
         assertTrue(elapsed < 200);
     }
     
+    @Test
+    public void shouldInvokeCallbackWhenDelegateCompletes() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        receipt.onComplete(counter(calls));
+
+        SingleReceipt delegate = new SingleReceipt(NullGateway.NAME, Status.PENDING, MESSAGE);
+        receipt.setDelegate(delegate);
+        assertEquals(0, calls.get());
+
+        delegate.update(new SingleReceipt(NullGateway.NAME, Status.DELIVERED, MESSAGE));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldInvokeCallbackWhenInjectedDelegateAlreadyComplete() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        receipt.onComplete(counter(calls));
+
+        receipt.setDelegate(createMockReceipt(Status.FAILED));
+
+        assertEquals(1, calls.get());
+    }
+
+    private Receipt.Callback counter(final AtomicInteger calls) {
+        return new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                calls.incrementAndGet();
+            }
+        };
+    }
 
 /*
     @Test
@@ -4,24 +4,29 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyLong;
-import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.workshare.msnos.core.LocalAgent;
 import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.Message.Status;
 import com.workshare.msnos.core.MessageBuilder;
 import com.workshare.msnos.core.Receipt;
+import com.workshare.msnos.core.Receipt.Callback;
 
 public class MultiReceiptTest {
 
@@ -67,10 +72,10 @@ public class MultiReceiptTest {
     }
 
     @Test
-    public void shouldWaitForTimeoutsOnAllReceipts() throws InterruptedException {
-        multi.waitForDelivery(100 * receipts.length, TimeUnit.MILLISECONDS);
+    public void shouldListenForCompletionOnAllReceiptsWhenWaiting() throws InterruptedException {
+        multi.waitForDelivery(100, TimeUnit.MILLISECONDS);
         for (Receipt receipt : receipts) {
-            verify(receipt, atLeastOnce()).waitForDelivery(anyLong(), eq(TimeUnit.MILLISECONDS));
+            verify(receipt, atLeastOnce()).onComplete(any(Callback.class));
         }
     }
 
@@ -82,9 +87,97 @@ public class MultiReceiptTest {
 
     @Test
     public void shouldReturnTrueWhenOnWaitforSucceeds() throws InterruptedException {
-        when(receipts[1].waitForDelivery(anyLong(), any(TimeUnit.class))).thenReturn(true);
-        boolean res = multi.waitForDelivery(100, TimeUnit.MILLISECONDS);
+        completeWhenListened(receipts[1], Status.DELIVERED);
+
+        long now = System.currentTimeMillis();
+        boolean res = multi.waitForDelivery(1000, TimeUnit.MILLISECONDS);
+
         assertTrue(res);
+        assertTrue(System.currentTimeMillis() < now + 500);
+    }
+
+    @Test
+    public void shouldCompleteOnFirstDelivered() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        multi.onComplete(counter(calls));
+        assertEquals(0, calls.get());
+
+        mockStatus(receipts[2], Status.DELIVERED);
+        captureCallback(receipts[2]).onComplete(receipts[2]);
+
+        assertEquals(1, calls.get());
+        assertEquals(Status.DELIVERED, multi.getStatus());
+    }
+
+    @Test
+    public void shouldCompleteAsFailedOnlyWhenAllFailed() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        multi.onComplete(counter(calls));
+
+        mockStatus(receipts[0], Status.FAILED);
+        mockStatus(receipts[1], Status.FAILED);
+        captureCallback(receipts[1]).onComplete(receipts[1]);
+        assertEquals(0, calls.get());
+
+        mockStatus(receipts[2], Status.FAILED);
+        captureCallback(receipts[2]).onComplete(receipts[2]);
+        assertEquals(1, calls.get());
+        assertEquals(Status.FAILED, multi.getStatus());
+    }
+
+    @Test
+    public void shouldCompleteStraightAwayWhenAlreadyDelivered() throws Exception {
+        mockStatus(receipts[0], Status.DELIVERED);
+
+        final AtomicInteger calls = new AtomicInteger();
+        multi.onComplete(counter(calls));
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldListenOnReceiptsAddedLater() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        multi.onComplete(counter(calls));
+
+        Receipt late = createMockReceipt(Status.PENDING, 3);
+        multi.add(late);
+        mockStatus(late, Status.DELIVERED);
+        captureCallback(late).onComplete(late);
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldBeDeliveredOnlyWhenAllDeliveredUsingAllPolicy() throws Exception {
+        multi = MultiReceipt.allDelivered(MESSAGE, receipts);
+        final AtomicInteger calls = new AtomicInteger();
+        multi.onComplete(counter(calls));
+
+        mockStatus(receipts[0], Status.DELIVERED);
+        mockStatus(receipts[1], Status.DELIVERED);
+        captureCallback(receipts[1]).onComplete(receipts[1]);
+        assertEquals(Status.UNKNOWN, multi.getStatus());
+        assertEquals(0, calls.get());
+
+        mockStatus(receipts[2], Status.DELIVERED);
+        captureCallback(receipts[2]).onComplete(receipts[2]);
+        assertEquals(Status.DELIVERED, multi.getStatus());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldFailAsSoonAsOneFailsUsingAllPolicy() throws Exception {
+        multi = MultiReceipt.allDelivered(MESSAGE, receipts);
+        final AtomicInteger calls = new AtomicInteger();
+        multi.onComplete(counter(calls));
+
+        mockStatus(receipts[0], Status.DELIVERED);
+        mockStatus(receipts[1], Status.FAILED);
+        captureCallback(receipts[1]).onComplete(receipts[1]);
+
+        assertEquals(Status.FAILED, multi.getStatus());
+        assertEquals(1, calls.get());
     }
 
     @Test
@@ -101,7 +194,7 @@ public class MultiReceiptTest {
         multi = new MultiReceipt(MESSAGE);
         multi.waitForDelivery(100, TimeUnit.MILLISECONDS);
 
-        assertTrue(System.currentTimeMillis() > now + 100);
+        assertTrue(System.currentTimeMillis() >= now + 100);
     }
 
     @Test
@@ -125,6 +218,39 @@ public class MultiReceiptTest {
 
 
 
+    private Callback captureCallback(Receipt receipt) {
+        ArgumentCaptor<Callback> captor = ArgumentCaptor.forClass(Callback.class);
+        verify(receipt, atLeastOnce()).onComplete(captor.capture());
+        return captor.getValue();
+    }
+
+    private Callback counter(final AtomicInteger calls) {
+        return new Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                calls.incrementAndGet();
+            }
+        };
+    }
+
+    private void completeWhenListened(final Receipt receipt, final Status status) {
+        final AtomicReference<Status> current = new AtomicReference<Status>(receipt.getStatus());
+        when(receipt.getStatus()).thenAnswer(new Answer<Status>() {
+            @Override
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                return current.get();
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                current.set(status);
+                ((Callback) invocation.getArguments()[0]).onComplete(receipt);
+                return null;
+            }
+        }).when(receipt).onComplete(any(Callback.class));
+    }
+
     private Receipt createMockReceipt(final Status status, int number) throws Exception {
         Receipt value = mock(Receipt.class);
         mockStatus(value, status);
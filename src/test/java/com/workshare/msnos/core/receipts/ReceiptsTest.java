@@ -0,0 +1,92 @@
+package com.workshare.msnos.core.receipts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.workshare.msnos.core.LocalAgent;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Message.Status;
+import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.Receipt;
+import com.workshare.msnos.core.protocols.ip.NullGateway;
+
+public class ReceiptsTest {
+
+    private static final Message MESSAGE = new MessageBuilder(Message.Type.PIN, new LocalAgent(UUID.randomUUID()), new LocalAgent(UUID.randomUUID())).make();
+
+    @Test
+    public void shouldInvokeCallbackOnTimeout() throws Exception {
+        SingleReceipt receipt = SingleReceipt.unknown(MESSAGE);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        Receipts.onComplete(receipt, 50, TimeUnit.MILLISECONDS, new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Status.UNKNOWN, receipt.getStatus());
+    }
+
+    @Test
+    public void shouldInvokeCallbackOnceWhenCompletedBeforeTimeout() throws Exception {
+        SingleReceipt receipt = SingleReceipt.unknown(MESSAGE);
+        final AtomicInteger calls = new AtomicInteger();
+
+        Receipts.onComplete(receipt, 50, TimeUnit.MILLISECONDS, new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                calls.incrementAndGet();
+            }
+        });
+        receipt.update(new SingleReceipt(NullGateway.NAME, Status.DELIVERED, MESSAGE));
+        Thread.sleep(100);
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldForgetReceiptsCompletedBeforeTimeout() throws Exception {
+        SingleReceipt receipt = SingleReceipt.unknown(MESSAGE);
+        Receipts.onComplete(receipt, 1, TimeUnit.HOURS, new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+            }
+        });
+
+        receipt.update(new SingleReceipt(NullGateway.NAME, Status.DELIVERED, MESSAGE));
+        Thread.sleep(100);
+
+        assertFalse(Receipts.isPending(receipt));
+    }
+
+    @Test
+    public void shouldInvokeCallbackStraightAwayWhenAlreadyCompleted() throws Exception {
+        SingleReceipt receipt = new SingleReceipt(NullGateway.NAME, Status.DELIVERED, MESSAGE);
+        final AtomicInteger calls = new AtomicInteger();
+
+        Receipts.onComplete(receipt, 1, TimeUnit.HOURS, new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                calls.incrementAndGet();
+            }
+        });
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldAwaitReturnFalseOnTimeout() throws Exception {
+        assertFalse(Receipts.await(SingleReceipt.unknown(MESSAGE), 10, TimeUnit.MILLISECONDS));
+    }
+}
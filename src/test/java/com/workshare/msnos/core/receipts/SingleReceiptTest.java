@@ -4,8 +4,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -153,4 +156,104 @@ public class SingleReceiptTest {
             }}).start();
     }
 
+
+    @Test
+    public void shouldFollowTheNewerReceiptWhenCoalesced() throws Exception {
+        final Message newer = new MessageBuilder(Message.Type.PIN, new LocalAgent(UUID.randomUUID()), new LocalAgent(UUID.randomUUID())).make();
+        final SingleReceipt newerReceipt = SingleReceipt.unknown(newer);
+        final SingleReceipt receipt = SingleReceipt.unknown(MESSAGE);
+
+        receipt.coalesce(newerReceipt);
+        newerReceipt.update(new SingleReceipt(gate, Status.DELIVERED, newer));
+
+        assertEquals(newer.getUuid(), receipt.getCoalescedInto());
+        assertEquals(Status.DELIVERED, receipt.getStatus());
+        assertEquals(gate.name(), receipt.getGate());
+        assertTrue(receipt.waitForDelivery(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void shouldWakeUpWaitersWhenCoalesced() throws Exception {
+        final Message newer = new MessageBuilder(Message.Type.PIN, new LocalAgent(UUID.randomUUID()), new LocalAgent(UUID.randomUUID())).make();
+        final SingleReceipt newerReceipt = new SingleReceipt(gate, Status.DELIVERED, newer);
+        final SingleReceipt receipt = SingleReceipt.unknown(MESSAGE);
+
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignore) {
+                }
+                receipt.coalesce(newerReceipt);
+            }
+        }.start();
+
+        assertTrue(receipt.waitForDelivery(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldInvokeCallbackWhenDelivered() throws Exception {
+        SingleReceipt receipt = new SingleReceipt(gate, Status.PENDING, MESSAGE);
+        final AtomicInteger calls = new AtomicInteger();
+        receipt.onComplete(counter(calls));
+
+        receipt.update(new SingleReceipt(gate, Status.PENDING, MESSAGE));
+        assertEquals(0, calls.get());
+
+        receipt.update(new SingleReceipt(gate, Status.DELIVERED, MESSAGE));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldInvokeCallbackStraightAwayWhenAlreadyComplete() throws Exception {
+        SingleReceipt receipt = new SingleReceipt(gate, Status.FAILED, MESSAGE);
+        final AtomicInteger calls = new AtomicInteger();
+
+        receipt.onComplete(counter(calls));
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldFollowTheReceiptItWasUpdatedFrom() throws Exception {
+        SingleReceipt receipt = SingleReceipt.unknown(MESSAGE);
+        SingleReceipt routed = new SingleReceipt(gate, Status.PENDING, MESSAGE);
+        final AtomicInteger calls = new AtomicInteger();
+        receipt.onComplete(counter(calls));
+
+        receipt.update(routed);
+        routed.update(new SingleReceipt(gate, Status.DELIVERED, MESSAGE));
+
+        assertEquals(Status.DELIVERED, receipt.getStatus());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldInvokeCallbackWhenTheNewerReceiptCompletes() throws Exception {
+        final Message message = new MessageBuilder(Message.Type.PIN, new LocalAgent(UUID.randomUUID()), new LocalAgent(UUID.randomUUID())).make();
+        final SingleReceipt older = SingleReceipt.unknown(MESSAGE);
+        final SingleReceipt newer = SingleReceipt.unknown(message);
+        final List<Receipt> completed = new ArrayList<Receipt>();
+        older.onComplete(new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                completed.add(receipt);
+            }
+        });
+
+        older.coalesce(newer);
+        newer.update(new SingleReceipt(gate, Status.DELIVERED, message));
+
+        assertEquals(1, completed.size());
+        assertEquals(older, completed.get(0));
+    }
+
+    private Receipt.Callback counter(final AtomicInteger calls) {
+        return new Receipt.Callback() {
+            @Override
+            public void onComplete(Receipt receipt) {
+                calls.incrementAndGet();
+            }
+        };
+    }
 }
@@ -0,0 +1,197 @@
+package com.workshare.msnos.core.routing;
+
+import static com.workshare.msnos.core.CoreHelper.fakeElapseTime;
+import static com.workshare.msnos.core.CoreHelper.fakeSystemTime;
+import static com.workshare.msnos.core.CoreHelper.newAgentIden;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Identifiable;
+import com.workshare.msnos.core.Message.Status;
+import com.workshare.msnos.core.Ring;
+import com.workshare.msnos.soup.time.SystemTime;
+
+public class RouteScoreboardTest {
+
+    private RouteScoreboard scoreboard;
+
+    @Before
+    public void setup() {
+        fakeSystemTime(123456L);
+        scoreboard = new RouteScoreboard(0.5, 1000L, 10000L);
+    }
+
+    @After
+    public void after() {
+        SystemTime.reset();
+    }
+
+    @Test
+    public void shouldNotScoreUnknownAgents() {
+        Iden iden = newAgentIden();
+
+        assertNull(scoreboard.score(iden));
+        assertEquals(0.0, scoreboard.value(iden), 0.001);
+    }
+
+    @Test
+    public void shouldAverageLatencyOfDeliveries() {
+        Iden iden = newAgentIden();
+
+        scoreboard.record(iden, 100, Status.DELIVERED);
+        scoreboard.record(iden, 200, Status.DELIVERED);
+
+        assertEquals(150.0, scoreboard.score(iden).latency(), 0.001);
+        assertEquals(0.0, scoreboard.failureRate(iden), 0.001);
+    }
+
+    @Test
+    public void shouldNotAverageLatencyOfFailures() {
+        Iden iden = newAgentIden();
+
+        scoreboard.record(iden, 100, Status.DELIVERED);
+        scoreboard.record(iden, 5000, Status.FAILED);
+
+        assertEquals(100.0, scoreboard.score(iden).latency(), 0.001);
+        assertEquals(0.5, scoreboard.failureRate(iden), 0.001);
+        assertEquals(2, scoreboard.score(iden).samples());
+    }
+
+    @Test
+    public void shouldDecayFailuresOverTime() {
+        Iden iden = newAgentIden();
+        scoreboard.record(iden, 100, Status.FAILED);
+
+        fakeElapseTime(1000L);
+
+        assertEquals(0.5, scoreboard.failureRate(iden), 0.001);
+    }
+
+    @Test
+    public void shouldRankBestFirstAndUnknownBeforeFailing() {
+        Agent failing = new Agent();
+        Agent slow = new Agent();
+        Agent fast = new Agent();
+        Agent unknown = new Agent();
+        scoreboard.record(failing.getIden(), 10, Status.FAILED);
+        scoreboard.record(slow.getIden(), 500, Status.DELIVERED);
+        scoreboard.record(fast.getIden(), 10, Status.DELIVERED);
+
+        List<Agent> ranked = scoreboard.rank(Arrays.asList(failing, slow, fast, unknown));
+
+        assertEquals(Arrays.asList(unknown, fast, slow, failing), ranked);
+    }
+
+    @Test
+    public void shouldKeepOrderOfEquallyScoredAgents() {
+        Agent one = new Agent();
+        Agent two = new Agent();
+        scoreboard.record(newAgentIden(), 10, Status.DELIVERED);
+
+        List<Agent> ranked = scoreboard.rank(Arrays.asList(two, one));
+
+        assertEquals(Arrays.asList(two, one), ranked);
+    }
+
+    @Test
+    public void shouldExposeAllScores() {
+        Iden iden = newAgentIden();
+        scoreboard.record(iden, 10, Status.DELIVERED);
+
+        assertEquals(1, scoreboard.snapshot().size());
+        assertEquals(scoreboard.score(iden), scoreboard.snapshot().get(iden));
+    }
+
+    @Test
+    public void shouldEvictStaleScoresFirstWhenFull() {
+        for (int i = 0; i < 4095; i++)
+            scoreboard.record(newAgentIden(), 10, Status.DELIVERED);
+        fakeElapseTime(5000L);
+        Iden failing = newAgentIden();
+        scoreboard.record(failing, 10, Status.FAILED);
+
+        scoreboard.record(newAgentIden(), 10, Status.DELIVERED);
+
+        assertEquals(2, scoreboard.snapshot().size());
+        assertEquals(1.0, scoreboard.failureRate(failing), 0.001);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUpdatedScoreWhenFull() {
+        Iden oldest = newAgentIden();
+        scoreboard.record(oldest, 10, Status.FAILED);
+        fakeElapseTime(1L);
+        for (int i = 0; i < 4095; i++)
+            scoreboard.record(newAgentIden(), 10, Status.DELIVERED);
+
+        scoreboard.record(newAgentIden(), 10, Status.DELIVERED);
+
+        assertNull(scoreboard.score(oldest));
+        assertEquals(4096, scoreboard.snapshot().size());
+    }
+
+    @Test
+    public void shouldRecordTheLastDecisionForEachTarget() {
+        Agent slow = new Agent();
+        Agent fast = new Agent();
+        Iden target = newAgentIden();
+        scoreboard.record(slow.getIden(), 500, Status.DELIVERED);
+        scoreboard.record(fast.getIden(), 10, Status.DELIVERED);
+
+        scoreboard.decided(target, "HOW", scoreboard.rank(Arrays.asList(slow, fast)), fast);
+
+        RouteScoreboard.Decision decision = scoreboard.decision(target);
+        assertEquals("HOW", decision.how());
+        assertEquals(fast.getIden(), decision.chosen());
+        assertEquals(Arrays.asList(fast.getIden(), slow.getIden()), new ArrayList<Iden>(decision.ranking().keySet()));
+        assertEquals(500.0, decision.ranking().get(slow.getIden()), 0.001);
+        assertEquals(1, scoreboard.decisions().size());
+    }
+
+    @Test
+    public void shouldNotRecordAgainAnUnchangedDecision() {
+        Agent one = new Agent();
+        Agent two = new Agent();
+        Iden target = newAgentIden();
+        scoreboard.decided(target, "HOW", Arrays.asList(one, two), one);
+        RouteScoreboard.Decision first = scoreboard.decision(target);
+
+        scoreboard.decided(target, "HOW", Arrays.asList(one, two), one);
+        assertSame(first, scoreboard.decision(target));
+
+        scoreboard.decided(target, "HOW", Arrays.asList(two, one), one);
+        assertNotSame(first, scoreboard.decision(target));
+    }
+
+    @Test
+    public void shouldKeepBroadcastDecisionsApartFromDestinations() {
+        Agent relay = new Agent();
+        Ring ring = Ring.random();
+
+        scoreboard.decided(ring, "HOW", Arrays.asList(relay), relay);
+
+        assertEquals(relay.getIden(), scoreboard.decision(ring).chosen());
+        assertEquals(1, scoreboard.broadcasts().size());
+        assertEquals(0, scoreboard.decisions().size());
+    }
+
+    private static class Agent implements Identifiable {
+        private final Iden iden = newAgentIden();
+
+        @Override
+        public Iden getIden() {
+            return iden;
+        }
+    }
+}
@@ -6,15 +6,20 @@ import static com.workshare.msnos.core.CoreHelper.newAPPMesage;
 import static com.workshare.msnos.core.CoreHelper.newAgentIden;
 import static com.workshare.msnos.core.Message.Type.TRC;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,13 +27,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.workshare.msnos.core.Cloud;
 import com.workshare.msnos.core.Gateway;
+import com.workshare.msnos.core.Iden;
 import com.workshare.msnos.core.Identifiable;
 import com.workshare.msnos.core.LocalAgent;
 import com.workshare.msnos.core.Message;
@@ -45,7 +56,10 @@ import com.workshare.msnos.core.protocols.ip.Network;
 import com.workshare.msnos.core.protocols.ip.http.HttpGateway;
 import com.workshare.msnos.core.protocols.ip.udp.UDPGateway;
 import com.workshare.msnos.core.protocols.ip.www.WWWGateway;
+import com.workshare.msnos.core.receipts.MultiReceipt;
+import com.workshare.msnos.core.receipts.Receipts;
 import com.workshare.msnos.core.receipts.SingleReceipt;
+import com.workshare.msnos.soup.threading.ExecutorServices;
 
 public abstract class RouterAbstractTest {
     
@@ -81,6 +95,7 @@ public abstract class RouterAbstractTest {
     protected MessageValidators validators;
 
     private Set<RemoteAgent> cloudAgents;
+    private Map<Ring, Set<RemoteAgent>> cloudRelays;
 
 
     @Before
@@ -103,6 +118,15 @@ public abstract class RouterAbstractTest {
         cloud = createMockCloud();
         cloudAgents = new HashSet<RemoteAgent>();
         when(cloud.getRemoteAgents()).thenReturn(cloudAgents);
+        cloudRelays = new HashMap<Ring, Set<RemoteAgent>>();
+        when(cloud.getRemoteRelayRings()).thenReturn(cloudRelays.keySet());
+        when(cloud.getRemoteRelays(any(Ring.class))).thenAnswer(new Answer<Collection<RemoteAgent>>() {
+            @Override
+            public Collection<RemoteAgent> answer(InvocationOnMock invocation) throws Throwable {
+                Set<RemoteAgent> relays = cloudRelays.get(invocation.getArguments()[0]);
+                return relays == null ? new HashSet<RemoteAgent>() : relays;
+            }
+        });
 
         validators = mock(MessageValidators.class);
         when(validators.isForwardable(any(Message.class))).thenReturn(MessageValidators.SUCCESS);
@@ -247,6 +271,74 @@ public abstract class RouterAbstractTest {
         assertEquals(MAXIMUM_MESSAGES_PER_RING, anyMessagesOn(http).size());
     }
     
+    @Test
+    public void shouldCloudMessageTryOtherRelaysOfTheRingWhenSendFails() throws Exception {
+        connecMyselfViaHTTPTo(usaOne);
+        connecMyselfViaHTTPTo(usaTwo);
+        connecMyselfViaHTTPTo(usaTre);
+        connecMyselfViaHTTPTo(usaFor);
+        Message message = newAPPMesage(europeOne, cloud).withHops(10).make();
+        when(http.send(any(Cloud.class), any(Message.class), any(Identifiable.class))).thenReturn(SingleReceipt.failure(message));
+        final Receipt delivered = new SingleReceipt(http, Message.Status.DELIVERED, message);
+        when(http.send(any(Cloud.class), any(Message.class), eq(usaFor))).thenReturn(delivered);
+
+        router().forward(message);
+
+        assertEquals(4, anyMessagesOn(http).size());
+        assertSentViaHTTP(message, MAXIMUM_HOPS_CLOUD, usaFor);
+    }
+
+    @Test
+    public void shouldCloudMessageFailHTTPLanesOnDeadline() throws Exception {
+        System.setProperty(Router.SYSP_BROADCAST_DEADLINE, "50");
+        try {
+            connecMyselfViaHTTPTo(usaTwo);
+            Message message = newAPPMesage(europeOne, cloud).withHops(10).make();
+            Executor stuck = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                }
+            };
+
+            MultiReceipt receipt = (MultiReceipt) new Router(cloud, udp, http, www, stuck).forward(message);
+
+            int lanes = 0;
+            for (Receipt child : receipt.getReceipts()) {
+                if ("HTTP".equals(child.getGate())) {
+                    Receipts.await(child, 5, TimeUnit.SECONDS);
+                    assertEquals(Message.Status.FAILED, child.getStatus());
+                    lanes++;
+                }
+            }
+            assertEquals(1, lanes);
+        } finally {
+            System.clearProperty(Router.SYSP_BROADCAST_DEADLINE);
+        }
+    }
+
+    @Test
+    public void shouldCloudMessageFailHTTPLanesStraightAwayWhenFanoutIsFull() throws Exception {
+        connecMyselfViaHTTPTo(usaTwo);
+        Message message = newAPPMesage(europeOne, cloud).withHops(10).make();
+        Executor full = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+
+        MultiReceipt receipt = (MultiReceipt) new Router(cloud, udp, http, www, full).forward(message);
+
+        int lanes = 0;
+        for (Receipt child : receipt.getReceipts()) {
+            if ("HTTP".equals(child.getGate())) {
+                assertEquals(Message.Status.FAILED, child.getStatus());
+                lanes++;
+            }
+        }
+        assertEquals(1, lanes);
+    }
+
     @Test
     public void shouldFallbackToUDPIfTargetIsConnectedToMeButSendFails() throws Exception {
         connecMyselfViaHTTPTo(usaTwo);
@@ -282,6 +374,68 @@ public abstract class RouterAbstractTest {
         assertSentViaUDP(message, MAXIMUM_HOPS_DIRECT);
     }
 
+    @Test
+    public void shouldTryRelaysThatFailedLast() throws Exception {
+        connecMyselfViaHTTPTo(usaTwo);
+        connecMyselfViaHTTPTo(usaTre);
+        router().scoreboard().record(usaTwo.getIden(), 10, Message.Status.FAILED);
+        Message message = newAPPMesage(asiaOne, usaOne).withHops(10).make();
+
+        process(message);
+
+        assertSentOnlyViaHTTP(message, 1, usaTre);
+        RouteScoreboard.Decision decision = router().scoreboard().decision(usaOne.getIden());
+        assertEquals(usaTre.getIden(), decision.chosen());
+        assertEquals(Arrays.asList(usaTre.getIden(), usaTwo.getIden()), new ArrayList<Iden>(decision.ranking().keySet()));
+    }
+
+    @Test
+    public void shouldRecordTheRouteWhichTookTheMessage() throws Exception {
+        connecMyselfViaHTTPTo(usaTwo);
+        connecMyselfViaHTTPTo(usaTre);
+        Message message = newAPPMesage(asiaOne, usaTwo).withHops(10).make();
+        when(http.send(any(Cloud.class), any(Message.class), any(Identifiable.class))).thenReturn(SingleReceipt.failure(message));
+
+        router().forward(message);
+
+        RouteScoreboard.Decision decision = router().scoreboard().decision(usaTwo.getIden());
+        assertTrue(decision.how().startsWith("UDP"));
+        assertNull(decision.chosen());
+    }
+
+    @Test
+    public void shouldRecordOneDecisionForEachRingBroadcastTo() throws Exception {
+        connecMyselfViaHTTPTo(usaOne);
+        connecMyselfViaHTTPTo(usaTwo);
+        connecMyselfViaHTTPTo(usaTre);
+        connecMyselfViaHTTPTo(usaFor);
+        Message message = newAPPMesage(europeOne, cloud).withHops(10).make();
+        when(http.send(any(Cloud.class), any(Message.class), any(Identifiable.class))).thenReturn(SingleReceipt.failure(message));
+        final Receipt delivered = new SingleReceipt(http, Message.Status.DELIVERED, message);
+        when(http.send(any(Cloud.class), any(Message.class), eq(usaFor))).thenReturn(delivered);
+
+        router().forward(message);
+
+        RouteScoreboard.Decision decision = router().scoreboard().decision(usa);
+        assertEquals(usaFor.getIden(), decision.chosen());
+        assertEquals(4, decision.ranking().size());
+        assertEquals(1, router().scoreboard().broadcasts().size());
+    }
+
+    @Test
+    public void shouldSkipDirectRouteToFailingTarget() throws Exception {
+        connecMyselfViaHTTPTo(usaTwo);
+        connecMyselfViaHTTPTo(usaTre);
+        for (int i = 0; i < 3; i++)
+            router().scoreboard().record(usaTwo.getIden(), 10, Message.Status.FAILED);
+        Message message = newAPPMesage(asiaOne, usaTwo).withHops(10).make();
+
+        process(message);
+
+        verify(http, never()).send(any(Cloud.class), any(Message.class), eq(usaTwo));
+        assertSentViaHTTP(message, 1, usaTre);
+    }
+
     @Test
     public void shouldSentTraceMessageCrumbed() throws Exception {
         Message message = new MessageBuilder(TRC, usaOne, asiaTwo).withHops(10).with(new TracePayload(newAgentIden())).make();
@@ -310,15 +464,22 @@ public abstract class RouterAbstractTest {
         return remote;
     }
     
-    private void connecMyselfViaHTTPTo(RemoteAgent other) {
+    protected void connecMyselfViaHTTPTo(RemoteAgent other) {
         Set<Endpoint> points = new HashSet<Endpoint>();
         points.add(new HttpEndpoint(PUBLIC_HOST, "http://url", other.getIden()));
         when(other.getEndpoints(eq(Endpoint.Type.HTTP))).thenReturn(points );
+
+        Set<RemoteAgent> relays = cloudRelays.get(other.getRing());
+        if (relays == null) {
+            relays = new HashSet<RemoteAgent>();
+            cloudRelays.put(other.getRing(), relays);
+        }
+        relays.add(other);
     }
 
     protected Router router() {
         if (router == null) {
-            router = new Router(cloud, udp, http, www);
+            router = new Router(cloud, udp, http, www, ExecutorServices.newSynhcronousExecutor());
         }
         
         return router;
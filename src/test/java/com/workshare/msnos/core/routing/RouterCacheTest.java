@@ -0,0 +1,203 @@
+package com.workshare.msnos.core.routing;
+
+import static com.workshare.msnos.core.CoreHelper.newAgentIden;
+import static com.workshare.msnos.core.MessagesHelper.newPingMessage;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.workshare.msnos.core.Cloud;
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Message.Status;
+import com.workshare.msnos.core.Receipt;
+import com.workshare.msnos.core.RemoteAgent;
+import com.workshare.msnos.core.Ring;
+import com.workshare.msnos.core.protocols.ip.Endpoint;
+import com.workshare.msnos.core.receipts.SingleReceipt;
+
+public class RouterCacheTest {
+
+    private Router base;
+    private Iden destination;
+
+    @Before
+    public void setup() {
+        base = new Router(mock(Cloud.class), null, null, null, new Route[]{});
+        destination = newAgentIden();
+    }
+
+    @Test
+    public void shouldSkipDeclinedRoutesOnceCached() throws Exception {
+        FakeRoute declining = new FakeRoute(true, null);
+        FakeRoute accepting = new FakeRoute(true, Status.PENDING);
+        Router router = newRouter(declining, accepting);
+
+        router.route(newPingMessage(destination));
+        router.route(newPingMessage(destination));
+
+        assertEquals(1, declining.calls);
+        assertEquals(2, accepting.calls);
+        assertEquals(1, router.cache().hits());
+        assertEquals(0.5, router.cache().hitRate(), 0.001);
+    }
+
+    @Test
+    public void shouldAlwaysRunRoutesNotCacheable() throws Exception {
+        FakeRoute always = new FakeRoute(false, null);
+        FakeRoute declining = new FakeRoute(true, null);
+        FakeRoute accepting = new FakeRoute(true, Status.PENDING);
+        Router router = newRouter(always, declining, accepting);
+
+        router.route(newPingMessage(destination));
+        router.route(newPingMessage(destination));
+
+        assertEquals(2, always.calls);
+        assertEquals(1, declining.calls);
+    }
+
+    @Test
+    public void shouldNotShareRoutesAcrossDestinations() throws Exception {
+        FakeRoute declining = new FakeRoute(true, null);
+        FakeRoute accepting = new FakeRoute(true, Status.PENDING);
+        Router router = newRouter(declining, accepting);
+
+        router.route(newPingMessage(destination));
+        router.route(newPingMessage(newAgentIden()));
+
+        assertEquals(2, declining.calls);
+    }
+
+    @Test
+    public void shouldFallBackWhenCachedRouteDeclines() throws Exception {
+        FakeRoute declining = new FakeRoute(true, null);
+        FakeRoute flaky = new FakeRoute(true, Status.PENDING);
+        FakeRoute last = new FakeRoute(true, Status.PENDING);
+        Router router = newRouter(declining, flaky, last);
+        router.route(newPingMessage(destination));
+
+        flaky.status = null;
+        Receipt receipt = router.route(newPingMessage(destination));
+
+        assertEquals(Status.PENDING, receipt.getStatus());
+        assertEquals(1, declining.calls);
+        assertEquals(1, last.calls);
+        assertEquals(1, router.cache().invalidations());
+    }
+
+    @Test
+    public void shouldNotCacheFailedRoutes() throws Exception {
+        FakeRoute failing = new FakeRoute(true, Status.FAILED);
+        Router router = newRouter(failing);
+
+        router.route(newPingMessage(destination));
+
+        assertEquals(0, router.cache().size());
+    }
+
+    @Test
+    public void shouldInvalidateWhenDeliveryFailsLater() throws Exception {
+        FakeRoute accepting = new FakeRoute(true, Status.PENDING);
+        Router router = newRouter(accepting);
+        Message message = newPingMessage(destination);
+
+        SingleReceipt receipt = (SingleReceipt) router.route(message);
+        assertEquals(1, router.cache().size());
+
+        receipt.update(SingleReceipt.failure(message));
+        assertEquals(0, router.cache().size());
+    }
+
+    @Test
+    public void shouldClearOnMembershipChanges() throws Exception {
+        FakeRoute accepting = new FakeRoute(true, Status.PENDING);
+        Router router = newRouter(accepting);
+        router.route(newPingMessage(destination));
+
+        router.cache().onAdd(newRemoteAgent(newAgentIden(), Ring.random()));
+
+        assertEquals(0, router.cache().size());
+    }
+
+    @Test
+    public void shouldOnlyDropItsOwnEntriesWhenKnownAgentIsUnchanged() throws Exception {
+        FakeRoute accepting = new FakeRoute(true, Status.PENDING);
+        Router router = newRouter(accepting);
+        RemoteAgent agent = newRemoteAgent(destination, Ring.random());
+        router.cache().onAdd(agent);
+        router.route(newPingMessage(destination));
+        router.route(newPingMessage(newAgentIden()));
+
+        router.cache().onAdd(agent);
+
+        assertEquals(1, router.cache().size());
+    }
+
+    @Test
+    public void shouldClearWhenKnownAgentChangesRing() throws Exception {
+        FakeRoute accepting = new FakeRoute(true, Status.PENDING);
+        Router router = newRouter(accepting);
+        router.cache().onAdd(newRemoteAgent(destination, Ring.random()));
+        router.route(newPingMessage(newAgentIden()));
+
+        router.cache().onAdd(newRemoteAgent(destination, Ring.random()));
+
+        assertEquals(0, router.cache().size());
+    }
+
+    @Test
+    public void shouldNotCacheWhenDisabled() throws Exception {
+        System.setProperty(RouteCache.SYSP_CACHE_SIZE, "0");
+        try {
+            FakeRoute declining = new FakeRoute(true, null);
+            FakeRoute accepting = new FakeRoute(true, Status.PENDING);
+            Router router = newRouter(declining, accepting);
+
+            router.route(newPingMessage(destination));
+            router.route(newPingMessage(destination));
+
+            assertEquals(2, declining.calls);
+            assertEquals(0, router.cache().misses());
+        } finally {
+            System.clearProperty(RouteCache.SYSP_CACHE_SIZE);
+        }
+    }
+
+    private RemoteAgent newRemoteAgent(Iden iden, Ring ring) {
+        RemoteAgent agent = mock(RemoteAgent.class);
+        when(agent.getIden()).thenReturn(iden);
+        when(agent.getRing()).thenReturn(ring);
+        when(agent.getEndpoints(Endpoint.Type.HTTP)).thenReturn(RemoteAgent.NO_ENDPOINTS);
+        return agent;
+    }
+
+    private Router newRouter(Route... routes) {
+        return new Router(mock(Cloud.class), null, null, null, routes);
+    }
+
+    private class FakeRoute extends Route {
+        private final boolean cacheable;
+        private Status status;
+        private int calls;
+
+        FakeRoute(boolean cacheable, Status status) {
+            super(base);
+            this.cacheable = cacheable;
+            this.status = status;
+        }
+
+        @Override
+        public Receipt send(Message message) {
+            calls++;
+            return status == null ? null : new SingleReceipt(Router.NOOP_GATE, status, message);
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return cacheable;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.workshare.msnos.core.routing;
+
+import static com.workshare.msnos.core.CoreHelper.newAPPMesage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.workshare.msnos.core.Cloud;
+import com.workshare.msnos.core.Identifiable;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Receipt;
+import com.workshare.msnos.core.receipts.SingleReceipt;
+import com.workshare.msnos.soup.threading.ExecutorServices;
+
+public class RouterHedgedSendTest extends RouterAbstractTest {
+
+    @Before
+    public void enableHedging() {
+        System.setProperty(Router.SYSP_HEDGE_ENABLED, "true");
+        System.setProperty(Router.SYSP_HEDGE_DELAY, "50");
+    }
+
+    @After
+    public void disableHedging() {
+        System.clearProperty(Router.SYSP_HEDGE_ENABLED);
+        System.clearProperty(Router.SYSP_HEDGE_DELAY);
+        System.clearProperty(Router.SYSP_HEDGE_MAX);
+    }
+
+    protected Receipt process(Message message) throws IOException {
+        return router().send(message);
+    }
+
+    @Test
+    public void shouldHedgeOnAnotherRelayWhenTheFirstIsSlow() throws Exception {
+        connecMyselfViaHTTPTo(usaTwo);
+        connecMyselfViaHTTPTo(usaTre);
+        Message message = newAPPMesage(asiaOne, usaOne).withHops(10).make();
+        slowFirstHttpSend(message, 1000);
+
+        long start = System.currentTimeMillis();
+        Receipt receipt = newAsyncRouter().send(message);
+
+        assertEquals(Message.Status.DELIVERED, receipt.getStatus());
+        assertTrue(System.currentTimeMillis() - start < 500);
+        verify(http, times(2)).send(any(Cloud.class), any(Message.class), any(Identifiable.class));
+    }
+
+    @Test
+    public void shouldNotHedgeWhenNoHedgesAllowed() throws Exception {
+        System.setProperty(Router.SYSP_HEDGE_MAX, "0");
+        connecMyselfViaHTTPTo(usaTwo);
+        connecMyselfViaHTTPTo(usaTre);
+        Message message = newAPPMesage(asiaOne, usaOne).withHops(10).make();
+        slowFirstHttpSend(message, 200);
+
+        long start = System.currentTimeMillis();
+        Receipt receipt = newAsyncRouter().send(message);
+
+        assertEquals(Message.Status.DELIVERED, receipt.getStatus());
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        verify(http, times(1)).send(any(Cloud.class), any(Message.class), any(Identifiable.class));
+    }
+
+    private Router newAsyncRouter() {
+        return new Router(cloud, udp, http, www, ExecutorServices.newCachedDaemonThreadPool());
+    }
+
+    private void slowFirstHttpSend(Message message, final long millis) throws IOException {
+        final Receipt delivered = new SingleReceipt(http, Message.Status.DELIVERED, message);
+        final AtomicInteger calls = new AtomicInteger();
+        when(http.send(any(Cloud.class), any(Message.class), any(Identifiable.class))).thenAnswer(new Answer<Receipt>() {
+            @Override
+            public Receipt answer(InvocationOnMock invocation) throws Throwable {
+                if (calls.getAndIncrement() == 0)
+                    Thread.sleep(millis);
+                return delivered;
+            }
+        });
+    }
+}
@@ -0,0 +1,149 @@
+package com.workshare.msnos.core.security;
+
+import static java.lang.System.out;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.serializers.WireJsonSerializer;
+
+/**
+ * Measures signatures per second per core. The "baseline" cases do what
+ * the signer and the signature validator used to do on every call (encode
+ * the message to text, new Mac, new key spec, hex through DatatypeConverter,
+ * and for verification a signed copy of the message), for comparison.
+ *
+ * Run with: java -cp target/classes:target/test-classes:<deps> \
+ *   com.workshare.msnos.core.security.SignerBenchmark [seconds] [threads]
+ */
+public class SignerBenchmark {
+
+    private static final String KEY_ID = "bench";
+    private static final String KEY_VAL = "0123456789ABCDEF0123456789ABCDEF";
+
+    private static volatile Object sink;
+
+    private interface Case {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("com.ws.nsnos.time.local", "true");
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        final KeysStore keys = new KeysStore() {
+            public String get(String id) {
+                return KEY_ID.equals(id) ? KEY_VAL : null;
+            }
+            public boolean isEmpty() {
+                return false;
+            }
+        };
+
+        final WireJsonSerializer sz = new WireJsonSerializer();
+        final Signer sha1 = new Signer(sz, keys, Signer.Algorithm.HMAC_SHA1);
+        final Signer sha256 = new Signer(sz, keys, Signer.Algorithm.HMAC_SHA256);
+
+        final Message message = new MessageBuilder(Message.Type.APP, new Iden(Iden.Type.AGT, UUID.randomUUID()), new Iden(Iden.Type.CLD, UUID.randomUUID())).make();
+        final Message signed = sz.fromBytes(sz.toBytes(sha1.signed(message, KEY_ID)), Message.class);
+
+        final Case[] cases = new Case[] {
+            new Case() {
+                public void run() throws Exception {
+                    Message fresh = message.data(message.getData());
+                    sink = fresh.signed(KEY_ID, baselineSign(sz.toText(fresh)));
+                }
+                public String toString() {
+                    return "baseline sign";
+                }
+            },
+            new Case() {
+                public void run() throws Exception {
+                    sink = sha1.signed(message.data(message.getData()), KEY_ID);
+                }
+                public String toString() {
+                    return "sign sha1";
+                }
+            },
+            new Case() {
+                public void run() throws Exception {
+                    sink = sha256.signed(message.data(message.getData()), KEY_ID);
+                }
+                public String toString() {
+                    return "sign sha256";
+                }
+            },
+            new Case() {
+                public void run() throws Exception {
+                    sink = sha1.verify(signed, KEY_ID);
+                }
+                public String toString() {
+                    return "verify sha1";
+                }
+            },
+            new Case() {
+                public void run() throws Exception {
+                    Message resigned = signed.signed(KEY_ID, baselineSign(sz.toText(signed)));
+                    sink = signed.getSig().equals(resigned.getSig());
+                }
+                public String toString() {
+                    return "baseline verify";
+                }
+            },
+        };
+
+        out.printf("%d threads, %d seconds per case\n\n", threads, seconds);
+        for (Case c : cases)
+            measure(c, 1, 1);
+
+        for (Case c : cases) {
+            long single = measure(c, 1, seconds);
+            long multi = measure(c, threads, seconds);
+            out.printf("%-16s %10d ops/s on 1 thread, %10d ops/s per core on %d threads\n", c, single, multi / threads, threads);
+        }
+    }
+
+    private static String baselineSign(String text) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(KEY_VAL.getBytes("UTF-8"), "HmacSHA1"));
+        return DatatypeConverter.printHexBinary(mac.doFinal(text.getBytes("UTF-8")));
+    }
+
+    private static long measure(final Case c, int threads, final int seconds) throws InterruptedException {
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    long count = 0;
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            for (int j = 0; j < 100; j++)
+                                c.run();
+                            count += 100;
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    } finally {
+                        total.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        done.await();
+        return total.get() / seconds;
+    }
+}
@@ -4,6 +4,8 @@ import com.workshare.msnos.core.Iden;
 import com.workshare.msnos.core.Message;
 import com.workshare.msnos.core.Message.Type;
 import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.serializers.WireBinarySerializer;
+import com.workshare.msnos.core.serializers.WireJsonSerializer;
 import com.workshare.msnos.core.serializers.WireSerializer;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,9 +14,12 @@ import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
@@ -31,11 +36,11 @@ public class SignerTest {
     private Message message;
 
     @Before
-    public void init() {
+    public void init() throws Exception {
         keys = mock(KeysStore.class);
         when(keys.get(KEY_ID)).thenReturn(KEY_VAL);
         serializer = mock(WireSerializer.class);
-        when(serializer.toText(anyObject())).thenReturn(MESSAGE_AS_TEXT);
+        when(serializer.toBytes(anyObject())).thenReturn(MESSAGE_AS_TEXT.getBytes("UTF-8"));
 
         final Iden src = new Iden(Iden.Type.CLD, UUID.randomUUID());
         final Iden dst = new Iden(Iden.Type.AGT, UUID.randomUUID());
@@ -65,12 +70,139 @@ public class SignerTest {
         assertNull(result.getSig());
     }
 
+    @Test
+    public void shouldVerifyMessagesItSigned() throws Exception {
+        signer = new Signer(keys);
+
+        Message result = signer.signed(message, KEY_ID);
+
+        assertTrue(signer.verify(result, KEY_ID));
+    }
+
+    @Test
+    public void shouldVerifyAgainstReceivedBytesAfterHops() throws Exception {
+        signer = new Signer(keys);
+        WireJsonSerializer sz = new WireJsonSerializer();
+
+        Message sent = signer.signed(message, KEY_ID).hopped();
+        Message received = sz.fromBytes(sz.toBytes(sent), Message.class).fromGate("UDP");
+
+        assertTrue(received.getReceivedBytes() != null);
+        assertTrue(signer.verify(received, KEY_ID));
+    }
+
+    @Test
+    public void shouldVerifyMessagesReceivedAsBinary() throws Exception {
+        signer = new Signer(keys);
+        WireBinarySerializer sz = new WireBinarySerializer();
+
+        Message sent = signer.signed(message, KEY_ID).hopped();
+        Message received = sz.fromBytes(sz.toBytes(sent), Message.class);
+
+        assertTrue(signer.verify(received, KEY_ID));
+    }
+
+    @Test
+    public void shouldRejectTamperedBytes() throws Exception {
+        signer = new Signer(keys);
+        WireJsonSerializer sz = new WireJsonSerializer();
+        Message sent = signer.signed(message, KEY_ID);
+
+        String text = new String(sz.toBytes(sent), "UTF-8").replace("\"ty\":\"PIN\"", "\"ty\":\"PON\"");
+        Message received = sz.fromBytes(text.getBytes("UTF-8"), Message.class);
+
+        assertFalse(signer.verify(received, KEY_ID));
+    }
+
+    @Test
+    public void shouldRejectMessagesSignedWithAnotherKey() throws Exception {
+        signer = new Signer(keys);
+        when(keys.get("456")).thenReturn(KEY_VAL);
+
+        Message result = signer.signed(message, "456");
+
+        assertFalse(signer.verify(result, KEY_ID));
+    }
+
+    @Test
+    public void shouldRejectUnsignedMessagesWhenKeyIsPresent() throws Exception {
+        assertFalse(signer.verify(message, KEY_ID));
+    }
+
+    @Test
+    public void shouldAcceptAnyMessageWhenKeyIsMissing() throws Exception {
+        when(keys.get(anyString())).thenReturn(null);
+        assertTrue(signer.verify(message, KEY_ID));
+    }
+
+    @Test
+    public void shouldApplyRotatedKeysWithoutRestart() throws Exception {
+        signer = new Signer(keys);
+        Message before = signer.signed(message, KEY_ID);
+
+        when(keys.get(KEY_ID)).thenReturn("a-brand-new-key");
+        Message after = signer.signed(message, KEY_ID);
+
+        assertFalse(before.getSig().equals(after.getSig()));
+        assertFalse(signer.verify(before, KEY_ID));
+        assertTrue(signer.verify(after, KEY_ID));
+    }
+
+    @Test
+    public void shouldSignUsingSHA256WhenConfigured() throws Exception {
+        signer = new Signer(serializer, keys, Signer.Algorithm.HMAC_SHA256);
+
+        Message result = signer.signed(message, KEY_ID);
+
+        String signature = KEY_ID + ":" + sign(KEY_VAL, MESSAGE_AS_TEXT, "HmacSHA256");
+        assertEquals(signature, result.getSig());
+    }
+
+    @Test
+    public void shouldVerifyBothAlgorithms() throws Exception {
+        Signer sha1 = new Signer(new WireJsonSerializer(), keys, Signer.Algorithm.HMAC_SHA1);
+        Signer sha256 = new Signer(new WireJsonSerializer(), keys, Signer.Algorithm.HMAC_SHA256);
+
+        assertTrue(sha256.verify(sha1.signed(message, KEY_ID), KEY_ID));
+        assertTrue(sha1.verify(sha256.signed(message, KEY_ID), KEY_ID));
+    }
+
+    @Test
+    public void shouldSignConsistentlyFromManyThreads() throws Exception {
+        signer = new Signer(serializer, keys);
+        final String expected = signer.signed(message, KEY_ID).getSig();
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; j++)
+                            if (!expected.equals(signer.signed(message, KEY_ID).getSig()))
+                                failures.incrementAndGet();
+                    } catch (Exception ex) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, failures.get());
+    }
 
     private String sign(String key, String text) throws Exception {
+        return sign(key, text, "HmacSHA1");
+    }
+
+    private String sign(String key, String text, String algo) throws Exception {
         byte[] keyBytes = key.getBytes("UTF-8");
-        SecretKeySpec signingKey = new SecretKeySpec(keyBytes, "HmacSHA1");
+        SecretKeySpec signingKey = new SecretKeySpec(keyBytes, algo);
 
-        Mac mac = Mac.getInstance("HmacSHA1");
+        Mac mac = Mac.getInstance(algo);
         mac.init(signingKey);
 
         byte[] textBytes = mac.doFinal(text.getBytes("UTF-8"));
@@ -72,4 +72,16 @@ public class SystemPropertiesKeysStoreTest {
         
         assertTrue(keys.isEmpty());
     }
+
+    @Test
+    public void shouldPickUpChangedKeysOnReload() {
+        System.setProperty(SystemPropertiesKeysStore.SYSP_KEYS, "123=ABC,777=BBB");
+        SystemPropertiesKeysStore keys = new SystemPropertiesKeysStore();
+
+        System.setProperty(SystemPropertiesKeysStore.SYSP_KEYS, "123=XYZ");
+        keys.reload();
+
+        assertEquals("XYZ", keys.get("123"));
+        assertNull(keys.get("777"));
+    }
 }
@@ -0,0 +1,106 @@
+package com.workshare.msnos.core.serializers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.UUID;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.payloads.GenericPayload;
+
+public class MessageHeaderTest {
+
+    private static final Iden AGENT = new Iden(Iden.Type.AGT, UUID.randomUUID());
+    private static final Iden CLOUD = new Iden(Iden.Type.CLD, UUID.randomUUID());
+
+    @BeforeClass
+    public static void useLocalTimeSource() {
+        System.setProperty("com.ws.nsnos.time.local", "true");
+    }
+
+    @Test
+    public void shouldPeekHeaderFromJson() {
+        Message message = newMessage();
+
+        MessageHeader header = peek(new WireJsonSerializer().toBytes(message));
+
+        assertHeader(message, header);
+    }
+
+    @Test
+    public void shouldPeekHeaderFromBinary() {
+        Message message = newMessage();
+
+        MessageHeader header = peek(new WireBinarySerializer().toBytes(message));
+
+        assertHeader(message, header);
+    }
+
+    @Test
+    public void shouldPeekHeaderFromText() {
+        Message message = newMessage();
+
+        MessageHeader header = MessageHeader.peek(new WireJsonSerializer().toText(message));
+
+        assertHeader(message, header);
+    }
+
+    @Test
+    public void shouldPeekHeaderWhateverTheFieldsOrder() {
+        Message message = newMessage();
+        String text = "{\"dt\":{\"a\":[1,{\"id\":\"x\"}],\"b\":\"}\\\"\"}, \"ts\" : " + message.getWhen()
+                + ", \"ty\":\"APP\", \"id\":\"" + hex(message.getUuid())
+                + "\", \"to\":\"AGT:" + hex(message.getTo().getUUID()) + "\", \"fr\":\"garbage\"}";
+
+        MessageHeader header = MessageHeader.peek(text);
+
+        assertHeader(message, header);
+    }
+
+    @Test
+    public void shouldReturnNullWhenFieldsAreMissing() {
+        assertNull(MessageHeader.peek("{\"ty\":\"APP\",\"ts\":12345}"));
+    }
+
+    @Test
+    public void shouldReturnNullOnGarbage() {
+        assertNull(MessageHeader.peek("this is not json"));
+        assertNull(MessageHeader.peek("{\"id\":\"12345\",\"ty\":\"APP\""));
+        assertNull(peek(new byte[] {2, 0, 99}));
+        assertNull(peek(new byte[0]));
+    }
+
+    @Test
+    public void shouldReturnNullOnUnknownType() {
+        Message message = newMessage();
+        String text = new WireJsonSerializer().toText(message).replace("\"APP\"", "\"XXX\"");
+
+        assertNull(MessageHeader.peek(text));
+    }
+
+    private MessageHeader peek(byte[] bytes) {
+        return MessageHeader.peek(bytes, 0, bytes.length);
+    }
+
+    private void assertHeader(Message message, MessageHeader header) {
+        assertEquals(message.getUuid(), header.getUuid());
+        assertEquals(message.getType(), header.getType());
+        assertEquals(message.getTo(), header.getTo());
+        assertEquals(message.getWhen(), header.getWhen());
+    }
+
+    private Message newMessage() {
+        GenericPayload payload = new GenericPayload(new JsonObject());
+        return new MessageBuilder(Message.Type.APP, CLOUD, AGENT).with(payload).withHops(3).make();
+    }
+
+    private static String hex(UUID uuid) {
+        return String.format("%016x%016x", uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+}
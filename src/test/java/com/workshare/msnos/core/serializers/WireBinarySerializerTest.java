@@ -0,0 +1,269 @@
+package com.workshare.msnos.core.serializers;
+
+import static com.workshare.msnos.core.CoreHelper.randomUUID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.workshare.msnos.core.Cloud;
+import com.workshare.msnos.core.Gateway;
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.LocalAgent;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.Message.Payload;
+import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.RemoteAgent;
+import com.workshare.msnos.core.RemoteEntity;
+import com.workshare.msnos.core.payloads.FltPayload;
+import com.workshare.msnos.core.payloads.GenericPayload;
+import com.workshare.msnos.core.payloads.HealthcheckPayload;
+import com.workshare.msnos.core.payloads.Presence;
+import com.workshare.msnos.core.payloads.QnePayload;
+import com.workshare.msnos.core.payloads.TracePayload;
+import com.workshare.msnos.core.protocols.ip.BaseEndpoint;
+import com.workshare.msnos.core.protocols.ip.Endpoint;
+import com.workshare.msnos.core.protocols.ip.HttpEndpoint;
+import com.workshare.msnos.core.protocols.ip.Network;
+import com.workshare.msnos.core.protocols.ip.NullGateway;
+import com.workshare.msnos.usvc.api.RestApi;
+
+public class WireBinarySerializerTest {
+
+    private static final UUID AGENT_UUID = UUID.randomUUID();
+    private static final UUID CLOUD_UUID = UUID.randomUUID();
+
+    private static final Iden A_CLOUD_IDEN = new Iden(Iden.Type.CLD, UUID.randomUUID());
+    private static final Iden A_AGENT_IDEN = new Iden(Iden.Type.AGT, UUID.randomUUID());
+
+    private static final Network SAMPLE_NETWORK = new Network(new byte[]{10,10,10,1}, (short)25);
+
+    private Cloud cloud;
+    private LocalAgent localAgent;
+    private RemoteEntity remoteAgent;
+    private WireBinarySerializer sz = new WireBinarySerializer();
+
+    @BeforeClass
+    public static void useLocalTimeSource() {
+        System.setProperty("com.ws.nsnos.time.local", "true");
+    }
+
+    @Before
+    public void before() throws Exception {
+        cloud = new Cloud(CLOUD_UUID, "1231", new HashSet<Gateway>(Arrays.asList(new NullGateway())));
+
+        localAgent = new LocalAgent(AGENT_UUID);
+        localAgent.join(cloud);
+
+        remoteAgent = new RemoteAgent(UUID.randomUUID(), cloud, null);
+    }
+
+    @Test
+    public void shouldBeAbleToEncodeAndDecodeMessage() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source, decoded);
+    }
+
+    @Test
+    public void shouldBeAbleToEncodeAndDecodePresenceEndpoints() throws Exception {
+        Endpoint udp = new BaseEndpoint(Endpoint.Type.UDP, SAMPLE_NETWORK);
+        Endpoint http = new HttpEndpoint(SAMPLE_NETWORK, "http://www.workshare.com:8080/msnos");
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, cloud).with(new Presence(true, new HashSet<Endpoint>(Arrays.asList(udp, http)))).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source.getData(), decoded.getData());
+    }
+
+    @Test
+    public void shouldBeAbleToEncodeAndDecodeQNE() throws Exception {
+        Message source = new MessageBuilder(Message.Type.QNE, localAgent, remoteAgent).with(new QnePayload("test", new RestApi("/test", 7070))).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source, decoded);
+    }
+
+    @Test
+    public void shouldBeAbleToEncodeAndDecodeSignedMessage() throws Exception {
+        final String sig = "this-is-a-signature";
+        final String rnd = "random";
+        Message source = new MessageBuilder(Message.Type.QNE, localAgent, cloud).signed(sig, rnd).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(sig, decoded.getSig());
+        assertEquals(rnd, decoded.getRnd());
+    }
+
+    @Test
+    public void shouldPreserveHopsReliabilityAndTimestamp() throws Exception {
+        Message source = new MessageBuilder(Message.Type.APP, localAgent, remoteAgent).withHops(-1).reliable(true).at(1234567890123L).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(-1, decoded.getHops());
+        assertTrue(decoded.isReliable());
+        assertEquals(1234567890123L, decoded.getWhen());
+        assertEquals(source.getUuid(), decoded.getUuid());
+    }
+
+    @Test
+    public void shouldCorrectlyDeserializeFLTMessage() throws Exception {
+        Message source = new MessageBuilder(Message.Type.FLT, A_CLOUD_IDEN, A_CLOUD_IDEN).with(new FltPayload(localAgent.getIden())).with(UUID.randomUUID()).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source.getData(), decoded.getData());
+    }
+
+    @Test
+    public void shouldCorrectlyDeserializeHCKMessage() throws Exception {
+        Payload payload = new HealthcheckPayload(localAgent, true);
+        Message source = new MessageBuilder(Message.Type.HCK, A_CLOUD_IDEN, A_CLOUD_IDEN).with(payload).with(UUID.randomUUID()).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source.getData(), decoded.getData());
+    }
+
+    @Test
+    public void shouldCorrectlyDeserializePONMessage() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PON, A_CLOUD_IDEN, A_CLOUD_IDEN).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source.getData(), decoded.getData());
+    }
+
+    @Test
+    public void shouldCorrectlyDeserializeTRCMessage() throws Exception {
+        Payload payload = new TracePayload(A_CLOUD_IDEN).crumbed(randomUUID(), randomUUID(), new NullGateway(), 3);
+        Message source = new MessageBuilder(Message.Type.TRC, A_CLOUD_IDEN, A_AGENT_IDEN).with(payload).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source.getData(), decoded.getData());
+    }
+
+    @Test
+    public void shouldCorrectlyDeserializeNoPayloadACK() throws Exception {
+        Message source = new MessageBuilder(Message.Type.ACK, A_AGENT_IDEN, A_CLOUD_IDEN).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source.getData(), decoded.getData());
+    }
+
+    @Test
+    public void shouldCorrectlyDeserializeGenericPayload() throws Exception {
+        JsonObject json = new JsonObject();
+        json.addProperty("alfa", "beta");
+        Message source = new MessageBuilder(Message.Type.APP, A_AGENT_IDEN, A_CLOUD_IDEN).with(new GenericPayload(json)).make();
+
+        Message decoded = roundtrip(source);
+
+        assertEquals(source.getData().getClass(), decoded.getData().getClass());
+    }
+
+    @Test
+    public void shouldDecodeJsonMessages() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).make();
+
+        byte[] data = new WireJsonSerializer().toBytes(source);
+        Message decoded = sz.fromBytes(data, Message.class);
+
+        assertEquals(source, decoded);
+    }
+
+    @Test
+    public void shouldJsonSerializerDecodeBinaryMessages() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).make();
+
+        byte[] data = sz.toBytes(source);
+        Message decoded = new WireJsonSerializer().fromBytes(data, 0, data.length, Message.class);
+
+        assertEquals(source, decoded);
+    }
+
+    @Test
+    public void shouldMarkFramesWithWireVersion() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PIN, localAgent, remoteAgent).make();
+
+        byte[] binary = sz.toBytes(source);
+        byte[] json = new WireJsonSerializer().toBytes(source);
+
+        assertTrue(WireBinarySerializer.isBinary(binary, 0, binary.length));
+        assertFalse(WireBinarySerializer.isBinary(json, 0, json.length));
+    }
+
+    @Test
+    public void shouldBeMoreCompactThanJson() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).signed("key:1234567890ABCDEF", null).make();
+
+        int binary = sz.toBytes(source).length;
+        int json = new WireJsonSerializer().toBytes(source).length;
+
+        assertTrue(binary * 2 < json);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldBlowUpOnTruncatedFrames() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PIN, localAgent, remoteAgent).make();
+
+        byte[] data = sz.toBytes(source);
+        sz.fromBytes(data, 0, data.length / 2, Message.class);
+    }
+
+    private Message roundtrip(Message source) {
+        byte[] data = sz.toBytes(source);
+        return sz.fromBytes(data, Message.class);
+    }
+
+    @Test
+    public void shouldForwardRawPayloadUnchanged() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).make();
+        byte[] received = sz.toBytes(source);
+
+        Message decoded = sz.fromBytes(received, Message.class);
+        byte[] forwarded = sz.toBytes(decoded.withHops(source.getHops()));
+
+        assertFalse(decoded.getRawData().isDecoded());
+        assertTrue(Arrays.equals(received, forwarded));
+        assertEquals(source.getData().toString(), decoded.getData().toString());
+    }
+
+    @Test
+    public void shouldRelayReceivedBytesPatchingOnlyTheHops() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).withHops(10).with(new Presence(true, localAgent)).make();
+        byte[] received = sz.toBytes(source);
+
+        Message decoded = sz.fromBytes(received, Message.class);
+        byte[] relayed = decoded.hopped().encoded(sz);
+
+        assertTrue(Arrays.equals(received, decoded.getReceivedBytes()));
+        assertTrue(Arrays.equals(sz.withHops(received, 9), relayed));
+        assertFalse(decoded.getRawData().isDecoded());
+    }
+
+    @Test
+    public void shouldPatchHopsInEncodedMessages() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).withHops(2).with(new Presence(true, localAgent)).make();
+
+        byte[] patched = sz.withHops(sz.toBytes(source), -200);
+
+        assertTrue(Arrays.equals(sz.toBytes(source.withHops(-200)), patched));
+        assertEquals(null, sz.withHops(new WireJsonSerializer().toBytes(source), 1));
+    }
+}
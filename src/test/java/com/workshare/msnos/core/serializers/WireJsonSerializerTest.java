@@ -1,9 +1,13 @@
 package com.workshare.msnos.core.serializers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static com.workshare.msnos.core.CoreHelper.*;
 
+import java.io.StringReader;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.UUID;
@@ -230,6 +234,151 @@ public class WireJsonSerializerTest {
         assertEquals(expected, current);
     }
 
+    @Test
+    public void shouldKeepWireFormatStable() throws Exception {
+        Endpoint http = new HttpEndpoint(SAMPLE_NETWORK, "http://www.workshare.com/<msnos>?a=b&c");
+        Iden from = new Iden(Iden.Type.AGT, UUID.fromString("0f5e0e1a-2b3c-4d5e-8f70-a1b2c3d4e5f6"));
+        Iden to = new Iden(Iden.Type.AGT, UUID.fromString("00000000-0000-0000-0000-000000000001"));
+        UUID uuid = UUID.fromString("12345678-90ab-cdef-1234-567890abcdef");
+        Message source = new MessageBuilder(Message.Type.PRS, from, to)
+                .with(new Presence(true, new HashSet<Endpoint>(Arrays.asList(http))))
+                .with(uuid).at(1234567890123L).withHops(3).reliable(true).signed("key:sig=", "rnd'")
+                .make();
+
+        String expected = "{\"v\":\"1.0\",\"fr\":\"AGT:0f5e0e1a2b3c4d5e8f70a1b2c3d4e5f6\",\"to\":\"AGT:00000000000000000000000000000001\",\"rx\":1,\"hp\":3,\"ty\":\"PRS\",\"ss\":\"key:sig\\u003d\",\"rr\":\"rnd\\u0027\",\"ts\":1234567890123,\"id\":\"1234567890abcdef1234567890abcdef\",\"dt\":{\"present\":1,\"endpoints\":[\"HTTP,80,10.10.10.1.25,http://www.workshare.com/\\u003cmsnos\\u003e?a\\u003db\\u0026c\"]}}";
+        String current = new String(sz.toBytes(source), "UTF-8");
+
+        assertEquals(expected, current);
+    }
+
+    @Test
+    public void shouldEncodeAndDecodeNonAsciiTextAsUtf8() throws Exception {
+        final String name = "h\u00e9llo \u2013 \uD83D\uDE00";
+        Message source = new MessageBuilder(Message.Type.QNE, localAgent, remoteAgent).with(new QnePayload(name, new RestApi("/test", 7070))).make();
+
+        byte[] data = sz.toBytes(source);
+        Message decoded = sz.fromBytes(data, Message.class);
+
+        assertTrue(Arrays.equals(sz.toText(source).getBytes("UTF-8"), data));
+        assertEquals(name, ((QnePayload) decoded.getData()).getName());
+    }
+
+    @Test
+    public void shouldDecodeFieldsInAnyOrder() throws Exception {
+        Message source = new MessageBuilder(Message.Type.HCK, A_CLOUD_IDEN, A_AGENT_IDEN).with(new HealthcheckPayload(localAgent, true)).make();
+        String text = sz.toText(source);
+        String data = text.substring(text.indexOf(",\"dt\":") + 1, text.length() - 1);
+        String reordered = "{" + data + ",\"xx\":{\"unknown\":[1,2]}," + text.substring(1, text.indexOf(",\"dt\":")) + "}";
+
+        Message decoded = sz.fromBytes(reordered.getBytes("UTF-8"), Message.class);
+
+        assertEquals(source, decoded);
+    }
+
+    @Test
+    public void shouldDecodeMessagesFromReader() throws Exception {
+        Message source = new MessageBuilder(Message.Type.QNE, localAgent, remoteAgent).with(new QnePayload("test", new RestApi("/test", 7070))).make();
+
+        Message decoded = sz.fromReader(new StringReader(sz.toText(source)), Message.class);
+
+        assertEquals(source, decoded);
+    }
+
+    @Test
+    public void shouldDecodePayloadOnlyWhenAccessed() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).make();
+
+        Message decoded = sz.fromBytes(sz.toBytes(source), Message.class);
+
+        assertFalse(decoded.getRawData().isDecoded());
+        assertEquals(source.getData().toString(), decoded.getData().toString());
+        assertTrue(decoded.getRawData().isDecoded());
+    }
+
+    @Test
+    public void shouldNotDecodePayloadWhenPrinted() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).make();
+
+        Message decoded = sz.fromBytes(sz.toBytes(source), Message.class);
+        String printed = decoded.toString();
+
+        assertFalse(decoded.getRawData().isDecoded());
+        assertTrue(printed.contains("\"data\":{"));
+        assertEquals(source, decoded);
+    }
+
+    @Test
+    public void shouldShareDecodedPayloadAcrossCopies() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).make();
+        Message decoded = sz.fromBytes(sz.toBytes(source), Message.class);
+
+        Message copy = decoded.hopped();
+
+        assertSame(decoded.getData(), copy.getData());
+    }
+
+    @Test
+    public void shouldForwardRawPayloadUnchanged() throws Exception {
+        Message source = new MessageBuilder(Message.Type.APP, localAgent, remoteAgent).make();
+        String text = sz.toText(source);
+        String payload = "{ \"b\" : [1, \"}\"], \"a\":2.50 }";
+        byte[] received = (text.substring(0, text.length() - 1) + ",\"dt\":" + payload + "}").getBytes("UTF-8");
+
+        Message decoded = sz.fromBytes(received, Message.class);
+        String forwarded = new String(sz.toBytes(decoded.hopped()), "UTF-8");
+
+        assertFalse(decoded.getRawData().isDecoded());
+        assertTrue(forwarded.endsWith(",\"dt\":" + payload + "}"));
+        assertEquals(decoded.getHops() - 1, sz.fromText(forwarded, Message.class).getHops());
+    }
+
+    @Test
+    public void shouldEncodeRawPayloadAsTheDecodedOne() throws Exception {
+        Message source = new MessageBuilder(Message.Type.QNE, localAgent, remoteAgent).with(new QnePayload("test", new RestApi("/test", 7070))).make();
+
+        Message decoded = sz.fromBytes(sz.toBytes(source), Message.class);
+
+        assertEquals(sz.toText(source), new String(sz.toBytes(decoded), "UTF-8"));
+    }
+
+    @Test
+    public void shouldDropRawPayloadWhenReplaced() throws Exception {
+        Message source = new MessageBuilder(Message.Type.PRS, localAgent, remoteAgent).with(new Presence(true, localAgent)).make();
+        Message decoded = sz.fromBytes(sz.toBytes(source), Message.class);
+
+        Message replaced = decoded.data(new Presence(false, localAgent));
+
+        assertNull(replaced.getRawData());
+        assertFalse(((Presence) sz.fromBytes(sz.toBytes(replaced), Message.class).getData()).isPresent());
+    }
+
+    @Test
+    public void shouldRelayReceivedBytesPatchingOnlyTheHops() throws Exception {
+        Message source = new MessageBuilder(Message.Type.QNE, localAgent, remoteAgent).withHops(10).with(new QnePayload("test", new RestApi("/test", 7070))).make();
+        String text = sz.toText(source);
+        String received = text.substring(0, text.length() - 1) + ",\"xx\":{\"hp\":1}}";
+
+        Message decoded = sz.fromBytes(received.getBytes("UTF-8"), Message.class);
+        String relayed = new String(decoded.hopped().encoded(sz), "UTF-8");
+
+        assertEquals(received.replace("\"hp\":10,", "\"hp\":9,"), relayed);
+        assertFalse(decoded.getRawData().isDecoded());
+    }
+
+    @Test
+    public void shouldReturnSameBytesWhenHopsDoNotChange() throws Exception {
+        Message source = new MessageBuilder(Message.Type.APP, localAgent, remoteAgent).make();
+        byte[] encoded = sz.toBytes(source);
+
+        assertSame(encoded, sz.withHops(encoded, source.getHops()));
+    }
+
+    @Test
+    public void shouldNotPatchBinaryMessages() throws Exception {
+        Message source = new MessageBuilder(Message.Type.APP, localAgent, remoteAgent).make();
+
+        assertNull(sz.withHops(new WireBinarySerializer().toBytes(source), 1));
+    }
 
     private String toShortString(UUID uuid) {
         return uuid.toString().replaceAll("-", "");
@@ -0,0 +1,138 @@
+package com.workshare.msnos.core.serializers;
+
+import static java.lang.System.out;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+import com.google.gson.JsonParser;
+import com.workshare.msnos.core.Iden;
+import com.workshare.msnos.core.Message;
+import com.workshare.msnos.core.MessageBuilder;
+import com.workshare.msnos.core.payloads.Presence;
+import com.workshare.msnos.core.protocols.ip.BaseEndpoint;
+import com.workshare.msnos.core.protocols.ip.Endpoint;
+import com.workshare.msnos.core.protocols.ip.HttpEndpoint;
+import com.workshare.msnos.core.protocols.ip.Network;
+
+/**
+ * Measures time and heap allocated per message for the wire serializers.
+ * The "string+tree" case only decodes the bytes into a String and parses
+ * a json tree out of it, which is the part of the work the tree based
+ * decoder did before even looking at the fields, so it is a lower bound
+ * of the old cost.
+ *
+ * Run with: java -cp target/classes:target/test-classes:<deps> \
+ *   com.workshare.msnos.core.serializers.WireSerializersBenchmark [iterations]
+ */
+public class WireSerializersBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static volatile Object sink;
+
+    private interface Case {
+        Object run();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("com.ws.nsnos.time.local", "true");
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        final WireJsonSerializer json = new WireJsonSerializer();
+        final WireBinarySerializer binary = new WireBinarySerializer(json);
+        final Message message = sampleMessage();
+
+        final byte[] jsonBytes = json.toBytes(message);
+        final byte[] binaryBytes = binary.toBytes(message);
+        out.printf("message size: json %d bytes, binary %d bytes\n\n", jsonBytes.length, binaryBytes.length);
+
+        final Case[] cases = new Case[] {
+            new Case() {
+                public Object run() {
+                    return new JsonParser().parse(new String(jsonBytes, UTF8));
+                }
+                public String toString() {
+                    return "decode string+tree";
+                }
+            },
+            new Case() {
+                public Object run() {
+                    return json.fromBytes(jsonBytes, Message.class);
+                }
+                public String toString() {
+                    return "decode json";
+                }
+            },
+            new Case() {
+                public Object run() {
+                    return binary.fromBytes(binaryBytes, Message.class);
+                }
+                public String toString() {
+                    return "decode binary";
+                }
+            },
+            new Case() {
+                public Object run() {
+                    return json.toText(message).getBytes(UTF8);
+                }
+                public String toString() {
+                    return "encode json via string";
+                }
+            },
+            new Case() {
+                public Object run() {
+                    return json.toBytes(message);
+                }
+                public String toString() {
+                    return "encode json";
+                }
+            },
+            new Case() {
+                public Object run() {
+                    return binary.toBytes(message);
+                }
+                public String toString() {
+                    return "encode binary";
+                }
+            },
+        };
+
+        for (Case c : cases)
+            measure(c, iterations / 4, false);
+
+        for (Case c : cases)
+            measure(c, iterations, true);
+    }
+
+    private static void measure(Case c, int iterations, boolean print) {
+        final long threadId = Thread.currentThread().getId();
+        final long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink = c.run();
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+        if (print)
+            out.printf("%-24s %8.0f ns/op %8d bytes/op\n", c, (double) elapsed / iterations, allocated / iterations);
+    }
+
+    private static Message sampleMessage() {
+        final Network network = new Network(new byte[]{10, 10, 10, 1}, (short) 24);
+        final Endpoint udp = new BaseEndpoint(Endpoint.Type.UDP, network);
+        final Endpoint http = new HttpEndpoint(network, "http://10.10.10.1:8080/msnos");
+        final Iden from = new Iden(Iden.Type.AGT, UUID.randomUUID());
+        final Iden to = new Iden(Iden.Type.CLD, UUID.randomUUID());
+
+        return new MessageBuilder(Message.Type.PRS, from, to)
+                .with(new Presence(true, new HashSet<Endpoint>(Arrays.asList(udp, http))))
+                .signed("key:0123456789ABCDEF0123456789ABCDEF", "QWERTYUIOPASDFGH")
+                .make();
+    }
+}
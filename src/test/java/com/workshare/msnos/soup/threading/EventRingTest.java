@@ -0,0 +1,101 @@
+package com.workshare.msnos.soup.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EventRingTest {
+
+    @Test
+    public void shouldRoundTheSizeToAPowerOfTwo() {
+        assertEquals(8, new EventRing<Object>(5, EventRing.WaitStrategy.BLOCK).size());
+        assertEquals(8, new EventRing<Object>(8, EventRing.WaitStrategy.BLOCK).size());
+    }
+
+    @Test
+    public void shouldDeliverAllEventsInOrderToEachConsumer() throws Exception {
+        for (EventRing.WaitStrategy strategy : EventRing.WaitStrategy.values()) {
+            EventRing<Integer> ring = new EventRing<Integer>(4, strategy);
+            Recorder alfa = new Recorder(100);
+            Recorder beta = new Recorder(100);
+            EventRing<Integer>.Consumer one = ring.addConsumer("alfa", alfa);
+            EventRing<Integer>.Consumer two = ring.addConsumer("beta", beta);
+
+            for (int i = 0; i < 100; i++)
+                ring.publish(i);
+
+            assertTrue(strategy.name(), alfa.await());
+            assertTrue(strategy.name(), beta.await());
+            assertEquals(expected(100), alfa.events);
+            assertEquals(expected(100), beta.events);
+
+            ring.removeConsumer(one);
+            ring.removeConsumer(two);
+        }
+    }
+
+    @Test
+    public void shouldDeliverEventsFromManyPublishers() throws Exception {
+        final EventRing<Integer> ring = new EventRing<Integer>(16, EventRing.WaitStrategy.PARK);
+        final Recorder recorder = new Recorder(4000);
+        ring.addConsumer("recorder", recorder);
+
+        for (int t = 0; t < 4; t++) {
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < 1000; i++)
+                        ring.publish(i);
+                }
+            }.start();
+        }
+
+        assertTrue(recorder.await());
+        assertEquals(4000, recorder.events.size());
+    }
+
+    @Test
+    public void shouldNotDeliverToRemovedConsumers() throws Exception {
+        EventRing<Integer> ring = new EventRing<Integer>(4, EventRing.WaitStrategy.BLOCK);
+        Recorder recorder = new Recorder(1);
+        ring.removeConsumer(ring.addConsumer("recorder", recorder));
+
+        for (int i = 0; i < 10; i++)
+            ring.publish(i);
+
+        assertEquals(0, ring.consumers());
+        assertEquals(0, recorder.events.size());
+    }
+
+    private List<Integer> expected(int count) {
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++)
+            expected.add(i);
+        return expected;
+    }
+
+    private static class Recorder implements EventRing.Handler<Integer> {
+        private final List<Integer> events = Collections.synchronizedList(new ArrayList<Integer>());
+        private final CountDownLatch done;
+
+        Recorder(int expected) {
+            this.done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void handle(Integer event) {
+            events.add(event);
+            done.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return done.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.workshare.msnos.soup.threading;
+
+import static java.lang.System.out;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast messages are fanned out to a number of asynchronous
+ * listeners, and how many bytes the dispatching thread allocates for each,
+ * using the executor (the classic way), mailboxes, and the event ring with
+ * each wait strategy. Every listener counts down the same latch, so a round
+ * ends when all the listeners received all the messages.
+ *
+ * Run with: java -cp target/classes:target/test-classes:<deps> \
+ *   com.workshare.msnos.soup.threading.MulticasterBenchmark [messages] [listeners]
+ */
+public class MulticasterBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final Object MESSAGE = "message";
+
+    private static abstract class Listener {
+        abstract void update(Object message);
+    }
+
+    private static class LatchListener extends Listener {
+        private volatile CountDownLatch latch;
+
+        void update(Object message) {
+            latch.countDown();
+        }
+    }
+
+    private static class Caster extends Multicaster<Listener, Object> {
+        Caster(ExecutorService executor, Overflow overflow, EventRing<Object> ring) {
+            super(executor, overflow, 1024, null, ring);
+        }
+
+        protected void dispatch(Listener listener, Object message) {
+            listener.update(message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int listeners = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        out.printf("%d messages to %d listeners\n\n", messages, listeners);
+        run("executor", null, null, messages, listeners);
+        run("mailbox", Multicaster.Overflow.BLOCK, null, messages, listeners);
+        for (EventRing.WaitStrategy strategy : EventRing.WaitStrategy.values())
+            run("ring " + strategy.name().toLowerCase(), null, strategy, messages, listeners);
+    }
+
+    private static void run(String name, Multicaster.Overflow overflow, EventRing.WaitStrategy strategy, int messages, int listeners) throws InterruptedException {
+        final ExecutorService executor = ExecutorServices.newFixedDaemonThreadPool(5);
+        final EventRing<Object> ring = (strategy == null ? null : new EventRing<Object>(4096, strategy));
+        final Caster caster = new Caster(executor, overflow, ring);
+
+        final LatchListener[] all = new LatchListener[listeners];
+        for (int i = 0; i < listeners; i++)
+            all[i] = (LatchListener) caster.addListener(new LatchListener());
+
+        measure(caster, all, messages / 10);
+        final long[] result = measure(caster, all, messages);
+        out.printf("%-16s %10d msg/s %8d bytes/msg on the dispatcher\n", name, messages * 1000000000L / result[0], result[1] / messages);
+
+        for (LatchListener listener : all)
+            caster.removeListener(listener);
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static long[] measure(Caster caster, LatchListener[] listeners, int messages) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(messages * listeners.length);
+        for (LatchListener listener : listeners)
+            listener.latch = latch;
+
+        final long threadId = Thread.currentThread().getId();
+        final long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+            caster.dispatch(MESSAGE);
+        final long allocated = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+        latch.await();
+        return new long[] {System.nanoTime() - start, allocated};
+    }
+}
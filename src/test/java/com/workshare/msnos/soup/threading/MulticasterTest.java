@@ -4,8 +4,12 @@ import static com.workshare.msnos.core.CoreHelper.sleep;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -103,6 +107,272 @@ public class MulticasterTest {
         assertEquals("PRIORITY-STANDARD-STANDARD", trace.toString());
     }
 
+    @Test
+    public void shouldDeliverInOrderThroughMailboxes() throws Exception {
+        executor = ExecutorServices.newFixedDaemonThreadPool(3);
+        caster = newMailboxCaster(Multicaster.Overflow.BLOCK, 4);
+        caster.addListener(newTraceAppendingListener(null, 1l));
+
+        for (int i = 0; i < 10; i++)
+            caster.dispatch(i);
+
+        shutdown(executor);
+        assertEquals("0123456789", trace.toString());
+        assertEquals(10, caster.mailboxes().get(0).delivered());
+        assertEquals(0, caster.mailboxes().get(0).dropped());
+    }
+
+    @Test
+    public void shouldDropOldestWhenMailboxIsFull() throws Exception {
+        final QueuedExecutor queued = new QueuedExecutor();
+        caster = newMailboxCaster(queued, Multicaster.Overflow.DROP_OLDEST, 2);
+        Observer listener = caster.addListener(newTraceAppendingListener());
+
+        caster.dispatch("a");
+        caster.dispatch("b");
+        caster.dispatch("c");
+
+        assertEquals(2, caster.mailbox(listener).depth());
+        queued.runAll();
+        assertEquals("bc", trace.toString());
+        assertEquals(1, caster.mailbox(listener).dropped());
+    }
+
+    @Test
+    public void shouldDropSameTypeWhenMailboxIsFull() throws Exception {
+        final QueuedExecutor queued = new QueuedExecutor();
+        caster = newMailboxCaster(queued, Multicaster.Overflow.DROP_BY_TYPE, 2);
+        Observer listener = caster.addListener(newTraceAppendingListener());
+
+        caster.dispatch("a1");
+        caster.dispatch("b1");
+        caster.dispatch("b2");
+        caster.dispatch("c1");
+
+        queued.runAll();
+        assertEquals("a1b2", trace.toString());
+        assertEquals(2, caster.mailbox(listener).dropped());
+    }
+
+    @Test
+    public void shouldDropWhenBlockedTooLongOnAFullMailbox() throws Exception {
+        System.setProperty(Multicaster.SYSP_MAILBOX_WAIT, "50");
+        try {
+            caster = newMailboxCaster(new QueuedExecutor(), Multicaster.Overflow.BLOCK, 1);
+        } finally {
+            System.clearProperty(Multicaster.SYSP_MAILBOX_WAIT);
+        }
+        Observer listener = caster.addListener(newTraceAppendingListener());
+
+        caster.dispatch("a");
+        caster.dispatch("b");
+
+        assertEquals(1, caster.mailbox(listener).depth());
+        assertEquals(1, caster.mailbox(listener).dropped());
+    }
+
+    @Test
+    public void shouldNotBlockAListenerDispatchingToItsOwnFullMailbox() throws Exception {
+        System.setProperty(Multicaster.SYSP_MAILBOX_WAIT, "10000");
+        final QueuedExecutor queued = new QueuedExecutor();
+        try {
+            caster = newMailboxCaster(queued, Multicaster.Overflow.BLOCK, 1);
+        } finally {
+            System.clearProperty(Multicaster.SYSP_MAILBOX_WAIT);
+        }
+        Observer listener = caster.addListener(new Observer() {
+            @Override
+            public void update(Observable o, Object message) {
+                trace.append(message);
+                if ("a".equals(message)) {
+                    caster.dispatch("b");
+                    caster.dispatch("c");
+                }
+            }
+        });
+
+        caster.dispatch("a");
+        final long start = System.currentTimeMillis();
+        queued.runAll();
+
+        assertTrue(System.currentTimeMillis() - start < 5000L);
+        assertEquals("ab", trace.toString());
+        assertEquals(1, caster.mailbox(listener).dropped());
+    }
+
+    @Test
+    public void shouldNotHoldOtherListenersWhenOneIsSlow() throws Exception {
+        executor = ExecutorServices.newFixedDaemonThreadPool(3);
+        caster = newMailboxCaster(Multicaster.Overflow.DROP_OLDEST, 100);
+        caster.addListener(newTraceAppendingListener("SLOW", 200l));
+        Observer fast = caster.addListener(newTraceAppendingListener("FAST"));
+
+        caster.dispatch("");
+        sleep(50l, TimeUnit.MILLISECONDS);
+
+        assertTraceContains("FAST");
+        assertEquals(1, caster.mailbox(fast).delivered());
+        shutdown(executor);
+    }
+
+    @Test
+    public void shouldDeliverInOrderPerKeyToOrderedListeners() throws Exception {
+        final StripedExecutor stripes = new StripedExecutor(4);
+        caster = new Multicaster<Observer, Object>(executor(), null, 1, stripes) {
+            @Override
+            protected void dispatch(Observer listener, Object message) {
+                listener.update(null, message);
+            }
+
+            @Override
+            protected Object keyOf(Object message) {
+                return message.toString().charAt(0);
+            }
+        };
+
+        final StringBuffer alfa = new StringBuffer();
+        final StringBuffer beta = new StringBuffer();
+        caster.addOrderedListener(new Observer() {
+            @Override
+            public void update(Observable o, Object message) {
+                (message.toString().charAt(0) == 'a' ? alfa : beta).append(message.toString().substring(1));
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            caster.dispatch("a" + i);
+            caster.dispatch("b" + i);
+        }
+
+        stripes.shutdown();
+        stripes.awaitTermination(1, TimeUnit.SECONDS);
+        assertEquals("0123456789", alfa.toString());
+        assertEquals("0123456789", beta.toString());
+    }
+
+    @Test
+    public void shouldDeliverOnlySubscribedTypes() throws Exception {
+        caster = newMailboxCaster(null, 1);
+        caster.addListener(newTraceAppendingListener("A"), Collections.singleton('a'));
+        caster.addListener(newTraceAppendingListener("X"));
+
+        caster.dispatch("a1");
+        caster.dispatch("b1");
+
+        assertEquals("Aa1Xa1Xb1", trace.toString());
+    }
+
+    @Test
+    public void shouldDeliverOnlyToSubscribedRecipient() throws Exception {
+        caster = new Multicaster<Observer, Object>(executor(), null, 1) {
+            @Override
+            protected void dispatch(Observer listener, Object message) {
+                listener.update(null, message);
+            }
+
+            @Override
+            protected Object recipientOf(Object message) {
+                return message.toString().substring(1);
+            }
+        };
+        caster.addListener(newTraceAppendingListener("ONE"), null, "1");
+
+        caster.dispatch("a1");
+        caster.dispatch("a2");
+
+        assertEquals("ONEa1", trace.toString());
+    }
+
+    @Test
+    public void shouldStopDeliveringToRemovedTypedListeners() throws Exception {
+        caster = newMailboxCaster(null, 1);
+        Observer listener = caster.addListener(newTraceAppendingListener("A"), Collections.singleton('a'));
+        caster.removeListener(listener);
+
+        caster.dispatch("a1");
+
+        assertEquals("", trace.toString());
+    }
+
+    @Test
+    public void shouldDeliverInOrderThroughTheRing() throws Exception {
+        final CountDownLatch done = new CountDownLatch(15);
+        caster = new Multicaster<Observer, Object>(executor(), null, 1, null, new EventRing<Object>(4, EventRing.WaitStrategy.BLOCK)) {
+            @Override
+            protected void dispatch(Observer listener, Object message) {
+                listener.update(null, message);
+                done.countDown();
+            }
+
+            @Override
+            protected Object typeOf(Object message) {
+                return message.toString().charAt(0);
+            }
+        };
+        final StringBuffer alfa = new StringBuffer();
+        final StringBuffer beta = new StringBuffer();
+        caster.addListener(newAppendingListener(alfa));
+        caster.addListener(newAppendingListener(beta), Collections.singleton('b'));
+
+        for (int i = 0; i < 10; i++)
+            caster.dispatch((i % 2 == 0 ? "a" : "b") + i);
+
+        done.await(1, TimeUnit.SECONDS);
+        assertEquals("a0b1a2b3a4b5a6b7a8b9", alfa.toString());
+        assertEquals("b1b3b5b7b9", beta.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectOverflowPolicyWithTheRing() throws Exception {
+        new Multicaster<Observer, Object>(executor(), Multicaster.Overflow.BLOCK, 1, null, new EventRing<Object>(4, EventRing.WaitStrategy.BLOCK)) {
+            @Override
+            protected void dispatch(Observer listener, Object message) {
+                listener.update(null, message);
+            }
+        };
+    }
+
+    private Observer newAppendingListener(final StringBuffer buffer) {
+        return new Observer() {
+            @Override
+            public void update(Observable o, Object message) {
+                buffer.append(message);
+            }
+        };
+    }
+
+    private Multicaster<Observer, Object> newMailboxCaster(Multicaster.Overflow overflow, int capacity) {
+        return newMailboxCaster(executor(), overflow, capacity);
+    }
+
+    private Multicaster<Observer, Object> newMailboxCaster(Executor executor, Multicaster.Overflow overflow, int capacity) {
+        return new Multicaster<Observer, Object>(executor, overflow, capacity) {
+            @Override
+            protected void dispatch(Observer listener, Object message) {
+                listener.update(null, message);
+            }
+
+            @Override
+            protected Object typeOf(Object message) {
+                return message.toString().charAt(0);
+            }
+        };
+    }
+
+    private static class QueuedExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.remove(0).run();
+        }
+    }
+
     private void shutdown(ExecutorService executor) throws InterruptedException {
         executor.shutdown();
         executor.awaitTermination(10, TimeUnit.SECONDS);
@@ -0,0 +1,140 @@
+package com.workshare.msnos.soup.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PipelineStageTest {
+
+    private final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private PipelineStage<String> stage;
+
+    @After
+    public void after() {
+        if (stage != null)
+            stage.stop();
+    }
+
+    @Test
+    public void shouldHandleOnCallerThreadWithoutWorkers() {
+        final Thread caller = Thread.currentThread();
+        stage = new PipelineStage<String>("test", 0, 10, ThreadFactories.DEFAULT, new PipelineStage.Handler<String>() {
+            @Override
+            public void handle(String item) {
+                assertEquals(caller, Thread.currentThread());
+                handled.add(item);
+            }
+        });
+
+        stage.submit("a");
+
+        assertEquals(Collections.singletonList("a"), handled);
+        assertEquals(1, stage.processed());
+    }
+
+    @Test
+    public void shouldHandleOnWorkersInOrder() throws Exception {
+        stage = newBlockingStage(1, 10);
+
+        stage.submit("a");
+        stage.submit("b");
+        stage.submit("c");
+        gate.countDown();
+
+        waitProcessed(3);
+        assertEquals(3, stage.processed());
+        assertEquals(list("a", "b", "c"), handled);
+    }
+
+    @Test
+    public void shouldNotHoldTheSubmitterWhileHandling() throws Exception {
+        stage = newBlockingStage(1, 10);
+
+        stage.submit("a");
+        stage.submit("b");
+
+        assertTrue(stage.depth() >= 1);
+        assertEquals(0, stage.processed());
+        gate.countDown();
+    }
+
+    @Test
+    public void shouldKeepGoingWhenHandlerFails() throws Exception {
+        stage = new PipelineStage<String>("test", 1, 10, ThreadFactories.DEFAULT, new PipelineStage.Handler<String>() {
+            @Override
+            public void handle(String item) {
+                if (item.equals("boom"))
+                    throw new RuntimeException("boom");
+                handled.add(item);
+            }
+        });
+
+        stage.submit("boom");
+        stage.submit("a");
+
+        waitProcessed(2);
+        assertEquals(1, stage.failed());
+        assertEquals(list("a"), handled);
+    }
+
+    @Test
+    public void shouldTrackLatency() throws Exception {
+        stage = newBlockingStage(1, 10);
+
+        stage.submit("a");
+        Thread.sleep(20);
+        gate.countDown();
+
+        waitProcessed(1);
+        assertTrue(stage.maxLatencyMicros() >= 10000);
+        assertTrue(stage.meanLatencyMicros() >= 10000);
+    }
+
+    @Test
+    public void shouldReportItemsLostWhenInterrupted() throws Exception {
+        stage = newBlockingStage(1, 10);
+
+        Thread.currentThread().interrupt();
+        final boolean submitted = stage.submit("a");
+
+        assertTrue(Thread.interrupted());
+        assertFalse(submitted);
+        assertEquals(1, stage.lost());
+        gate.countDown();
+    }
+
+    private PipelineStage<String> newBlockingStage(int workers, int capacity) {
+        return new PipelineStage<String>("test", workers, capacity, ThreadFactories.DEFAULT, new PipelineStage.Handler<String>() {
+            @Override
+            public void handle(String item) {
+                try {
+                    gate.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handled.add(item);
+            }
+        });
+    }
+
+    private void waitProcessed(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && stage.processed() < count; i++)
+            Thread.sleep(10);
+    }
+
+    private static List<String> list(String... items) {
+        List<String> result = new ArrayList<String>();
+        Collections.addAll(result, items);
+        return result;
+    }
+}
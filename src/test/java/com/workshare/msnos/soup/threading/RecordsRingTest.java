@@ -0,0 +1,140 @@
+package com.workshare.msnos.soup.threading;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class RecordsRingTest {
+
+    private final List<Integer> consumed = new ArrayList<Integer>();
+    private final RecordsRing.Consumer consumer = new RecordsRing.Consumer() {
+        @Override
+        public void consume(byte[] buffer, int offset, int length) {
+            consumed.add(readInt(buffer, offset));
+        }
+    };
+
+    @Test
+    public void shouldRoundCapacityToPowerOfTwo() {
+        assertEquals(8, new RecordsRing(5, 4).capacity());
+        assertEquals(8, new RecordsRing(8, 4).capacity());
+    }
+
+    @Test
+    public void shouldDrainRecordsInOrder() {
+        RecordsRing ring = new RecordsRing(4, 4);
+
+        for (int i = 0; i < 3; i++)
+            write(ring, i);
+
+        assertEquals(3, ring.drain(consumer, 10));
+        assertEquals(list(0, 1, 2), consumed);
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void shouldDropAndCountWhenFull() {
+        RecordsRing ring = new RecordsRing(2, 4);
+
+        for (int i = 0; i < 5; i++)
+            write(ring, i);
+
+        assertEquals(3, ring.dropped());
+        ring.drain(consumer, 10);
+        assertEquals(list(0, 1), consumed);
+    }
+
+    @Test
+    public void shouldNotDrainPastUnpublishedRecords() {
+        RecordsRing ring = new RecordsRing(4, 4);
+        long first = ring.claim();
+        write(ring, 1);
+
+        assertEquals(0, ring.drain(consumer, 10));
+
+        ring.publish(first);
+        assertEquals(2, ring.drain(consumer, 10));
+    }
+
+    @Test
+    public void shouldReuseSlotsOnceDrained() {
+        RecordsRing ring = new RecordsRing(2, 4);
+
+        for (int i = 0; i < 6; i++) {
+            write(ring, i);
+            ring.drain(consumer, 10);
+        }
+
+        assertEquals(0, ring.dropped());
+        assertEquals(list(0, 1, 2, 3, 4, 5), consumed);
+    }
+
+    @Test
+    public void shouldNotLoseRecordsWithConcurrentProducers() throws Exception {
+        final RecordsRing ring = new RecordsRing(64, 4);
+        final int threads = 4;
+        final int perThread = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    int written = 0;
+                    while (written < perThread) {
+                        long seq = ring.claim();
+                        if (seq >= 0) {
+                            writeInt(ring.buffer(), ring.offset(seq), 1);
+                            ring.publish(seq);
+                            written++;
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        final long[] total = new long[1];
+        RecordsRing.Consumer summer = new RecordsRing.Consumer() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                total[0] += readInt(buffer, offset);
+            }
+        };
+
+        while (done.getCount() > 0 || ring.size() > 0)
+            ring.drain(summer, 16);
+
+        assertEquals(threads * perThread, total[0]);
+    }
+
+    private void write(RecordsRing ring, int value) {
+        long seq = ring.claim();
+        if (seq >= 0) {
+            writeInt(ring.buffer(), ring.offset(seq), value);
+            ring.publish(seq);
+        }
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static List<Integer> list(Integer... values) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (Integer value : values)
+            result.add(value);
+        return result;
+    }
+}
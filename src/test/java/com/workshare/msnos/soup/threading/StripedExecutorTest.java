@@ -0,0 +1,87 @@
+package com.workshare.msnos.soup.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StripedExecutorTest {
+
+    private final StripedExecutor executor = new StripedExecutor(4);
+
+    @After
+    public void after() throws Exception {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldRunTasksWithSameKeyInOrder() throws Exception {
+        final List<Integer> done = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> expected = new ArrayList<Integer>();
+
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            expected.add(value);
+            executor.execute("key", new Runnable() {
+                @Override
+                public void run() {
+                    done.add(value);
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        assertEquals(expected, done);
+    }
+
+    @Test
+    public void shouldRunTasksWithDifferentKeysInParallel() throws Exception {
+        final Object one = "one";
+        Object other = null;
+        for (int i = 0; other == null; i++) {
+            if (executor.lane("other" + i) != executor.lane(one))
+                other = "other" + i;
+        }
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(one, new Runnable() {
+            @Override
+            public void run() {
+                await(blocked);
+            }
+        });
+        executor.execute(other, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        blocked.countDown();
+    }
+
+    @Test
+    public void shouldAlwaysMapSameKeyToSameLane() {
+        assertEquals(executor.lane("abc"), executor.lane(new String("abc")));
+        assertEquals(0, executor.lane(null));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -18,7 +18,9 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -90,6 +92,20 @@ public class MicrocloudTest {
         local.join(microcloud);
     }
     
+    @Test
+    public void shouldProcessMessagesOnOrderedListenerWhenRequested() throws Exception {
+        System.setProperty(Microcloud.SYSP_ORDERED_PROCESSING, "true");
+        try {
+            Cloud other = Mockito.mock(Cloud.class);
+            new Microcloud(other, executor);
+
+            verify(other).addOrderedListener(any(Cloud.Listener.class));
+            verify(other, never()).addSynchronousListener(any(Cloud.Listener.class));
+        } finally {
+            System.clearProperty(Microcloud.SYSP_ORDERED_PROCESSING);
+        }
+    }
+
     @Test
     public void shouldCreateRemoteMicroserviceOnQNE() throws IOException {
         RemoteAgent remoteAgent = newRemoteAgent();